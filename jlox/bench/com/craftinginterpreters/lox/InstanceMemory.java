@@ -0,0 +1,52 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+// NOTE: 小さなインスタンスを大量に作って保持し、GC後に残ったヒープの量を測る。
+// インスタンスはグローバル変数headから辿れる連結リストとして生かしておく
+class InstanceMemory {
+  private static final int COUNT = 1000000;
+
+  private static final String SOURCE =
+      "class Node {\n"
+          + "  init(next) {\n"
+          + "    this.next = next;\n"
+          + "    this.x = 1;\n"
+          + "    this.y = 2;\n"
+          + "  }\n"
+          + "}\n"
+          + "var head = nil;\n"
+          + "for (var i = 0; i < "
+          + COUNT
+          + "; i = i + 1) {\n"
+          + "  head = Node(head);\n"
+          + "}\n";
+
+  public static void main(String[] args) {
+    Reporter reporter = new Reporter(null);
+    List<Stmt> statements =
+        new Parser(new Scanner(SOURCE, reporter).scanTokens(), reporter).parse();
+    Resolver resolver = new Resolver(reporter);
+    resolver.resolve(statements);
+    Interpreter interpreter = new Interpreter();
+
+    long before = usedHeap();
+    interpreter.interpret(statements, resolver.frameSize());
+    long after = usedHeap();
+
+    System.out.println("instances: " + COUNT);
+    System.out.println("retained heap: " + (after - before) / 1024 / 1024 + " MiB");
+    System.out.println("bytes per instance: " + (after - before) / COUNT);
+
+    // NOTE: 計測が終わるまでインスタンスがGCされないようにする
+    if (interpreter.globals.get(new Token(TokenType.IDENTIFIER, "head", null, 0)) == null) {
+      System.out.println("head is nil");
+    }
+  }
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) System.gc();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+}
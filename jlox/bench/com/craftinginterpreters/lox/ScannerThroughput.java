@@ -0,0 +1,51 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+// NOTE: bench/*.loxを繰り返しつなげた数MiBのソースを走査だけして、1秒あたりのトークン数を測る。
+// 最初の数回はJITのウォームアップとして捨て、残りの回の最速を報告する
+class ScannerThroughput {
+  private static final int SIZE = 8 * 1024 * 1024;
+  private static final int WARMUP = 5;
+  private static final int RUNS = 10;
+
+  public static void main(String[] args) throws IOException {
+    String source = corpus(Paths.get(args.length > 0 ? args[0] : "bench"));
+
+    long tokens = 0;
+    long best = Long.MAX_VALUE;
+    for (int i = 0; i < WARMUP + RUNS; i++) {
+      long start = System.nanoTime();
+      tokens = scan(source);
+      long elapsed = System.nanoTime() - start;
+      if (i >= WARMUP) best = Math.min(best, elapsed);
+    }
+
+    System.out.println("source: " + source.length() / 1024 / 1024 + " MiB");
+    System.out.println("tokens: " + tokens);
+    System.out.println("best: " + best / 1000000 + " ms");
+    System.out.println("tokens/s: " + tokens * 1000000000L / best);
+  }
+
+  private static String corpus(Path directory) throws IOException {
+    StringBuilder scripts = new StringBuilder();
+    try (DirectoryStream<Path> files = Files.newDirectoryStream(directory, "*.lox")) {
+      for (Path file : files) scripts.append(Files.readString(file)).append('\n');
+    }
+
+    StringBuilder source = new StringBuilder(SIZE + scripts.length());
+    while (source.length() < SIZE) source.append(scripts);
+    return source.toString();
+  }
+
+  private static long scan(String source) {
+    Tokens tokens = new Scanner(source, new Reporter(null)).scanTokens();
+    int count = 0;
+    while (tokens.type(count) != TokenType.EOF) count++;
+    return count;
+  }
+}
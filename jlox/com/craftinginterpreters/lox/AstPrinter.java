@@ -1,5 +1,8 @@
 package com.craftinginterpreters.lox;
 
+import java.util.ArrayList;
+import java.util.List;
+
 class AstPrinter implements Expr.Visitor<String> {
   String print(Expr expr) {
     return expr.accept(this);
@@ -15,9 +18,16 @@ class AstPrinter implements Expr.Visitor<String> {
     return parenthesize("group", expr.expression);
   }
 
+  @Override
+  public String visitInvariantExpr(Expr.Invariant expr) {
+    return parenthesize("invariant", expr.expression);
+  }
+
   @Override
   public String visitLiteralExpr(Expr.Literal expr) {
     if (expr.value == null) return "nil";
+    // NOTE: 文字列は数値や識別子と区別できるよう引用符で囲む
+    if (expr.value instanceof String) return "\"" + expr.value + "\"";
     return expr.value.toString();
   }
 
@@ -28,42 +38,45 @@ class AstPrinter implements Expr.Visitor<String> {
 
   @Override
   public String visitVariableExpr(Expr.Variable expr) {
-    return ""; // TODO: TokenをprettiyPrintする
+    return expr.name.lexeme;
   }
 
   @Override
   public String visitAssignExpr(Expr.Assign expr) {
-    return ""; // TODO: TokenをprettiyPrintする
+    return parenthesize("= " + expr.name.lexeme, expr.value);
   }
 
   @Override
   public String visitLogicalExpr(Expr.Logical expr) {
-    return ""; // TODO: TokenをprettiyPrintする
+    return parenthesize(expr.operator.lexeme, expr.left, expr.right);
   }
 
   @Override
   public String visitCallExpr(Expr.Call expr) {
-    return ""; // TODO: TokenをprettiyPrintする
+    List<Expr> exprs = new ArrayList<>();
+    exprs.add(expr.callee);
+    exprs.addAll(expr.arguments);
+    return parenthesize("call", exprs.toArray(new Expr[0]));
   }
 
   @Override
   public String visitGetExpr(Expr.Get expr) {
-    return ""; // TODO: TokenをprettiyPrintする
+    return parenthesize(". " + expr.name.lexeme, expr.object);
   }
 
   @Override
   public String visitSetExpr(Expr.Set expr) {
-    return ""; // TODO: TokenをprettiyPrintする
+    return parenthesize("= " + expr.name.lexeme, expr.object, expr.value);
   }
 
   @Override
   public String visitThisExpr(Expr.This expr) {
-    return ""; // TODO: TokenをprettiyPrintする
+    return "this";
   }
 
   @Override
   public String visitSuperExpr(Expr.Super expr) {
-    return ""; // TODO: TokenをprettiyPrintする
+    return "(super " + expr.method.lexeme + ")";
   }
 
   private String parenthesize(String name, Expr... exprs) {
@@ -0,0 +1,37 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+// NOTE: cloxのChunkに対応する。命令列(code)と、実行時エラーで行番号を出すための
+// 命令ごとの行番号(lines)、命令から添字で参照する定数表(constants)を持つ
+final class Chunk {
+  private static final int INITIAL_CAPACITY = 8;
+
+  byte[] code = new byte[INITIAL_CAPACITY];
+  int[] lines = new int[INITIAL_CAPACITY];
+  int count = 0;
+  final List<Object> constants = new ArrayList<>();
+
+  void write(int value, int line) {
+    if (count == code.length) {
+      code = Arrays.copyOf(code, count * 2);
+      lines = Arrays.copyOf(lines, count * 2);
+    }
+
+    code[count] = (byte) value;
+    lines[count] = line;
+    count++;
+  }
+
+  void writeShort(int value, int line) {
+    write((value >> 8) & 0xff, line);
+    write(value & 0xff, line);
+  }
+
+  int addConstant(Object value) {
+    constants.add(value);
+    return constants.size() - 1;
+  }
+}
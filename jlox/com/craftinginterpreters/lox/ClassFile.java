@@ -0,0 +1,571 @@
+package com.craftinginterpreters.lox;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+// NOTE: JitCompilerが使う最小限のclassファイルの書き出し。ASMのような外部ライブラリを使わず、
+// 定数プールとフィールド、メソッド(Code属性とStackMapTable)だけを扱う。
+// 型の情報はJVMの記述子("Ljava/lang/Object;"や"I")の文字列でそのまま持つ
+final class ClassFile {
+  static final int ACC_PUBLIC = 0x0001;
+  static final int ACC_PRIVATE = 0x0002;
+  static final int ACC_STATIC = 0x0008;
+  static final int ACC_FINAL = 0x0010;
+  static final int ACC_SUPER = 0x0020;
+
+  // NOTE: StackMapTableが必要になるJava 7以降の形式で書く(invokedynamicを使えるように)
+  private static final int MAJOR_VERSION = 52;
+
+  private final String name;
+  private final String superName;
+  private final String[] interfaces;
+  private final Bytes pool = new Bytes();
+  private final Map<String, Integer> entries = new HashMap<>();
+  private int poolCount = 1;
+  private final List<Bytes> fields = new ArrayList<>();
+  private final List<Bytes> methods = new ArrayList<>();
+  // NOTE: invokedynamicのブートストラップメソッド。BootstrapMethods属性に並べる順の添字で参照する
+  private final List<Bytes> bootstrapMethods = new ArrayList<>();
+
+  ClassFile(String name, String superName, String... interfaces) {
+    this.name = name;
+    this.superName = superName;
+    this.interfaces = interfaces;
+  }
+
+  void addField(int access, String name, String descriptor) {
+    Bytes field = new Bytes();
+    field.u2(access).u2(utf8(name)).u2(utf8(descriptor)).u2(0);
+    fields.add(field);
+  }
+
+  void addMethod(int access, String name, String descriptor, Code code) {
+    Bytes method = new Bytes();
+    method.u2(access).u2(utf8(name)).u2(utf8(descriptor)).u2(1);
+    code.writeTo(method);
+    methods.add(method);
+  }
+
+  byte[] toByteArray() {
+    int thisClass = classRef(name);
+    int superClass = classRef(superName);
+    int[] interfaceRefs = new int[interfaces.length];
+    for (int i = 0; i < interfaces.length; i++) {
+      interfaceRefs[i] = classRef(interfaces[i]);
+    }
+    // NOTE: 属性名も定数プールに入るので、プールを書き出す前に登録しておく
+    int bootstrapAttribute = bootstrapMethods.isEmpty() ? 0 : utf8("BootstrapMethods");
+
+    Bytes out = new Bytes();
+    out.u4(0xcafebabe).u2(0).u2(MAJOR_VERSION);
+    out.u2(poolCount).append(pool);
+    out.u2(ACC_FINAL | ACC_SUPER).u2(thisClass).u2(superClass);
+    out.u2(interfaceRefs.length);
+    for (int ref : interfaceRefs) out.u2(ref);
+    out.u2(fields.size());
+    for (Bytes field : fields) out.append(field);
+    out.u2(methods.size());
+    for (Bytes method : methods) out.append(method);
+    if (bootstrapAttribute == 0) {
+      out.u2(0);
+    } else {
+      Bytes attribute = new Bytes().u2(bootstrapMethods.size());
+      for (Bytes bootstrap : bootstrapMethods) attribute.append(bootstrap);
+      out.u2(1).u2(bootstrapAttribute).u4(attribute.size()).append(attribute);
+    }
+
+    return out.toByteArray();
+  }
+
+  // NOTE: 定数プールの項目。同じ内容なら同じ添字を返す
+  private int entry(String key, Bytes content, int slots) {
+    Integer index = entries.get(key);
+    if (index != null) return index;
+
+    index = poolCount;
+    pool.append(content);
+    poolCount += slots;
+    entries.put(key, index);
+    return index;
+  }
+
+  int utf8(String value) {
+    Bytes content = new Bytes().u1(1);
+    content.utf8(value);
+    return entry("Utf8:" + value, content, 1);
+  }
+
+  int classRef(String internalName) {
+    return entry("Class:" + internalName, new Bytes().u1(7).u2(utf8(internalName)), 1);
+  }
+
+  int string(String value) {
+    return entry("String:" + value, new Bytes().u1(8).u2(utf8(value)), 1);
+  }
+
+  int integer(int value) {
+    return entry("Integer:" + value, new Bytes().u1(3).u4(value), 1);
+  }
+
+  int nameAndType(String name, String descriptor) {
+    return entry(
+        "NameAndType:" + name + ":" + descriptor,
+        new Bytes().u1(12).u2(utf8(name)).u2(utf8(descriptor)),
+        1);
+  }
+
+  int fieldRef(String owner, String name, String descriptor) {
+    return memberRef(9, owner, name, descriptor);
+  }
+
+  int methodRef(String owner, String name, String descriptor) {
+    return memberRef(10, owner, name, descriptor);
+  }
+
+  int interfaceMethodRef(String owner, String name, String descriptor) {
+    return memberRef(11, owner, name, descriptor);
+  }
+
+  // NOTE: staticメソッドを指すMethodHandle(REF_invokeStatic)
+  int methodHandle(String owner, String name, String descriptor) {
+    return entry(
+        "MethodHandle:" + owner + "." + name + ":" + descriptor,
+        new Bytes().u1(15).u1(6).u2(methodRef(owner, name, descriptor)),
+        1);
+  }
+
+  // NOTE: ブートストラップメソッドを登録して、その添字を返す。argumentsは定数プールの添字
+  int bootstrapMethod(String owner, String name, String descriptor, int... arguments) {
+    Bytes bootstrap = new Bytes().u2(methodHandle(owner, name, descriptor)).u2(arguments.length);
+    for (int argument : arguments) bootstrap.u2(argument);
+    bootstrapMethods.add(bootstrap);
+    return bootstrapMethods.size() - 1;
+  }
+
+  int invokeDynamic(int bootstrap, String name, String descriptor) {
+    return entry(
+        "InvokeDynamic:" + bootstrap + ":" + name + ":" + descriptor,
+        new Bytes().u1(18).u2(bootstrap).u2(nameAndType(name, descriptor)),
+        1);
+  }
+
+  private int memberRef(int tag, String owner, String name, String descriptor) {
+    return entry(
+        tag + ":" + owner + "." + name + ":" + descriptor,
+        new Bytes().u1(tag).u2(classRef(owner)).u2(nameAndType(name, descriptor)),
+        1);
+  }
+
+  // NOTE: 1つのメソッドの命令列。命令ごとにオペランドスタックに積まれている値の型を追いかけ、
+  // ジャンプ先のStackMapTableのフレームを作る。ローカル変数の型はメソッド全体で固定
+  // (呼び出し側が使う前にすべて初期化しておく)とし、フレームにはその型をそのまま書く
+  final class Code {
+    private final Bytes code = new Bytes();
+    private final String[] locals;
+    private final List<String> stack = new ArrayList<>();
+    private int maxStack = 0;
+    // NOTE: gotoやreturnの後ろで、まだどのジャンプの飛び先にもなっていない位置
+    private boolean unreachable = false;
+    // NOTE: 飛び先の位置と、そこでのスタックの型
+    private final Map<Integer, String[]> frames = new TreeMap<>();
+
+    Code(String... locals) {
+      this.locals = locals;
+    }
+
+    int position() {
+      return code.size();
+    }
+
+    boolean isReachable() {
+      return !unreachable;
+    }
+
+    private void op(int opcode) {
+      code.u1(opcode);
+    }
+
+    private void push(String type) {
+      stack.add(type);
+      int size = 0;
+      for (String entry : stack) {
+        size += entry.equals("J") || entry.equals("D") ? 2 : 1;
+      }
+      maxStack = Math.max(maxStack, size);
+    }
+
+    private void pop(int count) {
+      for (int i = 0; i < count; i++) {
+        stack.remove(stack.size() - 1);
+      }
+    }
+
+    // NOTE: 到達しない命令は書かない(StackMapTableのフレームを置けないため)
+    private boolean skip() {
+      return unreachable;
+    }
+
+    void aconstNull() {
+      if (skip()) return;
+      op(0x01);
+      push("Ljava/lang/Object;");
+    }
+
+    void iconst(int value) {
+      if (skip()) return;
+      if (value >= -1 && value <= 5) {
+        op(0x03 + value);
+      } else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE) {
+        op(0x10);
+        code.u1(value);
+      } else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+        op(0x11);
+        code.u2(value);
+      } else {
+        op(0x13);
+        code.u2(integer(value));
+      }
+      push("I");
+    }
+
+    void aload(int local) {
+      if (skip()) return;
+      localOp(0x19, local);
+      push(locals[local]);
+    }
+
+    void astore(int local) {
+      if (skip()) return;
+      localOp(0x3a, local);
+      pop(1);
+    }
+
+    private void localOp(int opcode, int local) {
+      if (local < 256) {
+        op(opcode);
+        code.u1(local);
+      } else {
+        op(0xc4);
+        op(opcode);
+        code.u2(local);
+      }
+    }
+
+    void aaload() {
+      if (skip()) return;
+      op(0x32);
+      pop(2);
+      push("Ljava/lang/Object;");
+    }
+
+    void aastore() {
+      if (skip()) return;
+      op(0x53);
+      pop(3);
+    }
+
+    void anewarray(String internalName) {
+      if (skip()) return;
+      op(0xbd);
+      code.u2(classRef(internalName));
+      pop(1);
+      push("[" + descriptor(internalName));
+    }
+
+    void pop() {
+      if (skip()) return;
+      op(0x57);
+      pop(1);
+    }
+
+    void dup() {
+      if (skip()) return;
+      op(0x59);
+      push(stack.get(stack.size() - 1));
+    }
+
+    void ixor() {
+      if (skip()) return;
+      op(0x82);
+      pop(2);
+      push("I");
+    }
+
+    void checkcast(String internalName) {
+      if (skip()) return;
+      op(0xc0);
+      code.u2(classRef(internalName));
+      pop(1);
+      push(descriptor(internalName));
+    }
+
+    void getfield(String owner, String name, String descriptor) {
+      if (skip()) return;
+      op(0xb4);
+      code.u2(fieldRef(owner, name, descriptor));
+      pop(1);
+      push(verificationType(descriptor));
+    }
+
+    void putfield(String owner, String name, String descriptor) {
+      if (skip()) return;
+      op(0xb5);
+      code.u2(fieldRef(owner, name, descriptor));
+      pop(2);
+    }
+
+    void invokestatic(String owner, String name, String descriptor) {
+      if (skip()) return;
+      op(0xb8);
+      code.u2(methodRef(owner, name, descriptor));
+      invoked(descriptor, 0);
+    }
+
+    void invokevirtual(String owner, String name, String descriptor) {
+      if (skip()) return;
+      op(0xb6);
+      code.u2(methodRef(owner, name, descriptor));
+      invoked(descriptor, 1);
+    }
+
+    void invokespecial(String owner, String name, String descriptor) {
+      if (skip()) return;
+      op(0xb7);
+      code.u2(methodRef(owner, name, descriptor));
+      invoked(descriptor, 1);
+    }
+
+    void invokeinterface(String owner, String name, String descriptor) {
+      if (skip()) return;
+      op(0xb9);
+      code.u2(interfaceMethodRef(owner, name, descriptor));
+      int slots = 1;
+      for (String parameter : parameters(descriptor)) {
+        slots += parameter.equals("J") || parameter.equals("D") ? 2 : 1;
+      }
+      code.u1(slots).u1(0);
+      invoked(descriptor, 1);
+    }
+
+    // NOTE: bootstrapはbootstrapMethodが返した添字
+    void invokedynamic(int bootstrap, String name, String descriptor) {
+      if (skip()) return;
+      op(0xba);
+      code.u2(invokeDynamic(bootstrap, name, descriptor)).u2(0);
+      invoked(descriptor, 0);
+    }
+
+    private void invoked(String descriptor, int receivers) {
+      pop(parameters(descriptor).size() + receivers);
+      String result = descriptor.substring(descriptor.indexOf(')') + 1);
+      if (!result.equals("V")) push(verificationType(result));
+    }
+
+    void areturn() {
+      if (skip()) return;
+      op(0xb0);
+      pop(1);
+      unreachable = true;
+    }
+
+    void vreturn() {
+      if (skip()) return;
+      op(0xb1);
+      unreachable = true;
+    }
+
+    // NOTE: 条件分岐(ifeq, ifneなど)。スタックから1つ取り除いてから飛ぶ
+    void ifeq(Label label) {
+      branch(0x99, label, 1);
+    }
+
+    void ifne(Label label) {
+      branch(0x9a, label, 1);
+    }
+
+    // NOTE: スタックの2つの参照が同じでなければ飛ぶ
+    void ifAcmpne(Label label) {
+      branch(0xa6, label, 2);
+    }
+
+    void jump(Label label) {
+      branch(0xa7, label, 0);
+      unreachable = true;
+    }
+
+    private void branch(int opcode, Label label, int pops) {
+      if (skip()) return;
+      pop(pops);
+
+      int start = position();
+      op(opcode);
+      code.u2(0);
+      label.jumps.add(start);
+      if (label.position != -1) {
+        patch(start, label.position);
+      }
+      label.stack = stack.toArray(new String[0]);
+      if (label.position != -1) frames.put(label.position, label.stack);
+    }
+
+    void bind(Label label) {
+      label.position = position();
+      for (int start : label.jumps) {
+        patch(start, label.position);
+      }
+
+      // NOTE: 前方のジャンプで来るならそのときのスタックに、後方からしか来ないなら今のスタックにする
+      if (!label.jumps.isEmpty()) {
+        if (unreachable) {
+          stack.clear();
+          stack.addAll(Arrays.asList(label.stack));
+        }
+        unreachable = false;
+        frames.put(label.position, label.stack);
+      } else if (!unreachable) {
+        label.stack = stack.toArray(new String[0]);
+      }
+    }
+
+    private void patch(int start, int target) {
+      int offset = target - start;
+      code.set(start + 1, (offset >> 8) & 0xff);
+      code.set(start + 2, offset & 0xff);
+    }
+
+    private void writeTo(Bytes out) {
+      Bytes attribute = new Bytes();
+      attribute.u2(maxStack).u2(locals.length).u4(code.size()).append(code);
+      attribute.u2(0);
+
+      if (frames.isEmpty()) {
+        attribute.u2(0);
+      } else {
+        attribute.u2(1);
+        Bytes table = new Bytes();
+        table.u2(frames.size());
+        int previous = -1;
+        for (Map.Entry<Integer, String[]> frame : frames.entrySet()) {
+          // NOTE: すべてfull_frameで書く
+          table.u1(255).u2(frame.getKey() - previous - 1);
+          previous = frame.getKey();
+          table.u2(locals.length);
+          for (String local : locals) verificationInfo(table, local);
+          table.u2(frame.getValue().length);
+          for (String entry : frame.getValue()) verificationInfo(table, entry);
+        }
+        attribute.u2(utf8("StackMapTable")).u4(table.size()).append(table);
+      }
+
+      out.u2(utf8("Code")).u4(attribute.size()).append(attribute);
+    }
+
+    private void verificationInfo(Bytes out, String type) {
+      if (type.equals("I")) {
+        out.u1(1);
+      } else if (type.startsWith("L")) {
+        out.u1(7).u2(classRef(type.substring(1, type.length() - 1)));
+      } else {
+        out.u1(7).u2(classRef(type));
+      }
+    }
+  }
+
+  // NOTE: ジャンプ先。bindする前のジャンプは後でまとめて飛び先を書き込む
+  static final class Label {
+    private int position = -1;
+    private final List<Integer> jumps = new ArrayList<>();
+    private String[] stack;
+  }
+
+  private static String descriptor(String internalName) {
+    if (internalName.startsWith("[")) return internalName;
+    return "L" + internalName + ";";
+  }
+
+  // NOTE: boolean, byte, char, shortはスタック上ではintとして扱う
+  private static String verificationType(String descriptor) {
+    switch (descriptor.charAt(0)) {
+      case 'Z':
+      case 'B':
+      case 'C':
+      case 'S':
+        return "I";
+      default:
+        return descriptor;
+    }
+  }
+
+  private static List<String> parameters(String descriptor) {
+    List<String> parameters = new ArrayList<>();
+    int i = 1;
+    while (descriptor.charAt(i) != ')') {
+      int start = i;
+      while (descriptor.charAt(i) == '[') i++;
+      if (descriptor.charAt(i) == 'L') i = descriptor.indexOf(';', i);
+      i++;
+      parameters.add(descriptor.substring(start, i));
+    }
+
+    return parameters;
+  }
+
+  // NOTE: big endianで書き足していくbyte列
+  private static final class Bytes {
+    private byte[] data = new byte[64];
+    private int size = 0;
+
+    int size() {
+      return size;
+    }
+
+    private void ensure(int extra) {
+      if (size + extra > data.length) {
+        data = Arrays.copyOf(data, Math.max(data.length * 2, size + extra));
+      }
+    }
+
+    Bytes u1(int value) {
+      ensure(1);
+      data[size++] = (byte) value;
+      return this;
+    }
+
+    Bytes u2(int value) {
+      return u1(value >> 8).u1(value);
+    }
+
+    Bytes u4(int value) {
+      return u2(value >> 16).u2(value);
+    }
+
+    void set(int index, int value) {
+      data[index] = (byte) value;
+    }
+
+    Bytes append(Bytes other) {
+      ensure(other.size);
+      System.arraycopy(other.data, 0, data, size, other.size);
+      size += other.size;
+      return this;
+    }
+
+    // NOTE: classファイルのUTF8は変形UTF-8だが、Loxの識別子や記述子はASCIIなのでそのまま書く
+    void utf8(String value) {
+      byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+      u2(bytes.length);
+      ensure(bytes.length);
+      System.arraycopy(bytes, 0, data, size, bytes.length);
+      size += bytes.length;
+    }
+
+    byte[] toByteArray() {
+      return Arrays.copyOf(data, size);
+    }
+  }
+}
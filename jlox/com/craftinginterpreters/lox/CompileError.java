@@ -0,0 +1,12 @@
+package com.craftinginterpreters.lox;
+
+// NOTE: バックエンド(VmCompiler, RegisterCompiler)が命令のオペランドに収まらないものを見つけたときに投げる。
+// 切り詰めたオペランドで書き続けると壊れたChunkができるので、その場でコンパイルをやめる
+class CompileError extends RuntimeException {
+  final int line;
+
+  CompileError(int line, String message) {
+    super(message);
+    this.line = line;
+  }
+}
@@ -0,0 +1,47 @@
+package com.craftinginterpreters.lox;
+
+// NOTE: NodeCompilerで変換済みの本体を持つ関数。宣言や環境の扱いはLoxFunctionと同じ
+class CompiledFunction extends LoxFunction {
+  private final StmtNode[] body;
+
+  CompiledFunction(
+      Stmt.Function declaration,
+      Environment closure,
+      boolean isInitializer,
+      LoxInstance receiver,
+      StmtNode[] body) {
+    super(declaration, closure, isInitializer, receiver);
+    this.body = body;
+  }
+
+  @Override
+  LoxFunction bind(LoxInstance instance) {
+    return new CompiledFunction(declaration, closure, isInitializer, instance, body);
+  }
+
+  // NOTE: LoxFunction.invokeと同じだが、activateをこのクラスのものとして直接呼べるので、
+  // 再帰の多いコードでも本体までインライン展開されやすい
+  @Override
+  Object invoke(Interpreter interpreter, LoxInstance receiver, Object[] arguments) {
+    Object value = activate(interpreter, receiver, arguments);
+    if (interpreter.tailFunction == null) return value;
+    return trampoline(interpreter, value);
+  }
+
+  @Override
+  Object activate(Interpreter interpreter, LoxInstance receiver, Object[] arguments) {
+    Environment environment = activation(receiver, arguments);
+
+    for (StmtNode statement : body) {
+      Object completion = statement.execute(environment);
+      if (completion == StmtNode.NORMAL) continue;
+
+      if (isInitializer) return receiver;
+      return completion;
+    }
+
+    if (isInitializer) return receiver;
+
+    return null;
+  }
+}
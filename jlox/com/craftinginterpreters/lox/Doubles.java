@@ -0,0 +1,30 @@
+package com.craftinginterpreters.lox;
+
+// NOTE: 箱詰めが避けられない場面のための、よく使う整数値のDoubleのキャッシュ。
+// Double.valueOfはIntegerと違ってキャッシュを持たないため、ループカウンタなどで毎回確保されてしまう
+final class Doubles {
+  private static final int LOW = -128;
+  private static final int HIGH = 1023;
+  private static final Double[] CACHE = new Double[HIGH - LOW + 1];
+
+  static {
+    for (int i = 0; i < CACHE.length; i++) {
+      CACHE[i] = (double) (i + LOW);
+    }
+  }
+
+  private Doubles() {}
+
+  static Double box(double value) {
+    int integer = (int) value;
+    // NOTE: -0.0は0と==で等しくなるが、表示が"-0"になるためキャッシュを使わない
+    if (integer == value
+        && integer >= LOW
+        && integer <= HIGH
+        && (integer != 0 || Double.doubleToRawLongBits(value) == 0L)) {
+      return CACHE[integer - LOW];
+    }
+
+    return value;
+  }
+}
@@ -1,54 +1,117 @@
 package com.craftinginterpreters.lox;
 
-import java.util.HashMap;
-import java.util.Map;
+import java.util.Arrays;
 
+// NOTE: グローバル変数は遅延束縛のため名前で引くが、ローカル変数はResolverが割り当てた
+// (depth, slot) の組で引くため、ハッシュを使わずに配列の添字でアクセスできる。
+// グローバル変数も名前のSymbolのidを添字にした配列に置くので、ハッシュを引かずに済む
 class Environment {
+  private static final int DEFAULT_CAPACITY = 4;
+  // NOTE: 数値はslotsにこの印を置き、値そのものは箱詰めせずnumbersに持つ
+  private static final Object NUMBER = new Object();
+  // NOTE: まだ定義されていないグローバル変数の印。nilはnullなので区別する
+  private static final Object UNDEFINED = new Object();
+
   final Environment enclosing;
-  private final Map<String, Object> values = new HashMap<>();
+  private Object[] values; // グローバル環境のみ
+  private Object[] slots;
+  private double[] numbers;
+  private int count = 0;
 
   Environment() {
     enclosing = null;
+    values = new Object[0];
+    slots = null;
   }
 
   Environment(Environment enclosing) {
+    this(enclosing, DEFAULT_CAPACITY);
+  }
+
+  Environment(Environment enclosing, int capacity) {
     this.enclosing = enclosing;
+    this.values = null;
+    this.slots = new Object[capacity];
   }
 
-  Object get(Token name) {
-    if (values.containsKey(name.lexeme)) {
-      return values.get(name.lexeme);
-    } // ローカルスコープを確認
+  // NOTE: 呼び出し側が評価した引数の配列を、そのまま仮引数のslotとして使う
+  Environment(Environment enclosing, Object[] slots) {
+    this.enclosing = enclosing;
+    this.values = null;
+    this.slots = slots;
+    this.count = slots.length;
+  }
 
-    if (enclosing != null) return enclosing.get(name); // 無ければ再起的に検索し、究極的には全て検索される
+  Object get(Token name) {
+    int id = name.symbol.id;
+    if (id < values.length && values[id] != UNDEFINED) {
+      return values[id];
+    }
 
     throw new RuntimeError(name, "Undefined variable '" + name.lexeme + "'.");
   }
 
   void assign(Token name, Object value) {
-    if (values.containsKey(name.lexeme)) {
-      values.put(name.lexeme, value);
+    int id = name.symbol.id;
+    if (id < values.length && values[id] != UNDEFINED) {
+      values[id] = value;
       return;
     }
 
-    if (enclosing != null) {
-      enclosing.assign(name, value);
-      return;
+    throw new RuntimeError(name, "Undefined variables '" + name.lexeme + "'.");
+  }
+
+  void define(Symbol name, Object value) {
+    if (name.id >= values.length) {
+      int length = values.length;
+      values = Arrays.copyOf(values, Math.max(name.id + 1, length * 2));
+      Arrays.fill(values, length, values.length, UNDEFINED);
     }
 
-    throw new RuntimeError(name, "Undefined variables '" + name.lexeme + "'.");
+    values[name.id] = value;
+  }
+
+  // NOTE: ローカル変数は宣言順にスロットへ積まれる。Resolverが宣言順にslotを振っているので、
+  // 実行時のdefineの順序と一致する
+  void define(Object value) {
+    if (count == slots.length) {
+      slots = Arrays.copyOf(slots, Math.max(DEFAULT_CAPACITY, count * 2));
+      if (numbers != null) numbers = Arrays.copyOf(numbers, slots.length);
+    }
+
+    slots[count++] = value;
+  }
+
+  Object get(int slot) {
+    Object value = slots[slot];
+    if (value == NUMBER) return Doubles.box(numbers[slot]);
+    return value;
+  }
+
+  void assign(int slot, Object value) {
+    slots[slot] = value;
+  }
+
+  boolean isNumber(int slot) {
+    return slots[slot] == NUMBER;
+  }
+
+  double getNumber(int slot) {
+    return numbers[slot];
   }
 
-  void define(String name, Object value) {
-    values.put(name, value);
+  void assignNumber(int slot, double value) {
+    if (numbers == null) numbers = new double[slots.length];
+    slots[slot] = NUMBER;
+    numbers[slot] = value;
   }
 
-  Object getAt(int distance, String name) {
-    return ancestor(distance).values.get(name);
+  Object getAt(int distance, int slot) {
+    return ancestor(distance).get(slot);
   }
 
-  void assignAt(int distance, Token name, Object value) {
-    ancestor(distance).values.put(name.lexeme, value);
+  void assignAt(int distance, int slot, Object value) {
+    ancestor(distance).assign(slot, value);
   }
 
   Environment ancestor(int distance) {
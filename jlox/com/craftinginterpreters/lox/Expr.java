@@ -14,6 +14,8 @@ abstract class Expr {
 
     R visitGroupingExpr(Grouping expr);
 
+    R visitInvariantExpr(Invariant expr);
+
     R visitLiteralExpr(Literal expr);
 
     R visitLogicalExpr(Logical expr);
@@ -42,6 +44,12 @@ abstract class Expr {
 
     final Token name;
     final Expr value;
+
+    int depth = -1;
+    int slot;
+    int frameSlot = -1;
+    int heapDepth;
+    int heapSlot;
   }
 
   static class Binary extends Expr {
@@ -91,6 +99,11 @@ abstract class Expr {
 
     final Expr object;
     final Token name;
+
+    Shape cachedShape;
+    int cachedIndex;
+    LoxClass cachedClass;
+    LoxFunction cachedMethod;
   }
 
   static class Grouping extends Expr {
@@ -106,6 +119,21 @@ abstract class Expr {
     final Expr expression;
   }
 
+  static class Invariant extends Expr {
+    Invariant(Expr expression) {
+      this.expression = expression;
+    }
+
+    @Override
+    <R> R accept(Visitor<R> visitor) {
+      return visitor.visitInvariantExpr(this);
+    }
+
+    final Expr expression;
+
+    int frameSlot;
+  }
+
   static class Literal extends Expr {
     Literal(Object value) {
       this.value = value;
@@ -151,6 +179,10 @@ abstract class Expr {
     final Expr object;
     final Token name;
     final Expr value;
+
+    Shape cachedShape;
+    Shape cachedNextShape;
+    int cachedIndex;
   }
 
   static class Super extends Expr {
@@ -166,6 +198,12 @@ abstract class Expr {
 
     final Token keyword;
     final Token method;
+
+    int depth = -1;
+    int slot;
+    int heapDepth;
+    int heapSlot;
+    Expr.This receiver;
   }
 
   static class This extends Expr {
@@ -179,6 +217,12 @@ abstract class Expr {
     }
 
     final Token keyword;
+
+    int depth = -1;
+    int slot;
+    int frameSlot = -1;
+    int heapDepth;
+    int heapSlot;
   }
 
   static class Unary extends Expr {
@@ -207,6 +251,12 @@ abstract class Expr {
     }
 
     final Token name;
+
+    int depth = -1;
+    int slot;
+    int frameSlot = -1;
+    int heapDepth;
+    int heapSlot;
   }
 
   abstract <R> R accept(Visitor<R> visitor);
@@ -0,0 +1,1184 @@
+package com.craftinginterpreters.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// NOTE: NodeCompilerが解決済みのExprを一度だけ変換した実行用のノード。
+// 評価のたびにVisitorの二重ディスパッチやoperator.typeのswitchを通らずに済む。
+// Add, Get, Callは最初に見た値の型に合わせて特殊化したノードへ自分を書き換え、
+// 想定が外れたら汎用のノードへ戻す。
+// 数値や真偽値が欲しい文脈ではevaluateNumber/evaluateConditionを呼び、Doubleへの箱詰めを避ける
+abstract class ExprNode extends Node {
+  abstract Object evaluate(Environment environment);
+
+  // NOTE: 数値を期待する文脈から呼ぶ。数値でなければUnexpectedResultに実際の値を載せて投げる
+  double evaluateNumber(Environment environment) throws UnexpectedResult {
+    Object value = evaluate(environment);
+    if (value instanceof Double) return (double) value;
+    throw new UnexpectedResult(value);
+  }
+
+  // NOTE: if/whileの条件など、真偽だけが欲しい文脈から呼ぶ
+  boolean evaluateCondition(Environment environment) {
+    return Interpreter.isTruthy(evaluate(environment));
+  }
+
+  // NOTE: 式文など、値を使わない文脈から呼ぶ
+  void evaluateVoid(Environment environment) {
+    evaluate(environment);
+  }
+
+  // NOTE: 末尾位置の呼び出し(return f(x);)から呼ぶ。呼び出しのノードは、Loxの関数なら呼ばずに
+  // Interpreterに置き、呼び出し元のLoxFunction.invokeが今の本体から戻った後に実行する
+  Object evaluateTail(Environment environment) {
+    return evaluate(environment);
+  }
+
+  static class Constant extends ExprNode {
+    Constant(Object value) {
+      this.value = value;
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      return value;
+    }
+
+    final Object value;
+  }
+
+  static class NumberConstant extends ExprNode {
+    NumberConstant(double value) {
+      this.value = value;
+      this.boxed = value;
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      return boxed;
+    }
+
+    @Override
+    double evaluateNumber(Environment environment) {
+      return value;
+    }
+
+    final double value;
+    final Double boxed;
+  }
+
+  // NOTE: 同じ環境(depth 0)の変数はancestorを辿らずに直接slotを読む
+  static class LocalGet extends ExprNode {
+    LocalGet(int slot) {
+      this.slot = slot;
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      return environment.get(slot);
+    }
+
+    @Override
+    double evaluateNumber(Environment environment) throws UnexpectedResult {
+      return number(environment, slot);
+    }
+
+    // NOTE: 数値のまま格納されていれば箱から出す手間もない
+    static double number(Environment environment, int slot) throws UnexpectedResult {
+      if (environment.isNumber(slot)) return environment.getNumber(slot);
+
+      Object value = environment.get(slot);
+      if (value instanceof Double) return (double) value;
+      throw new UnexpectedResult(value);
+    }
+
+    final int slot;
+  }
+
+  static class OuterGet extends ExprNode {
+    OuterGet(int depth, int slot) {
+      this.depth = depth;
+      this.slot = slot;
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      return environment.getAt(depth, slot);
+    }
+
+    @Override
+    double evaluateNumber(Environment environment) throws UnexpectedResult {
+      return LocalGet.number(environment.ancestor(depth), slot);
+    }
+
+    final int depth;
+    final int slot;
+  }
+
+  static class GlobalGet extends ExprNode {
+    GlobalGet(Environment globals, Token name) {
+      this.globals = globals;
+      this.name = name;
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      return globals.get(name);
+    }
+
+    final Environment globals;
+    final Token name;
+  }
+
+  // NOTE: まだ一度も評価していないローカル変数への代入。代入した値が数値ならLocalSetNumberへ、
+  // それ以外ならLocalSetGenericへ書き換わる
+  static class LocalSet extends AbstractLocalSet {
+    LocalSet(int depth, int slot, ExprNode value) {
+      super(depth, slot, value);
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      Object value = this.value.evaluate(environment);
+
+      if (value instanceof Double) {
+        replace(new LocalSetNumber(depth, slot, this.value));
+        environment.ancestor(depth).assignNumber(slot, (double) value);
+      } else {
+        replace(new LocalSetGeneric(depth, slot, this.value));
+        environment.assignAt(depth, slot, value);
+      }
+
+      return value;
+    }
+  }
+
+  // NOTE: 値を箱詰めせずに数値用の格納場所へ書き込む
+  static class LocalSetNumber extends AbstractLocalSet {
+    LocalSetNumber(int depth, int slot, ExprNode value) {
+      super(depth, slot, value);
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      try {
+        return Doubles.box(evaluateNumber(environment));
+      } catch (UnexpectedResult e) {
+        return e.result;
+      }
+    }
+
+    @Override
+    double evaluateNumber(Environment environment) throws UnexpectedResult {
+      double value;
+      try {
+        value = this.value.evaluateNumber(environment);
+      } catch (UnexpectedResult e) {
+        replace(new LocalSetGeneric(depth, slot, this.value));
+        environment.assignAt(depth, slot, e.result);
+        throw e;
+      }
+
+      environment.ancestor(depth).assignNumber(slot, value);
+      return value;
+    }
+
+    @Override
+    void evaluateVoid(Environment environment) {
+      try {
+        evaluateNumber(environment);
+      } catch (UnexpectedResult e) {
+        // NOTE: 代入自体はevaluateNumberの中で済んでいる
+      }
+    }
+  }
+
+  static class LocalSetGeneric extends AbstractLocalSet {
+    LocalSetGeneric(int depth, int slot, ExprNode value) {
+      super(depth, slot, value);
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      Object value = this.value.evaluate(environment);
+      environment.assignAt(depth, slot, value);
+      return value;
+    }
+  }
+
+  abstract static class AbstractLocalSet extends ExprNode {
+    AbstractLocalSet(int depth, int slot, ExprNode value) {
+      this.depth = depth;
+      this.slot = slot;
+      this.value = adopt(value);
+    }
+
+    @Override
+    void replaceChild(Node child, Node replacement) {
+      if (value == child) value = (ExprNode) replacement;
+    }
+
+    final int depth;
+    final int slot;
+    ExprNode value;
+  }
+
+  static class GlobalSet extends ExprNode {
+    GlobalSet(Environment globals, Token name, ExprNode value) {
+      this.globals = globals;
+      this.name = name;
+      this.value = adopt(value);
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      Object value = this.value.evaluate(environment);
+      globals.assign(name, value);
+      return value;
+    }
+
+    @Override
+    void replaceChild(Node child, Node replacement) {
+      if (value == child) value = (ExprNode) replacement;
+    }
+
+    final Environment globals;
+    final Token name;
+    ExprNode value;
+  }
+
+  // NOTE: 二項演算は演算子ごとにノードを分けておき、評価時にoperator.typeを見ない
+  abstract static class Binary extends ExprNode {
+    Binary(ExprNode left, Token operator, ExprNode right) {
+      this.left = adopt(left);
+      this.operator = operator;
+      this.right = adopt(right);
+    }
+
+    // NOTE: 数値しか受け付けない演算子用。木の巡回と同じく、左辺が数値でなくても
+    // 右辺を評価してからエラーにする
+    double leftNumber(Environment environment) {
+      try {
+        return left.evaluateNumber(environment);
+      } catch (UnexpectedResult e) {
+        right.evaluate(environment);
+        throw new RuntimeError(operator, "Operands must be a strings.");
+      }
+    }
+
+    double rightNumber(Environment environment) {
+      try {
+        return right.evaluateNumber(environment);
+      } catch (UnexpectedResult e) {
+        throw new RuntimeError(operator, "Operands must be a strings.");
+      }
+    }
+
+    @Override
+    void replaceChild(Node child, Node replacement) {
+      if (left == child) left = (ExprNode) replacement;
+      if (right == child) right = (ExprNode) replacement;
+    }
+
+    ExprNode left;
+    final Token operator;
+    ExprNode right;
+  }
+
+  // NOTE: まだ一度も評価していない+。最初に見たオペランドの型で次のいずれかに書き換わる
+  // - AddNumbers: 数値同士
+  // - ConcatStrings: 文字列同士
+  // - AddGeneric: それ以外、または特殊化の想定が外れたあと
+  static class Add extends Binary {
+    Add(ExprNode left, Token operator, ExprNode right) {
+      super(left, operator, right);
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      Object left = this.left.evaluate(environment);
+      Object right = this.right.evaluate(environment);
+
+      if (left instanceof Double && right instanceof Double) {
+        replace(new AddNumbers(this.left, operator, this.right));
+      } else if (LoxString.isString(left) && LoxString.isString(right)) {
+        replace(new ConcatStrings(this.left, operator, this.right));
+      } else {
+        replace(new AddGeneric(this.left, operator, this.right));
+      }
+
+      return AddGeneric.add(operator, left, right);
+    }
+  }
+
+  static class AddNumbers extends Binary {
+    AddNumbers(ExprNode left, Token operator, ExprNode right) {
+      super(left, operator, right);
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      try {
+        return Doubles.box(evaluateNumber(environment));
+      } catch (UnexpectedResult e) {
+        return e.result;
+      }
+    }
+
+    @Override
+    double evaluateNumber(Environment environment) throws UnexpectedResult {
+      double left;
+      try {
+        left = this.left.evaluateNumber(environment);
+      } catch (UnexpectedResult e) {
+        return generalize(e.result, this.right.evaluate(environment));
+      }
+
+      double right;
+      try {
+        right = this.right.evaluateNumber(environment);
+      } catch (UnexpectedResult e) {
+        return generalize(Doubles.box(left), e.result);
+      }
+
+      return left + right;
+    }
+
+    // NOTE: 数値同士という想定が外れたので汎用の+に書き換え、その結果が数値でなければ呼び出し元へ伝える
+    private double generalize(Object left, Object right) throws UnexpectedResult {
+      replace(new AddGeneric(this.left, operator, this.right));
+
+      Object result = AddGeneric.add(operator, left, right);
+      if (result instanceof Double) return (double) result;
+      throw new UnexpectedResult(result);
+    }
+  }
+
+  static class ConcatStrings extends Binary {
+    ConcatStrings(ExprNode left, Token operator, ExprNode right) {
+      super(left, operator, right);
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      Object left = this.left.evaluate(environment);
+      Object right = this.right.evaluate(environment);
+
+      if (LoxString.isString(left) && LoxString.isString(right)) {
+        return LoxString.concat(left, right);
+      }
+
+      replace(new AddGeneric(this.left, operator, this.right));
+      return AddGeneric.add(operator, left, right);
+    }
+  }
+
+  static class AddGeneric extends Binary {
+    AddGeneric(ExprNode left, Token operator, ExprNode right) {
+      super(left, operator, right);
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      return add(operator, left.evaluate(environment), right.evaluate(environment));
+    }
+
+    static Object add(Token operator, Object left, Object right) {
+      if (left instanceof Double && right instanceof Double) {
+        return (double) left + (double) right;
+      } // 数値計算のケース
+
+      if (LoxString.isString(left) && LoxString.isString(right)) {
+        return LoxString.concat(left, right);
+      } // 文字列結合のケース
+
+      throw new RuntimeError(operator, "Operands must be two number or two strings.");
+    }
+  }
+
+  static class Subtract extends Binary {
+    Subtract(ExprNode left, Token operator, ExprNode right) {
+      super(left, operator, right);
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      return Doubles.box(evaluateNumber(environment));
+    }
+
+    @Override
+    double evaluateNumber(Environment environment) {
+      double left = leftNumber(environment);
+      return left - rightNumber(environment);
+    }
+  }
+
+  static class Multiply extends Binary {
+    Multiply(ExprNode left, Token operator, ExprNode right) {
+      super(left, operator, right);
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      return Doubles.box(evaluateNumber(environment));
+    }
+
+    @Override
+    double evaluateNumber(Environment environment) {
+      double left = leftNumber(environment);
+      return left * rightNumber(environment);
+    }
+  }
+
+  static class Divide extends Binary {
+    Divide(ExprNode left, Token operator, ExprNode right) {
+      super(left, operator, right);
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      return Doubles.box(evaluateNumber(environment));
+    }
+
+    @Override
+    double evaluateNumber(Environment environment) {
+      double left = leftNumber(environment);
+      return left / rightNumber(environment);
+    }
+  }
+
+  static class Greater extends Binary {
+    Greater(ExprNode left, Token operator, ExprNode right) {
+      super(left, operator, right);
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      return evaluateCondition(environment);
+    }
+
+    @Override
+    boolean evaluateCondition(Environment environment) {
+      double left = leftNumber(environment);
+      return left > rightNumber(environment);
+    }
+  }
+
+  static class GreaterEqual extends Binary {
+    GreaterEqual(ExprNode left, Token operator, ExprNode right) {
+      super(left, operator, right);
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      return evaluateCondition(environment);
+    }
+
+    @Override
+    boolean evaluateCondition(Environment environment) {
+      double left = leftNumber(environment);
+      return left >= rightNumber(environment);
+    }
+  }
+
+  static class Less extends Binary {
+    Less(ExprNode left, Token operator, ExprNode right) {
+      super(left, operator, right);
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      return evaluateCondition(environment);
+    }
+
+    @Override
+    boolean evaluateCondition(Environment environment) {
+      double left = leftNumber(environment);
+      return left < rightNumber(environment);
+    }
+  }
+
+  static class LessEqual extends Binary {
+    LessEqual(ExprNode left, Token operator, ExprNode right) {
+      super(left, operator, right);
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      return evaluateCondition(environment);
+    }
+
+    @Override
+    boolean evaluateCondition(Environment environment) {
+      double left = leftNumber(environment);
+      return left <= rightNumber(environment);
+    }
+  }
+
+  static class Equal extends Binary {
+    Equal(ExprNode left, Token operator, ExprNode right) {
+      super(left, operator, right);
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      return evaluateCondition(environment);
+    }
+
+    @Override
+    boolean evaluateCondition(Environment environment) {
+      Object left = this.left.evaluate(environment);
+      Object right = this.right.evaluate(environment);
+      return Interpreter.isEqual(left, right);
+    }
+  }
+
+  static class NotEqual extends Binary {
+    NotEqual(ExprNode left, Token operator, ExprNode right) {
+      super(left, operator, right);
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      return evaluateCondition(environment);
+    }
+
+    @Override
+    boolean evaluateCondition(Environment environment) {
+      Object left = this.left.evaluate(environment);
+      Object right = this.right.evaluate(environment);
+      return !Interpreter.isEqual(left, right);
+    }
+  }
+
+  static class And extends ExprNode {
+    And(ExprNode left, ExprNode right) {
+      this.left = adopt(left);
+      this.right = adopt(right);
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      Object left = this.left.evaluate(environment);
+      if (!Interpreter.isTruthy(left)) return left;
+      return right.evaluate(environment);
+    }
+
+    @Override
+    boolean evaluateCondition(Environment environment) {
+      return left.evaluateCondition(environment) && right.evaluateCondition(environment);
+    }
+
+    @Override
+    void replaceChild(Node child, Node replacement) {
+      if (left == child) left = (ExprNode) replacement;
+      if (right == child) right = (ExprNode) replacement;
+    }
+
+    ExprNode left;
+    ExprNode right;
+  }
+
+  static class Or extends ExprNode {
+    Or(ExprNode left, ExprNode right) {
+      this.left = adopt(left);
+      this.right = adopt(right);
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      Object left = this.left.evaluate(environment);
+      if (Interpreter.isTruthy(left)) return left;
+      return right.evaluate(environment);
+    }
+
+    @Override
+    boolean evaluateCondition(Environment environment) {
+      return left.evaluateCondition(environment) || right.evaluateCondition(environment);
+    }
+
+    @Override
+    void replaceChild(Node child, Node replacement) {
+      if (left == child) left = (ExprNode) replacement;
+      if (right == child) right = (ExprNode) replacement;
+    }
+
+    ExprNode left;
+    ExprNode right;
+  }
+
+  static class Negate extends ExprNode {
+    Negate(Token operator, ExprNode right) {
+      this.operator = operator;
+      this.right = adopt(right);
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      return Doubles.box(evaluateNumber(environment));
+    }
+
+    @Override
+    double evaluateNumber(Environment environment) {
+      try {
+        return -right.evaluateNumber(environment);
+      } catch (UnexpectedResult e) {
+        throw new RuntimeError(operator, "Operand must be a number.");
+      }
+    }
+
+    @Override
+    void replaceChild(Node child, Node replacement) {
+      if (right == child) right = (ExprNode) replacement;
+    }
+
+    final Token operator;
+    ExprNode right;
+  }
+
+  static class Not extends ExprNode {
+    Not(ExprNode right) {
+      this.right = adopt(right);
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      return evaluateCondition(environment);
+    }
+
+    @Override
+    boolean evaluateCondition(Environment environment) {
+      return !right.evaluateCondition(environment);
+    }
+
+    @Override
+    void replaceChild(Node child, Node replacement) {
+      if (right == child) right = (ExprNode) replacement;
+    }
+
+    ExprNode right;
+  }
+
+  abstract static class AbstractCall extends ExprNode {
+    AbstractCall(Interpreter interpreter, ExprNode callee, Token paren, ExprNode[] arguments) {
+      this.interpreter = interpreter;
+      this.callee = adopt(callee);
+      this.paren = paren;
+      this.arguments = adopt(arguments);
+    }
+
+    Object[] evaluateArguments(Environment environment) {
+      Object[] arguments = new Object[this.arguments.length];
+      for (int i = 0; i < arguments.length; i++) {
+        arguments[i] = this.arguments[i].evaluate(environment);
+      }
+
+      return arguments;
+    }
+
+    // NOTE: 特殊化したノードへの書き換えはevaluateに任せ、ここでは毎回呼び先を確かめる
+    @Override
+    Object evaluateTail(Environment environment) {
+      Object callee = this.callee.evaluate(environment);
+      return GenericCall.tailCall(interpreter, paren, callee, evaluateArguments(environment));
+    }
+
+    @Override
+    void replaceChild(Node child, Node replacement) {
+      if (callee == child) callee = (ExprNode) replacement;
+      for (int i = 0; i < arguments.length; i++) {
+        if (arguments[i] == child) arguments[i] = (ExprNode) replacement;
+      }
+    }
+
+    final Interpreter interpreter;
+    ExprNode callee;
+    final Token paren;
+    final ExprNode[] arguments;
+  }
+
+  // NOTE: まだ一度も評価していない呼び出し。呼び先がLoxの関数ならFunctionCallへ、
+  // それ以外(クラス、ネイティブ関数など)ならGenericCallへ書き換わる
+  static class Call extends AbstractCall {
+    Call(Interpreter interpreter, ExprNode callee, Token paren, ExprNode[] arguments) {
+      super(interpreter, callee, paren, arguments);
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      Object callee = this.callee.evaluate(environment);
+      Object[] arguments = evaluateArguments(environment);
+
+      if (callee instanceof CompiledFunction
+          && ((CompiledFunction) callee).arity() == arguments.length) {
+        replace(
+            new FunctionCall(
+                interpreter,
+                this.callee,
+                paren,
+                this.arguments,
+                ((CompiledFunction) callee).declaration));
+      } else {
+        replace(new GenericCall(interpreter, this.callee, paren, this.arguments));
+      }
+
+      return GenericCall.call(interpreter, paren, callee, arguments);
+    }
+  }
+
+  // NOTE: 同じ宣言から作られた関数(クロージャやbind済みメソッドを含む)だけを呼ぶ呼び出し。
+  // 引数の数は書き換え時に確認済みなので、LoxCallableかどうかやarityの確認を省ける
+  static class FunctionCall extends AbstractCall {
+    FunctionCall(
+        Interpreter interpreter,
+        ExprNode callee,
+        Token paren,
+        ExprNode[] arguments,
+        Stmt.Function declaration) {
+      super(interpreter, callee, paren, arguments);
+      this.declaration = declaration;
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      Object callee = this.callee.evaluate(environment);
+      Object[] arguments = evaluateArguments(environment);
+
+      if (callee instanceof CompiledFunction
+          && ((CompiledFunction) callee).declaration == declaration) {
+        return ((CompiledFunction) callee).call(interpreter, arguments);
+      }
+
+      replace(new GenericCall(interpreter, this.callee, paren, this.arguments));
+      return GenericCall.call(interpreter, paren, callee, arguments);
+    }
+
+    final Stmt.Function declaration;
+  }
+
+  static class GenericCall extends AbstractCall {
+    GenericCall(Interpreter interpreter, ExprNode callee, Token paren, ExprNode[] arguments) {
+      super(interpreter, callee, paren, arguments);
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      Object callee = this.callee.evaluate(environment);
+      return call(interpreter, paren, callee, evaluateArguments(environment));
+    }
+
+    static Object call(Interpreter interpreter, Token paren, Object callee, Object[] arguments) {
+      if (!(callee instanceof LoxCallable)) {
+        throw new RuntimeError(paren, "Can only call functions and classes.");
+      }
+
+      LoxCallable function = (LoxCallable) callee;
+      checkArity(paren, function, arguments);
+      return function.call(interpreter, arguments);
+    }
+
+    // NOTE: クラスやネイティブ関数はその場で呼ぶ
+    static Object tailCall(
+        Interpreter interpreter, Token paren, Object callee, Object[] arguments) {
+      if (!(callee instanceof LoxFunction)) return call(interpreter, paren, callee, arguments);
+
+      LoxFunction function = (LoxFunction) callee;
+      checkArity(paren, function, arguments);
+      interpreter.scheduleTailCall(function, function.receiver, arguments);
+      return null;
+    }
+
+    static void checkArity(Token paren, LoxCallable function, Object[] arguments) {
+      if (arguments.length != function.arity()) {
+        throw new RuntimeError(
+            paren,
+            "Expected " + function.arity() + " arguments but got " + arguments.length + ".");
+      }
+    }
+  }
+
+  // NOTE: obj.method(...)の形の呼び出し。メソッドならbindした関数を作らずに、
+  // レシーバを渡して直接呼ぶ(LoxFunction.invoke)
+  abstract static class AbstractInvoke extends ExprNode {
+    AbstractInvoke(
+        Interpreter interpreter, ExprNode object, Token name, Token paren, ExprNode[] arguments) {
+      this.interpreter = interpreter;
+      this.object = adopt(object);
+      this.name = name;
+      this.paren = paren;
+      this.arguments = adopt(arguments);
+    }
+
+    Object[] evaluateArguments(Environment environment) {
+      Object[] arguments = new Object[this.arguments.length];
+      for (int i = 0; i < arguments.length; i++) {
+        arguments[i] = this.arguments[i].evaluate(environment);
+      }
+
+      return arguments;
+    }
+
+    @Override
+    Object evaluateTail(Environment environment) {
+      Object object = this.object.evaluate(environment);
+
+      if (object instanceof LoxInstance && !((LoxInstance) object).hasField(name.symbol)) {
+        LoxFunction method = ((LoxInstance) object).klass.findMethod(name.symbol);
+        if (method != null) {
+          Object[] arguments = evaluateArguments(environment);
+          GenericCall.checkArity(paren, method, arguments);
+          interpreter.scheduleTailCall(method, (LoxInstance) object, arguments);
+          return null;
+        }
+      }
+
+      Object callee = GenericGet.get(name, object);
+      return GenericCall.tailCall(interpreter, paren, callee, evaluateArguments(environment));
+    }
+
+    @Override
+    void replaceChild(Node child, Node replacement) {
+      if (object == child) object = (ExprNode) replacement;
+      for (int i = 0; i < arguments.length; i++) {
+        if (arguments[i] == child) arguments[i] = (ExprNode) replacement;
+      }
+    }
+
+    final Interpreter interpreter;
+    ExprNode object;
+    final Token name;
+    final Token paren;
+    final ExprNode[] arguments;
+  }
+
+  // NOTE: まだ一度も評価していないメソッド呼び出し。引数の数が合うメソッドを呼んでいれば
+  // そのクラス専用のMethodInvokeへ、それ以外(フィールドに入った関数など)はGenericInvokeへ書き換わる
+  static class Invoke extends AbstractInvoke {
+    Invoke(
+        Interpreter interpreter, ExprNode object, Token name, Token paren, ExprNode[] arguments) {
+      super(interpreter, object, name, paren, arguments);
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      Object object = this.object.evaluate(environment);
+
+      if (object instanceof LoxInstance && !((LoxInstance) object).hasField(name.symbol)) {
+        LoxClass klass = ((LoxInstance) object).klass;
+        LoxFunction method = klass.findMethod(name.symbol);
+        if (method != null && method.arity() == arguments.length) {
+          replace(
+              new MethodInvoke(
+                  interpreter, this.object, name, paren, this.arguments, klass, method));
+          Object[] arguments = evaluateArguments(environment);
+          return method.invoke(interpreter, (LoxInstance) object, arguments);
+        }
+      }
+
+      replace(new GenericInvoke(interpreter, this.object, name, paren, this.arguments));
+      Object callee = GenericGet.get(name, object);
+      return GenericCall.call(interpreter, paren, callee, evaluateArguments(environment));
+    }
+  }
+
+  // NOTE: 単相(monomorphic)のメソッド呼び出し。引数の数は書き換え時に確認済み
+  static class MethodInvoke extends AbstractInvoke {
+    MethodInvoke(
+        Interpreter interpreter,
+        ExprNode object,
+        Token name,
+        Token paren,
+        ExprNode[] arguments,
+        LoxClass klass,
+        LoxFunction method) {
+      super(interpreter, object, name, paren, arguments);
+      this.klass = klass;
+      this.method = method;
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      Object object = this.object.evaluate(environment);
+
+      if (object instanceof LoxInstance) {
+        LoxInstance instance = (LoxInstance) object;
+        if (instance.klass == klass && !instance.hasField(name.symbol)) {
+          Object[] arguments = evaluateArguments(environment);
+          return method.invoke(interpreter, instance, arguments);
+        }
+      }
+
+      replace(new GenericInvoke(interpreter, this.object, name, paren, this.arguments));
+      Object callee = GenericGet.get(name, object);
+      return GenericCall.call(interpreter, paren, callee, evaluateArguments(environment));
+    }
+
+    final LoxClass klass;
+    final LoxFunction method;
+  }
+
+  static class GenericInvoke extends AbstractInvoke {
+    GenericInvoke(
+        Interpreter interpreter, ExprNode object, Token name, Token paren, ExprNode[] arguments) {
+      super(interpreter, object, name, paren, arguments);
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      Object callee = GenericGet.get(name, object.evaluate(environment));
+      return GenericCall.call(interpreter, paren, callee, evaluateArguments(environment));
+    }
+  }
+
+  abstract static class AbstractGet extends ExprNode {
+    AbstractGet(ExprNode object, Token name) {
+      this.object = adopt(object);
+      this.name = name;
+    }
+
+    @Override
+    void replaceChild(Node child, Node replacement) {
+      if (object == child) object = (ExprNode) replacement;
+    }
+
+    ExprNode object;
+    final Token name;
+  }
+
+  // NOTE: まだ一度も評価していないプロパティ参照。インスタンスのフィールドを読んでいれば
+  // そのShape専用のFieldGetへ、メソッドを取り出していればそのクラス専用のMethodGetへ、
+  // それ以外はGenericGetへ書き換わる
+  static class Get extends AbstractGet {
+    Get(ExprNode object, Token name) {
+      super(object, name);
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      Object object = this.object.evaluate(environment);
+
+      if (object instanceof LoxInstance && ((LoxInstance) object).hasField(name.symbol)) {
+        LoxInstance instance = (LoxInstance) object;
+        int index = instance.shape.indexOf(name.symbol);
+        replace(new FieldGet(this.object, name, instance.shape, index));
+        return instance.getField(index);
+      }
+
+      if (object instanceof LoxInstance) {
+        LoxClass klass = ((LoxInstance) object).klass;
+        LoxFunction method = klass.findMethod(name.symbol);
+        if (method != null) {
+          replace(new MethodGet(this.object, name, klass, method));
+          return method.bind((LoxInstance) object);
+        }
+      }
+
+      replace(new GenericGet(this.object, name));
+      return GenericGet.get(name, object);
+    }
+  }
+
+  // NOTE: 単相(monomorphic)のフィールド参照。Shapeが同じならフィールドの位置も同じ
+  static class FieldGet extends AbstractGet {
+    FieldGet(ExprNode object, Token name, Shape shape, int index) {
+      super(object, name);
+      this.shape = shape;
+      this.index = index;
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      Object object = this.object.evaluate(environment);
+
+      if (object instanceof LoxInstance && ((LoxInstance) object).shape == shape) {
+        return ((LoxInstance) object).getField(index);
+      }
+
+      replace(new GenericGet(this.object, name));
+      return GenericGet.get(name, object);
+    }
+
+    final Shape shape;
+    final int index;
+  }
+
+  // NOTE: 単相(monomorphic)のメソッド参照。クラスが同じならスーパークラスを辿る
+  // findMethodを省き、覚えておいたメソッドをそのままbindする
+  static class MethodGet extends AbstractGet {
+    MethodGet(ExprNode object, Token name, LoxClass klass, LoxFunction method) {
+      super(object, name);
+      this.klass = klass;
+      this.method = method;
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      Object object = this.object.evaluate(environment);
+
+      if (object instanceof LoxInstance) {
+        LoxInstance instance = (LoxInstance) object;
+        if (instance.klass == klass && !instance.hasField(name.symbol)) {
+          return method.bind(instance);
+        }
+      }
+
+      replace(new GenericGet(this.object, name));
+      return GenericGet.get(name, object);
+    }
+
+    final LoxClass klass;
+    final LoxFunction method;
+  }
+
+  static class GenericGet extends AbstractGet {
+    GenericGet(ExprNode object, Token name) {
+      super(object, name);
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      return get(name, object.evaluate(environment));
+    }
+
+    static Object get(Token name, Object object) {
+      if (object instanceof LoxInstance) {
+        return ((LoxInstance) object).get(name);
+      }
+
+      throw new RuntimeError(name, "Only instances have properties.");
+    }
+  }
+
+  static class Set extends ExprNode {
+    Set(ExprNode object, Token name, ExprNode value) {
+      this.object = adopt(object);
+      this.name = name;
+      this.value = adopt(value);
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      Object object = this.object.evaluate(environment);
+
+      if (!(object instanceof LoxInstance)) {
+        throw new RuntimeError(name, "Only instance have fields.");
+      }
+      Object value = this.value.evaluate(environment);
+
+      // NOTE: Interpreter.visitSetExprと同じく、前回と同じShapeなら格納位置と格納後のShapeを使い回す
+      LoxInstance instance = (LoxInstance) object;
+      if (instance.shape == cachedShape) {
+        instance.store(cachedNextShape, cachedIndex, value);
+      } else {
+        cachedShape = instance.shape;
+        instance.set(name, value);
+        cachedNextShape = instance.shape;
+        cachedIndex = instance.shape.indexOf(name.symbol);
+      }
+
+      return value;
+    }
+
+    @Override
+    void replaceChild(Node child, Node replacement) {
+      if (object == child) object = (ExprNode) replacement;
+      if (value == child) value = (ExprNode) replacement;
+    }
+
+    ExprNode object;
+    final Token name;
+    ExprNode value;
+
+    private Shape cachedShape;
+    private Shape cachedNextShape;
+    private int cachedIndex;
+  }
+
+  static class Super extends ExprNode {
+    Super(int depth, int slot, Token method) {
+      this.depth = depth;
+      this.slot = slot;
+      this.method = method;
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      LoxClass superclass = (LoxClass) environment.getAt(depth, slot);
+      // NOTE: thisはsuperの1つ内側、メソッド本体の環境のslot 0にある
+      LoxInstance object = (LoxInstance) environment.getAt(depth - 1, 0);
+
+      LoxFunction method = superclass.findMethod(this.method.symbol);
+
+      if (method == null) {
+        throw new RuntimeError(
+            this.method, "Undefined property '" + this.method.lexeme + "'.");
+      }
+
+      return method.bind(object);
+    }
+
+    final int depth;
+    final int slot;
+    final Token method;
+  }
+
+  // NOTE: 関数本体はコンパイル時に一度だけ変換し、評価のたびにクロージャだけを作る
+  static class Function extends ExprNode {
+    Function(Stmt.Function declaration, StmtNode[] body) {
+      this.declaration = declaration;
+      this.body = body;
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      return new CompiledFunction(declaration, environment, false, null, body);
+    }
+
+    final Stmt.Function declaration;
+    final StmtNode[] body;
+  }
+
+  static class Class extends ExprNode {
+    Class(Token name, ExprNode superclass, Token superclassName, Function[] methods) {
+      this.name = name;
+      this.superclass = adopt(superclass);
+      this.superclassName = superclassName;
+      this.methods = methods;
+    }
+
+    @Override
+    Object evaluate(Environment environment) {
+      Object superclass = null;
+      if (this.superclass != null) {
+        superclass = this.superclass.evaluate(environment);
+        if (!(superclass instanceof LoxClass)) {
+          throw new RuntimeError(superclassName, "Superclass must be class.");
+        }
+
+        environment = new Environment(environment, 1);
+        environment.define(superclass);
+      }
+
+      Map<Symbol, LoxFunction> methods = new HashMap<>();
+      for (Function method : this.methods) {
+        Symbol name = method.declaration.name.symbol;
+        methods.put(
+            name,
+            new CompiledFunction(
+                method.declaration, environment, name == Symbol.INIT, null, method.body));
+      }
+
+      return new LoxClass(name.lexeme, (LoxClass) superclass, methods);
+    }
+
+    @Override
+    void replaceChild(Node child, Node replacement) {
+      if (superclass == child) superclass = (ExprNode) replacement;
+    }
+
+    final Token name;
+    ExprNode superclass;
+    final Token superclassName;
+    final Function[] methods;
+  }
+}
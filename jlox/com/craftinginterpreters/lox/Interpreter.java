@@ -1,19 +1,46 @@
 package com.craftinginterpreters.lox;
 
-import java.util.ArrayList;
+import java.io.PrintStream;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
 // NOTE: 式(expression)は値を返却する(=Object)。文(statement)を示すため値を返却しない(=Void);
 class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
+  // NOTE: Expr.Invariantの値をまだ評価していないことを表す。nilと区別するためnullは使わない
+  static final Object UNEVALUATED = new Object();
+
   final Environment globals = new Environment();
   private Environment environment = globals;
-  private final Map<Expr, Integer> locals = new HashMap<>();
+  // NOTE: 実行中の呼び出しのフレーム。内側の関数に捕捉されないローカル変数はResolverが振った
+  // frameSlotでここに置き、捕捉される変数だけをenvironment(ヒープ上のEnvironment)に置く
+  private Object[] frame;
+  // NOTE: return文は例外を投げずに、ここへ値を置いて「戻り中」であることを示す。
+  // executeBlockとvisitWhileStmtは残りの文を飛ばし、LoxFunction.callがcompleteCallで受け取る
+  private boolean returning = false;
+  private Object returnValue = null;
+  // NOTE: 末尾位置の呼び出し(return f(x);)の呼ばれる関数は、呼ばずにここへ置いて「戻り中」にする。
+  // 呼び出し元のLoxFunction.invokeが今の本体から戻った後に続けて実行する(トランポリン)ので、
+  // 末尾再帰はJavaのスタックを積まない
+  LoxFunction tailFunction = null;
+  LoxInstance tailReceiver = null;
+  Object[] tailArguments = null;
+  // NOTE: trueなら、呼び出し回数がJitCompiler.THRESHOLDに達した関数をJVMのバイトコードにする
+  boolean jit = false;
+  // NOTE: print文の出力先。PrintStreamへの書き込みは1回ごとに同期と(System.outなら)フラッシュが
+  // 起きるので、bufferに溜めてFLUSH_THRESHOLD文字ごと、またはflushを呼ばれたときにまとめて書く
+  private static final int FLUSH_THRESHOLD = 8192;
+  private final PrintStream out;
+  private final StringBuilder buffer = new StringBuilder(FLUSH_THRESHOLD + 256);
 
   Interpreter() {
+    this(System.out);
+  }
+
+  Interpreter(PrintStream out) {
+    this.out = out;
     globals.define(
-        "clock",
+        Symbol.intern("clock"),
         new LoxCallable() {
           @Override
           public int arity() {
@@ -21,7 +48,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
           }
 
           @Override
-          public Object call(Interpreter interpreter, List<Object> arguments) {
+          public Object call(Interpreter interpreter, Object[] arguments) {
             return (double) System.currentTimeMillis() / 1000.0;
           }
 
@@ -43,8 +70,10 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
   }
   */
 
-  void interpret(List<Stmt> statements) {
+  // NOTE: frameSizeはトップレベルのブロックで宣言されるローカル変数の数(Resolver.frameSize)
+  void interpret(List<Stmt> statements, int frameSize) {
     try {
+      frame = new Object[frameSize];
 
       for (Stmt statement : statements) {
         execute(statement);
@@ -54,6 +83,17 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     }
   }
 
+  // NOTE: NodeCompilerでコンパイル済みのプログラムを実行する。トップレベルはグローバル環境で実行される
+  void interpret(StmtNode[] program) {
+    try {
+      for (StmtNode statement : program) {
+        statement.execute(globals);
+      }
+    } catch (RuntimeError error) {
+      Lox.runtimeError(error);
+    }
+  }
+
   @Override
   public Object visitLiteralExpr(Expr.Literal expr) {
     // NOTE: visit*系すべてevaluate(Exprを実装したacceptから呼ばれる)経由
@@ -67,7 +107,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     if (expr.operator.type == TokenType.OR) {
       if (isTruthy(left)) return left;
     } else {
-      if (isTruthy(left)) return left;
+      if (!isTruthy(left)) return left;
     }
 
     return evaluate(expr.right);
@@ -82,17 +122,28 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     }
     Object value = evaluate(expr.value);
 
-    ((LoxInstance) object).set(expr.name, value);
+    setProperty(expr, (LoxInstance) object, value);
     return value;
   }
 
+  // NOTE: 前回と同じShapeなら、格納位置も格納後のShapeも前回と同じになる
+  static void setProperty(Expr.Set expr, LoxInstance instance, Object value) {
+    if (instance.shape == expr.cachedShape) {
+      instance.store(expr.cachedNextShape, expr.cachedIndex, value);
+    } else {
+      expr.cachedShape = instance.shape;
+      instance.set(expr.name, value);
+      expr.cachedNextShape = instance.shape;
+      expr.cachedIndex = instance.shape.indexOf(expr.name.symbol);
+    }
+  }
+
   @Override
   public Object visitSuperExpr(Expr.Super expr) {
-    int distance = locals.get(expr);
-    LoxClass superclass = (LoxClass) environment.getAt(distance, "super");
-    LoxInstance object = (LoxInstance) environment.getAt(distance - 1, "this");
+    LoxClass superclass = (LoxClass) environment.getAt(expr.heapDepth, expr.heapSlot);
+    LoxInstance object = (LoxInstance) evaluate(expr.receiver);
 
-    LoxFunction method = superclass.findMethod(expr.method.lexeme);
+    LoxFunction method = superclass.findMethod(expr.method.symbol);
 
     if (method == null) {
       throw new RuntimeError(expr.method, "Undefined property '" + expr.method.lexeme + "'.");
@@ -103,7 +154,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
   @Override
   public Object visitThisExpr(Expr.This expr) {
-    return lookUpVariable(expr.keyword, expr);
+    return lookUpVariable(expr.keyword, expr.depth, expr.frameSlot, expr.heapDepth, expr.heapSlot);
   }
 
   @Override
@@ -111,6 +162,18 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     return evaluate(expr.expression);
   }
 
+  // NOTE: ループに入ってから最初に評価したときだけ式を評価し、以降の繰り返しではその値を使う
+  @Override
+  public Object visitInvariantExpr(Expr.Invariant expr) {
+    Object value = frame[expr.frameSlot];
+    if (value == UNEVALUATED) {
+      value = evaluate(expr.expression);
+      frame[expr.frameSlot] = value;
+    }
+
+    return value;
+  }
+
   private Object evaluate(Expr expr) {
     return expr.accept(this);
   }
@@ -119,8 +182,15 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     stmt.accept(this);
   }
 
-  void resolve(Expr expr, int depth) {
-    locals.put(expr, depth);
+  // NOTE: グローバルは名前で、ローカルはResolverが決めたフレームかEnvironmentの位置に置く
+  private void define(Token name, int frameSlot, int heapSlot, Object value) {
+    if (frameSlot != -1) {
+      frame[frameSlot] = value;
+    } else if (heapSlot != -1) {
+      environment.assign(heapSlot, value);
+    } else {
+      globals.define(name.symbol, value);
+    }
   }
 
   void executeBlock(List<Stmt> statements, Environment environment) {
@@ -131,15 +201,41 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
       for (Stmt statement : statements) {
         execute(statement);
+        if (returning) break;
       }
     } finally {
       this.environment = previous;
     }
   }
 
+  // NOTE: 関数本体を呼び出しのフレームで実行する。呼び出し元のフレームは戻るときに戻す
+  void executeBody(List<Stmt> statements, Environment environment, Object[] frame) {
+    Object[] previous = this.frame;
+
+    try {
+      this.frame = frame;
+      executeBlock(statements, environment);
+    } finally {
+      this.frame = previous;
+    }
+  }
+
+  // NOTE: 関数本体の実行後に呼び、return文が置いた値を受け取って「戻り中」を解除する
+  Object completeCall() {
+    Object value = returnValue;
+    returning = false;
+    returnValue = null;
+    return value;
+  }
+
   @Override
   public Void visitBlockStmt(Stmt.Block stmt) {
-    executeBlock(stmt.statements, new Environment(environment));
+    // NOTE: 捕捉される変数がなければ、ブロックの変数はすべてフレームにあるので環境を作らない
+    if (stmt.heapSize == 0) {
+      executeBlock(stmt.statements, environment);
+    } else {
+      executeBlock(stmt.statements, new Environment(environment, stmt.heapSize));
+    }
     return null;
   }
 
@@ -153,20 +249,18 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
       }
     }
 
-    environment.define(stmt.name.lexeme, null);
-
     if (stmt.superclass != null) {
-      environment = new Environment(environment);
-      environment.define("super", superclass);
+      environment = new Environment(environment, 1);
+      environment.define(superclass);
     }
 
-    Map<String, LoxFunction> methods = new HashMap<>();
+    Map<Symbol, LoxFunction> methods = new HashMap<>();
     for (Stmt.Function method : stmt.methods) {
       LoxFunction function =
-          new LoxFunction(method, environment, method.name.lexeme.equals("init"));
+          new LoxFunction(method, environment, method.name.symbol == Symbol.INIT);
       // NOTE: 12.7.1.で置換
       // LoxFunction function = new LoxFunction(method, environment);
-      methods.put(method.name.lexeme, function);
+      methods.put(method.name.symbol, function);
     }
 
     LoxClass klass = new LoxClass(stmt.name.lexeme, (LoxClass) superclass, methods);
@@ -179,7 +273,8 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     // LoxClass klass = new LoxClass(stmt.name.lexeme, methods);
     // NOTE: 12.5 で置換
     // LoxClass klass = new LoxClass(stmt.name.lexeme);
-    environment.assign(stmt.name, klass);
+    // NOTE: メソッドは呼び出し時にクラス名を引くので、生成後に定義してもslotの順序は変わらない
+    define(stmt.name, stmt.frameSlot, stmt.heapSlot, klass);
     return null;
   }
 
@@ -194,7 +289,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     // NOTE: 10.6
     // LoxFunction function = new LoxFunction(stmt);
     LoxFunction function = new LoxFunction(stmt, environment, false);
-    environment.define(stmt.name.lexeme, function);
+    define(stmt.name, stmt.frameSlot, stmt.heapSlot, function);
     return null;
   }
 
@@ -212,16 +307,39 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
   @Override
   public Void visitPrintStmt(Stmt.Print stmt) {
     Object value = evaluate(stmt.expression);
-    System.out.println(stringify(value));
+    print(value);
     return null;
   }
 
+  // NOTE: どの実行方式のprint文もここへ書く。実行の終わり(REPLのプロンプトの前)と、標準エラーに
+  // 書く前にはLoxがflushを呼ぶ
+  void print(Object value) {
+    buffer.append(stringify(value)).append(System.lineSeparator());
+    if (buffer.length() >= FLUSH_THRESHOLD) flush();
+  }
+
+  void flush() {
+    if (buffer.length() == 0) return;
+
+    out.print(buffer);
+    out.flush();
+    buffer.setLength(0);
+  }
+
   @Override
   public Void visitReturnStmt(Stmt.Return stmt) {
     Object value = null;
-    if (stmt.value != null) value = evaluate(stmt.value);
+    if (stmt.tailCall) {
+      value = tailCall((Expr.Call) stmt.value);
+    } else if (stmt.value != null) {
+      value = evaluate(stmt.value);
+    }
 
-    throw new Return(value); // NOTE: (10.5.1.) コールスタックをスキップし、catchまで一気にスキップする
+    // NOTE: (10.5.1.) 本ではReturn例外でcatchまで一気にスキップしていたが、例外での巻き戻しは
+    // 再帰の多いコードで重い。フラグを立てて、ブロックやループに自分で抜けてもらう
+    returning = true;
+    returnValue = value;
+    return null;
   }
 
   // NOTE: 個人的にinterpreterを実装しているとthrowはcatchまでのgoto文のように見えてしまうな
@@ -233,14 +351,21 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
       value = evaluate(stmt.initializer);
     }
 
-    environment.define(stmt.name.lexeme, value);
+    define(stmt.name, stmt.frameSlot, stmt.heapSlot, value);
     return null;
   }
 
   @Override
   public Void visitWhileStmt(Stmt.While stmt) {
+    if (stmt.invariants != null) {
+      for (int slot : stmt.invariants) {
+        frame[slot] = UNEVALUATED;
+      }
+    }
+
     while (isTruthy(evaluate(stmt.condition))) {
       execute(stmt.body);
+      if (returning) break;
     }
 
     return null;
@@ -249,13 +374,13 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
   @Override
   public Object visitAssignExpr(Expr.Assign expr) {
     Object value = evaluate(expr.value);
-    environment.assign(expr.name, value);
 
-    Integer distance = locals.get(expr);
-    if (distance != null) {
-      environment.assignAt(distance, expr.name, value);
-    } else {
+    if (expr.depth == -1) {
       globals.assign(expr.name, value);
+    } else if (expr.frameSlot != -1) {
+      frame[expr.frameSlot] = value;
+    } else {
+      environment.assignAt(expr.heapDepth, expr.heapSlot, value);
     }
 
     return value;
@@ -285,22 +410,23 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return (double) left <= (double) right;
       case MINUS:
         checkNumberOperands(expr.operator, left, right);
-        return (double) left - (double) right;
+        return Doubles.box((double) left - (double) right);
       case PLUS:
         if (left instanceof Double && right instanceof Double) {
-          return (double) left + (double) right;
+          return Doubles.box((double) left + (double) right);
         } // 数値計算のケース
 
-        if (left instanceof String && right instanceof String) {
-          return (String) left + (String) right;
+        if (LoxString.isString(left) && LoxString.isString(right)) {
+          return LoxString.concat(left, right);
         } // 文字列結合のケース
 
         throw new RuntimeError(expr.operator, "Operands must be two number or two strings.");
       case SLASH:
-        return (double) left / (double) right;
+        checkNumberOperands(expr.operator, left, right);
+        return Doubles.box((double) left / (double) right);
       case STAR:
         checkNumberOperands(expr.operator, left, right);
-        return (double) left * (double) right;
+        return Doubles.box((double) left * (double) right);
     }
 
     // unreachable.
@@ -312,37 +438,131 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
   // arguments -> expression ( "," expression )*;
   @Override
   public Object visitCallExpr(Expr.Call expr) {
-    Object callee = evaluate(expr.callee);
+    // NOTE: obj.method(...)の形なら、キャッシュしたメソッドをbindせずに直接呼ぶ
+    if (expr.callee instanceof Expr.Get) {
+      Expr.Get get = (Expr.Get) expr.callee;
+      Object object = evaluate(get.object);
+
+      if (object instanceof LoxInstance) {
+        LoxInstance instance = (LoxInstance) object;
+        cacheProperty(get, instance);
+        if (get.cachedMethod != null) {
+          Object[] arguments = evaluateArguments(expr);
+          checkArity(expr, get.cachedMethod, arguments);
+          return get.cachedMethod.invoke(this, instance, arguments);
+        }
+      }
+
+      return call(expr, getProperty(get, object));
+    }
 
-    List<Object> arguments = new ArrayList<>();
-    for (Expr argument : expr.arguments) {
-      arguments.add(evaluate(argument)); // <- 引数はexpressionのりすとのため全てevaluate
+    return call(expr, evaluate(expr.callee));
+  }
+
+  // NOTE: visitCallExprと同じ順に評価するが、Loxの関数は呼ばずにtailFunctionへ置く。
+  // クラスやネイティブ関数はその場で呼ぶ
+  private Object tailCall(Expr.Call expr) {
+    Object callee = null;
+    LoxInstance receiver = null;
+    if (expr.callee instanceof Expr.Get) {
+      Expr.Get get = (Expr.Get) expr.callee;
+      Object object = evaluate(get.object);
+
+      if (object instanceof LoxInstance) {
+        cacheProperty(get, (LoxInstance) object);
+        if (get.cachedMethod != null) {
+          callee = get.cachedMethod;
+          receiver = (LoxInstance) object;
+        }
+      }
+      if (receiver == null) callee = getProperty(get, object);
+    } else {
+      callee = evaluate(expr.callee);
     }
 
+    Object[] arguments = evaluateArguments(expr);
+
     if (!(callee instanceof LoxCallable)) {
       throw new RuntimeError(expr.paren, "Can only call functions and classes.");
     }
 
     LoxCallable function = (LoxCallable) callee;
-    if (arguments.size() != function.arity()) {
-      throw new RuntimeError(
-          expr.paren,
-          "Expected " + function.arity() + " arguments but got " + arguments.size() + ".");
+    checkArity(expr, function, arguments);
+    if (!(function instanceof LoxFunction)) return function.call(this, arguments);
+
+    LoxFunction target = (LoxFunction) function;
+    scheduleTailCall(target, receiver != null ? receiver : target.receiver, arguments);
+    return null;
+  }
+
+  void scheduleTailCall(LoxFunction function, LoxInstance receiver, Object[] arguments) {
+    tailFunction = function;
+    tailReceiver = receiver;
+    tailArguments = arguments;
+  }
+
+  private Object call(Expr.Call expr, Object callee) {
+    Object[] arguments = evaluateArguments(expr);
+
+    if (!(callee instanceof LoxCallable)) {
+      throw new RuntimeError(expr.paren, "Can only call functions and classes.");
     }
 
+    LoxCallable function = (LoxCallable) callee;
+    checkArity(expr, function, arguments);
+
     return function.call(this, arguments);
   }
 
+  private Object[] evaluateArguments(Expr.Call expr) {
+    Object[] arguments = new Object[expr.arguments.size()];
+    for (int i = 0; i < arguments.length; i++) {
+      arguments[i] = evaluate(expr.arguments.get(i)); // <- 引数はexpressionのりすとのため全てevaluate
+    }
+
+    return arguments;
+  }
+
+  private void checkArity(Expr.Call expr, LoxCallable function, Object[] arguments) {
+    if (arguments.length != function.arity()) {
+      throw new RuntimeError(
+          expr.paren,
+          "Expected " + function.arity() + " arguments but got " + arguments.length + ".");
+    }
+  }
+
   @Override
   public Object visitGetExpr(Expr.Get expr) {
-    Object object = evaluate(expr.object);
+    return getProperty(expr, evaluate(expr.object));
+  }
+
+  static Object getProperty(Expr.Get expr, Object object) {
     if (object instanceof LoxInstance) {
-      return ((LoxInstance) object).get(expr.name);
+      LoxInstance instance = (LoxInstance) object;
+      cacheProperty(expr, instance);
+      if (expr.cachedIndex != -1) return instance.getField(expr.cachedIndex);
+      if (expr.cachedMethod != null) return expr.cachedMethod.bind(instance);
+
+      return instance.get(expr.name);
     }
 
     throw new RuntimeError(expr.name, "Only instances have properties.");
   }
 
+  // NOTE: 参照箇所ごとに直前に見たShapeとクラスを覚えておく。Shapeが同じならフィールドの位置
+  // (なければ-1)も同じで、メソッドはクラスを作った後に変わらないので、同じ組み合わせが来る限り
+  // 名前での検索もfindMethodでスーパークラスを辿ることもせずに済む。
+  // フィールドはメソッドを隠すので、フィールドがあるときはcachedMethodをnullにしておく
+  static void cacheProperty(Expr.Get expr, LoxInstance instance) {
+    if (instance.shape == expr.cachedShape && instance.klass == expr.cachedClass) return;
+
+    expr.cachedShape = instance.shape;
+    expr.cachedClass = instance.klass;
+    expr.cachedIndex = instance.shape.indexOf(expr.name.symbol);
+    expr.cachedMethod = null;
+    if (expr.cachedIndex == -1) expr.cachedMethod = instance.klass.findMethod(expr.name.symbol);
+  }
+
   @Override
   public Object visitUnaryExpr(Expr.Unary expr) {
     Object right = evaluate(expr.right);
@@ -352,7 +572,7 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
         return !isTruthy(right);
       case MINUS:
         checkNumberOperand(expr.operator, right);
-        return -(double) right;
+        return Doubles.box(-(double) right);
     }
 
     // unreachable .
@@ -361,26 +581,25 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
 
   @Override
   public Object visitVariableExpr(Expr.Variable expr) {
-    return lookUpVariable(expr.name, expr);
+    return lookUpVariable(expr.name, expr.depth, expr.frameSlot, expr.heapDepth, expr.heapSlot);
     // NOTE: 11.4.1 で置換
     // return environment.get(expr.name);
   }
 
-  private Object lookUpVariable(Token name, Expr expr) {
-    Integer distance = locals.get(expr);
-    if (distance != null) {
-      return environment.getAt(distance, name.lexeme);
-    } else {
-      return globals.get(name);
-    }
+  private Object lookUpVariable(
+      Token name, int depth, int frameSlot, int heapDepth, int heapSlot) {
+    if (depth == -1) return globals.get(name);
+    if (frameSlot != -1) return frame[frameSlot];
+    return environment.getAt(heapDepth, heapSlot);
   }
 
-  private void checkNumberOperand(Token operator, Object operand) {
+  // NOTE: 以降の判定・変換はNodeCompilerのノードからも使うためstaticにしている
+  static void checkNumberOperand(Token operator, Object operand) {
     if (operand instanceof Double) return;
     throw new RuntimeError(operator, "Operand must be a number.");
   }
 
-  private void checkNumberOperands(Token operator, Object left, Object right) {
+  static void checkNumberOperands(Token operator, Object left, Object right) {
     if (left instanceof Double && right instanceof Double) {
       return;
     }
@@ -388,24 +607,34 @@ class Interpreter implements Expr.Visitor<Object>, Stmt.Visitor<Void> {
     throw new RuntimeError(operator, "Operands must be a strings.");
   }
 
-  private boolean isTruthy(Object object) {
+  static boolean isTruthy(Object object) {
     if (object == null) return false;
 
     if (object instanceof Boolean) return (boolean) object;
     return true;
   }
 
-  private boolean isEqual(Object a, Object b) {
+  static boolean isEqual(Object a, Object b) {
     if (a == null && b == null) return true;
     if (a == null) return false;
+    // NOTE: 連結した文字列(LoxString)はStringとも中身で比べる
+    if (b instanceof LoxString) return b.equals(a);
 
     return a.equals(b);
   }
 
-  private String stringify(Object object) {
+  static String stringify(Object object) {
     if (object == null) return "nil";
 
     if (object instanceof Double) {
+      // NOTE: 整数の値はlongとして書けば、Double.toStringの結果から".0"を削らずに済む。
+      // 1e7以上はDouble.toStringが指数表記になり、-0は"-0"と表示するので、どちらも下の処理に任せる
+      double number = (double) object;
+      long integer = (long) number;
+      if (integer == number && Math.abs(number) < 1e7 && (integer != 0 || 1 / number > 0)) {
+        return Long.toString(integer);
+      }
+
       String text = object.toString();
       if (text.endsWith(".0")) {
         text = text.substring(0, text.length() - 2);
@@ -0,0 +1,617 @@
+package com.craftinginterpreters.lox;
+
+import java.lang.invoke.MethodHandles;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// NOTE: 呼び出し回数がTHRESHOLDに達した関数の本体をJVMのバイトコードにして、
+// MethodHandles.Lookup.defineHiddenClassで読み込む。Loxのローカル変数はJVMのローカル変数に置くので、
+// HotSpotが本体をまとめてコンパイルし、インライン展開やレジスタ割り付けができる。
+// Environmentを作らないため、ローカル変数を捕捉しうる関数(本体で関数やクラスを宣言している関数)は
+// コンパイルせずに木の巡回で実行し続ける
+class JitCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+  static final int THRESHOLD = 1000;
+
+  // NOTE: 生成するクラスが実装するインタフェース。receiverはメソッドならthis
+  interface Body {
+    Object run(LoxFunction function, LoxInstance receiver, Object[] arguments);
+  }
+
+  private static final String PACKAGE = "com/craftinginterpreters/lox/";
+  private static final String OBJECT = "java/lang/Object";
+  private static final String BODY = PACKAGE + "JitCompiler$Body";
+  private static final String RUNTIME = PACKAGE + "JitRuntime";
+  private static final String LINKER = PACKAGE + "JitLinker";
+  private static final String INTERPRETER = PACKAGE + "Interpreter";
+  private static final String ENVIRONMENT = PACKAGE + "Environment";
+  private static final String LOX_FUNCTION = PACKAGE + "LoxFunction";
+  private static final String LOX_INSTANCE = PACKAGE + "LoxInstance";
+  private static final String TOKEN = PACKAGE + "Token";
+
+  // NOTE: runメソッドのJVMのローカル変数。Loxのローカル変数はFIRST_LOCAL + frameSlotに置く
+  private static final int FUNCTION = 1;
+  private static final int RECEIVER = 2;
+  private static final int ARGUMENTS = 3;
+  private static final int FIRST_LOCAL = 4;
+
+  private final Interpreter interpreter;
+  private final String name;
+  private final ClassFile file;
+  private final ClassFile.Code code;
+  // NOTE: 生成したコードから使う値(トークンや式のノードなど)。インスタンスのconstantsに渡す
+  private final List<Object> constants = new ArrayList<>();
+  private final Map<Object, Integer> constantIndices = new IdentityHashMap<>();
+  private final int locals;
+  // NOTE: 自分自身への末尾呼び出しは、引数を仮引数に入れ直してここへ飛ぶ(メソッドでは-1)
+  private final ClassFile.Label start = new ClassFile.Label();
+  private int tailArity = -1;
+
+  private JitCompiler(Interpreter interpreter, Stmt.Function declaration, int locals) {
+    this.interpreter = interpreter;
+    this.locals = locals;
+    this.name = PACKAGE + "Jit$" + declaration.name.lexeme;
+    this.file = new ClassFile(name, OBJECT, BODY);
+
+    String[] types = new String[FIRST_LOCAL + locals];
+    types[0] = "L" + name + ";";
+    types[FUNCTION] = "L" + LOX_FUNCTION + ";";
+    types[RECEIVER] = "L" + LOX_INSTANCE + ";";
+    types[ARGUMENTS] = "[Ljava/lang/Object;";
+    for (int i = FIRST_LOCAL; i < types.length; i++) {
+      types[i] = "Ljava/lang/Object;";
+    }
+    this.code = file.new Code(types);
+  }
+
+  // NOTE: コンパイルできなければnullを返し、呼び出し側は木の巡回を続ける
+  static Body compile(Interpreter interpreter, Stmt.Function declaration, boolean isMethod) {
+    if (!RegisterCompiler.declaresNothing(declaration.body)) return null;
+
+    // NOTE: 関数を宣言しないので捕捉される変数もなく、ローカル変数はすべてフレームにある
+    JitCompiler compiler = new JitCompiler(interpreter, declaration, declaration.frameSize);
+    byte[] bytes = compiler.generate(declaration, isMethod);
+
+    // NOTE: 定数の配列はclass dataとしても渡し、JitLinker.bootstrapが呼び出し箇所の式のノードを引く
+    Object[] constants = compiler.constants.toArray();
+    try {
+      Class<?> body =
+          MethodHandles.lookup()
+              .defineHiddenClassWithClassData(bytes, constants, true)
+              .lookupClass();
+      return (Body) body.getDeclaredConstructor(Object[].class).newInstance((Object) constants);
+    } catch (ReflectiveOperationException | LinkageError error) {
+      return null;
+    }
+  }
+
+  private byte[] generate(Stmt.Function declaration, boolean isMethod) {
+    file.addField(ClassFile.ACC_PRIVATE | ClassFile.ACC_FINAL, "constants", "[Ljava/lang/Object;");
+
+    ClassFile.Code constructor = file.new Code("L" + name + ";", "[Ljava/lang/Object;");
+    constructor.aload(0);
+    constructor.invokespecial(OBJECT, "<init>", "()V");
+    constructor.aload(0);
+    constructor.aload(1);
+    constructor.putfield(name, "constants", "[Ljava/lang/Object;");
+    constructor.vreturn();
+    file.addMethod(ClassFile.ACC_PUBLIC, "<init>", "([Ljava/lang/Object;)V", constructor);
+
+    // NOTE: Resolverと同じく、メソッドならthisがslot 0で、引数がその後ろに並ぶ
+    int local = FIRST_LOCAL;
+    if (isMethod) {
+      code.aload(RECEIVER);
+      code.astore(local++);
+    }
+    for (int i = 0; i < declaration.params.size(); i++) {
+      code.aload(ARGUMENTS);
+      code.iconst(i);
+      code.aaload();
+      code.astore(local++);
+    }
+    // NOTE: StackMapTableのフレームでローカル変数の型をすべてObjectにできるよう、先に初期化する
+    for (; local < FIRST_LOCAL + locals; local++) {
+      code.aconstNull();
+      code.astore(local);
+    }
+    if (!isMethod) tailArity = declaration.params.size();
+    code.bind(start);
+
+    statements(declaration.body);
+    if (code.isReachable()) {
+      code.aconstNull();
+      code.areturn();
+    }
+
+    file.addMethod(
+        ClassFile.ACC_PUBLIC,
+        "run",
+        "(L" + LOX_FUNCTION + ";L" + LOX_INSTANCE + ";[Ljava/lang/Object;)Ljava/lang/Object;",
+        code);
+    return file.toByteArray();
+  }
+
+  private void statements(List<Stmt> statements) {
+    for (Stmt statement : statements) {
+      statement.accept(this);
+    }
+  }
+
+  private void compile(Expr expr) {
+    expr.accept(this);
+  }
+
+  private int constantIndex(Object value) {
+    Integer index = constantIndices.get(value);
+    if (index == null) {
+      index = constants.size();
+      constants.add(value);
+      constantIndices.put(value, index);
+    }
+
+    return index;
+  }
+
+  // NOTE: 値をconstantsから取り出して積む
+  private void constant(Object value, String type) {
+    code.aload(0);
+    code.getfield(name, "constants", "[Ljava/lang/Object;");
+    code.iconst(constantIndex(value));
+    code.aaload();
+    if (!type.equals(OBJECT)) code.checkcast(type);
+  }
+
+  // NOTE: JitLinkerがつなぐinvokedynamic。nodeはその呼び出し箇所の式で、キャッシュの対象になる
+  private void dynamic(String site, String descriptor, Expr node) {
+    int bootstrap =
+        file.bootstrapMethod(
+            LINKER, "bootstrap", JitLinker.BOOTSTRAP, file.integer(constantIndex(node)));
+    code.invokedynamic(bootstrap, site, descriptor);
+  }
+
+  private void closure() {
+    code.aload(FUNCTION);
+    code.getfield(LOX_FUNCTION, "closure", "L" + ENVIRONMENT + ";");
+  }
+
+  private void runtime(String method, String descriptor) {
+    code.invokestatic(RUNTIME, method, descriptor);
+  }
+
+  private void box() {
+    code.invokestatic("java/lang/Boolean", "valueOf", "(Z)Ljava/lang/Boolean;");
+  }
+
+  private void isTruthy() {
+    code.invokestatic(INTERPRETER, "isTruthy", "(Ljava/lang/Object;)Z");
+  }
+
+  // NOTE: 条件が偽ならlabelへ飛ぶ。比較ならBooleanを作らずに分岐する
+  private void jumpIfFalse(Expr condition, ClassFile.Label label) {
+    while (condition instanceof Expr.Grouping) {
+      condition = ((Expr.Grouping) condition).expression;
+    }
+
+    if (condition instanceof Expr.Binary && compare((Expr.Binary) condition)) {
+      code.ifeq(label);
+      return;
+    }
+
+    compile(condition);
+    isTruthy();
+    code.ifeq(label);
+  }
+
+  // NOTE: 比較の演算子なら結果をintで積んでtrueを返す
+  private boolean compare(Expr.Binary expr) {
+    String method;
+    switch (expr.operator.type) {
+      case EQUAL_EQUAL:
+      case BANG_EQUAL:
+        compile(expr.left);
+        compile(expr.right);
+        code.invokestatic(INTERPRETER, "isEqual", "(Ljava/lang/Object;Ljava/lang/Object;)Z");
+        if (expr.operator.type == TokenType.BANG_EQUAL) {
+          code.iconst(1);
+          code.ixor();
+        }
+        return true;
+      case GREATER:
+        method = "greater";
+        break;
+      case GREATER_EQUAL:
+        method = "greaterEqual";
+        break;
+      case LESS:
+        method = "less";
+        break;
+      case LESS_EQUAL:
+        method = "lessEqual";
+        break;
+      default:
+        return false;
+    }
+
+    compile(expr.left);
+    compile(expr.right);
+    constant(expr.operator, TOKEN);
+    runtime(method, "(Ljava/lang/Object;Ljava/lang/Object;L" + TOKEN + ";)Z");
+    return true;
+  }
+
+  private void arguments(List<Expr> arguments) {
+    code.iconst(arguments.size());
+    code.anewarray(OBJECT);
+    for (int i = 0; i < arguments.size(); i++) {
+      code.dup();
+      code.iconst(i);
+      compile(arguments.get(i));
+      code.aastore();
+    }
+  }
+
+  @Override
+  public Void visitBlockStmt(Stmt.Block stmt) {
+    statements(stmt.statements);
+    return null;
+  }
+
+  // NOTE: 関数やクラスの宣言を含む関数はcompileで除外しているので、ここには来ない
+  @Override
+  public Void visitClassStmt(Stmt.Class stmt) {
+    throw new IllegalStateException("Nested class in compiled function.");
+  }
+
+  @Override
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    compile(stmt.expression);
+    code.pop();
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionStmt(Stmt.Function stmt) {
+    throw new IllegalStateException("Nested function in compiled function.");
+  }
+
+  @Override
+  public Void visitIfStmt(Stmt.If stmt) {
+    ClassFile.Label elseLabel = new ClassFile.Label();
+    jumpIfFalse(stmt.condition, elseLabel);
+    stmt.thenBranch.accept(this);
+
+    if (stmt.elseBranch == null) {
+      code.bind(elseLabel);
+      return null;
+    }
+
+    ClassFile.Label end = new ClassFile.Label();
+    code.jump(end);
+    code.bind(elseLabel);
+    stmt.elseBranch.accept(this);
+    code.bind(end);
+    return null;
+  }
+
+  @Override
+  public Void visitPrintStmt(Stmt.Print stmt) {
+    constant(interpreter, INTERPRETER);
+    compile(stmt.expression);
+    code.invokevirtual(INTERPRETER, "print", "(Ljava/lang/Object;)V");
+    return null;
+  }
+
+  @Override
+  public Void visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.tailCall) {
+      selfTailCall((Expr.Call) stmt.value);
+      tailCall((Expr.Call) stmt.value);
+      code.areturn();
+      return null;
+    }
+
+    if (stmt.value == null) {
+      code.aconstNull();
+    } else {
+      compile(stmt.value);
+    }
+
+    code.areturn();
+    return null;
+  }
+
+  // NOTE: return f(x);のfが実行中の関数そのものなら、呼ばずに仮引数を入れ直して先頭へ戻る。
+  // 呼ばれる値を引くのは変数の読み出しだけなので、違う関数なら通常の呼び出しで引き直してよい
+  private void selfTailCall(Expr.Call expr) {
+    if (!(expr.callee instanceof Expr.Variable) || expr.arguments.size() != tailArity) return;
+
+    ClassFile.Label other = new ClassFile.Label();
+    compile(expr.callee);
+    code.aload(FUNCTION);
+    code.ifAcmpne(other);
+    // NOTE: 引数はすべて評価してから仮引数に入れる(引数の式が仮引数を読むため)
+    for (Expr argument : expr.arguments) {
+      compile(argument);
+    }
+    for (int i = tailArity - 1; i >= 0; i--) {
+      code.astore(FIRST_LOCAL + i);
+    }
+    code.jump(start);
+    code.bind(other);
+  }
+
+  // NOTE: visitCallExprと同じ順に評価するが、呼び出しはJitRuntimeに任せる。Loxの関数なら
+  // 呼ばずにinterpreterに置いてnullを返すので、そのままreturnすれば呼び出し元が続きを実行する
+  private void tailCall(Expr.Call expr) {
+    constant(interpreter, INTERPRETER);
+
+    if (expr.callee instanceof Expr.Get) {
+      Expr.Get get = (Expr.Get) expr.callee;
+      compile(get.object);
+      code.dup();
+      dynamic("lookup", "(Ljava/lang/Object;)Ljava/lang/Object;", get);
+      arguments(expr.arguments);
+      constant(expr.paren, TOKEN);
+      runtime(
+          "tailInvoke",
+          "(L" + INTERPRETER + ";Ljava/lang/Object;Ljava/lang/Object;[Ljava/lang/Object;L"
+              + TOKEN + ";)Ljava/lang/Object;");
+      return;
+    }
+
+    compile(expr.callee);
+    arguments(expr.arguments);
+    constant(expr.paren, TOKEN);
+    runtime(
+        "tailCall",
+        "(L" + INTERPRETER + ";Ljava/lang/Object;[Ljava/lang/Object;L" + TOKEN
+            + ";)Ljava/lang/Object;");
+  }
+
+  @Override
+  public Void visitWhileStmt(Stmt.While stmt) {
+    ClassFile.Label loop = new ClassFile.Label();
+    ClassFile.Label exit = new ClassFile.Label();
+
+    if (stmt.invariants != null) {
+      for (int slot : stmt.invariants) {
+        constant(Interpreter.UNEVALUATED, OBJECT);
+        code.astore(FIRST_LOCAL + slot);
+      }
+    }
+
+    code.bind(loop);
+    jumpIfFalse(stmt.condition, exit);
+    stmt.body.accept(this);
+    code.jump(loop);
+    code.bind(exit);
+    return null;
+  }
+
+  @Override
+  public Void visitVarStmt(Stmt.Var stmt) {
+    if (stmt.initializer == null) {
+      code.aconstNull();
+    } else {
+      compile(stmt.initializer);
+    }
+
+    code.astore(FIRST_LOCAL + stmt.frameSlot);
+    return null;
+  }
+
+  @Override
+  public Void visitAssignExpr(Expr.Assign expr) {
+    compile(expr.value);
+    code.dup();
+
+    if (expr.depth == -1) {
+      constant(interpreter.globals, ENVIRONMENT);
+      constant(expr.name, TOKEN);
+      runtime(
+          "assignGlobal", "(Ljava/lang/Object;L" + ENVIRONMENT + ";L" + TOKEN + ";)V");
+      return null;
+    }
+
+    if (expr.frameSlot != -1) {
+      code.astore(FIRST_LOCAL + expr.frameSlot);
+      return null;
+    }
+
+    closure();
+    code.iconst(expr.heapDepth);
+    code.iconst(expr.heapSlot);
+    runtime("assignAt", "(Ljava/lang/Object;L" + ENVIRONMENT + ";II)V");
+    return null;
+  }
+
+  @Override
+  public Void visitBinaryExpr(Expr.Binary expr) {
+    if (compare(expr)) {
+      box();
+      return null;
+    }
+
+    String method;
+    switch (expr.operator.type) {
+      case MINUS:
+        method = "subtract";
+        break;
+      case PLUS:
+        method = "add";
+        break;
+      case SLASH:
+        method = "divide";
+        break;
+      default:
+        method = "multiply";
+        break;
+    }
+
+    compile(expr.left);
+    compile(expr.right);
+    constant(expr.operator, TOKEN);
+    runtime(method, "(Ljava/lang/Object;Ljava/lang/Object;L" + TOKEN + ";)Ljava/lang/Object;");
+    return null;
+  }
+
+  @Override
+  public Void visitCallExpr(Expr.Call expr) {
+    constant(interpreter, INTERPRETER);
+
+    // NOTE: obj.method(...)は呼び出す値を引数より先に引き、メソッドならbindせずに呼ぶ
+    if (expr.callee instanceof Expr.Get) {
+      Expr.Get get = (Expr.Get) expr.callee;
+      compile(get.object);
+      code.dup();
+      dynamic("lookup", "(Ljava/lang/Object;)Ljava/lang/Object;", get);
+      arguments(expr.arguments);
+      dynamic(
+          "invoke",
+          "(L" + INTERPRETER + ";Ljava/lang/Object;Ljava/lang/Object;[Ljava/lang/Object;)"
+              + "Ljava/lang/Object;",
+          expr);
+      return null;
+    }
+
+    compile(expr.callee);
+    arguments(expr.arguments);
+    dynamic(
+        "call",
+        "(L" + INTERPRETER + ";Ljava/lang/Object;[Ljava/lang/Object;)Ljava/lang/Object;",
+        expr);
+    return null;
+  }
+
+  @Override
+  public Void visitGetExpr(Expr.Get expr) {
+    compile(expr.object);
+    dynamic("get", "(Ljava/lang/Object;)Ljava/lang/Object;", expr);
+    return null;
+  }
+
+  @Override
+  public Void visitGroupingExpr(Expr.Grouping expr) {
+    compile(expr.expression);
+    return null;
+  }
+
+  // NOTE: Interpreter.visitInvariantExprと同じく、未評価のときだけ式を評価して覚えておく
+  @Override
+  public Void visitInvariantExpr(Expr.Invariant expr) {
+    ClassFile.Label done = new ClassFile.Label();
+    code.aload(FIRST_LOCAL + expr.frameSlot);
+    code.dup();
+    constant(Interpreter.UNEVALUATED, OBJECT);
+    code.ifAcmpne(done);
+    code.pop();
+    compile(expr.expression);
+    code.dup();
+    code.astore(FIRST_LOCAL + expr.frameSlot);
+    code.bind(done);
+    return null;
+  }
+
+  @Override
+  public Void visitLiteralExpr(Expr.Literal expr) {
+    if (expr.value == null) {
+      code.aconstNull();
+    } else {
+      constant(expr.value, OBJECT);
+    }
+
+    return null;
+  }
+
+  @Override
+  public Void visitLogicalExpr(Expr.Logical expr) {
+    ClassFile.Label end = new ClassFile.Label();
+
+    compile(expr.left);
+    code.dup();
+    isTruthy();
+    if (expr.operator.type == TokenType.OR) {
+      code.ifne(end);
+    } else {
+      code.ifeq(end);
+    }
+
+    code.pop();
+    compile(expr.right);
+    code.bind(end);
+    return null;
+  }
+
+  @Override
+  public Void visitSetExpr(Expr.Set expr) {
+    compile(expr.object);
+    constant(expr.name, TOKEN);
+    runtime("instance", "(Ljava/lang/Object;L" + TOKEN + ";)L" + LOX_INSTANCE + ";");
+    compile(expr.value);
+    dynamic("set", "(L" + LOX_INSTANCE + ";Ljava/lang/Object;)Ljava/lang/Object;", expr);
+    return null;
+  }
+
+  @Override
+  public Void visitSuperExpr(Expr.Super expr) {
+    // NOTE: superのスコープはメソッドの外側なので、closureから数えた深さで引く
+    closure();
+    code.iconst(expr.heapDepth);
+    code.iconst(expr.heapSlot);
+    code.invokevirtual(ENVIRONMENT, "getAt", "(II)Ljava/lang/Object;");
+    compile(expr.receiver);
+    constant(expr.method, TOKEN);
+    runtime(
+        "getSuper", "(Ljava/lang/Object;Ljava/lang/Object;L" + TOKEN + ";)Ljava/lang/Object;");
+    return null;
+  }
+
+  @Override
+  public Void visitThisExpr(Expr.This expr) {
+    variable(expr.keyword, expr.depth, expr.frameSlot, expr.heapDepth, expr.heapSlot);
+    return null;
+  }
+
+  @Override
+  public Void visitUnaryExpr(Expr.Unary expr) {
+    compile(expr.right);
+
+    if (expr.operator.type == TokenType.BANG) {
+      isTruthy();
+      code.iconst(1);
+      code.ixor();
+      box();
+    } else {
+      constant(expr.operator, TOKEN);
+      runtime("negate", "(Ljava/lang/Object;L" + TOKEN + ";)Ljava/lang/Object;");
+    }
+
+    return null;
+  }
+
+  @Override
+  public Void visitVariableExpr(Expr.Variable expr) {
+    variable(expr.name, expr.depth, expr.frameSlot, expr.heapDepth, expr.heapSlot);
+    return null;
+  }
+
+  private void variable(Token name, int depth, int frameSlot, int heapDepth, int heapSlot) {
+    if (depth == -1) {
+      constant(interpreter.globals, ENVIRONMENT);
+      constant(name, TOKEN);
+      code.invokevirtual(ENVIRONMENT, "get", "(L" + TOKEN + ";)Ljava/lang/Object;");
+      return;
+    }
+
+    if (frameSlot != -1) {
+      code.aload(FIRST_LOCAL + frameSlot);
+      return;
+    }
+
+    closure();
+    code.iconst(heapDepth);
+    code.iconst(heapSlot);
+    code.invokevirtual(ENVIRONMENT, "getAt", "(II)Ljava/lang/Object;");
+  }
+}
@@ -0,0 +1,445 @@
+package com.craftinginterpreters.lox;
+
+import java.lang.invoke.CallSite;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.invoke.MutableCallSite;
+import java.util.ArrayList;
+import java.util.List;
+
+// NOTE: JitCompilerが生成したコードのinvokedynamicをつなぐ。呼び出し箇所ごとにMutableCallSiteを作り、
+// 見たことのあるShapeとクラス(プロパティ)や関数(呼び出し)ごとに、guardWithTestで判定と
+// 処理を直接つないだ多相インラインキャッシュにする。判定に使う値はMethodHandleに束縛した定数なので、
+// HotSpotは比較を畳み込み、呼ばれる関数のコンパイル済みの本体までインライン展開できる
+final class JitLinker {
+  static final String BOOTSTRAP =
+      "(Ljava/lang/invoke/MethodHandles$Lookup;Ljava/lang/String;Ljava/lang/invoke/MethodType;I)"
+          + "Ljava/lang/invoke/CallSite;";
+  // NOTE: これを超える組み合わせを見た呼び出し箇所は、キャッシュをやめて汎用の処理を呼ぶ
+  private static final int LIMIT = 4;
+
+  private static final MethodHandles.Lookup LOOKUP = MethodHandles.lookup();
+  private static final MethodHandle MISS =
+      virtual(InlineCache.class, "miss", Object.class, Object[].class);
+  private static final MethodHandle MATCHES =
+      find(JitLinker.class, "matches", boolean.class, Shape.class, LoxClass.class, Object.class);
+  private static final MethodHandle MATCHES_SHAPE =
+      find(JitLinker.class, "matchesShape", boolean.class, Shape.class, LoxInstance.class);
+  private static final MethodHandle IS_SAME =
+      find(JitLinker.class, "isSame", boolean.class, Object.class, Object.class);
+  private static final MethodHandle IS_INTERPRETED =
+      find(JitLinker.class, "isInterpreted", boolean.class, LoxFunction.class, Object.class);
+  private static final MethodHandle GET_FIELD =
+      find(JitLinker.class, "getField", Object.class, int.class, Object.class);
+  private static final MethodHandle LOOKUP_FIELD =
+      find(JitLinker.class, "lookupField", Object.class, int.class, Object.class);
+  private static final MethodHandle BIND_METHOD =
+      find(JitLinker.class, "bindMethod", Object.class, LoxFunction.class, Object.class);
+  private static final MethodHandle STORE =
+      find(
+          JitLinker.class,
+          "store",
+          Object.class,
+          Shape.class,
+          int.class,
+          LoxInstance.class,
+          Object.class);
+  private static final MethodHandle RUN_METHOD =
+      find(
+          JitLinker.class,
+          "runMethod",
+          Object.class,
+          JitCompiler.Body.class,
+          LoxFunction.class,
+          Interpreter.class,
+          Object.class,
+          Object.class,
+          Object[].class);
+  private static final MethodHandle INVOKE_METHOD =
+      find(
+          JitLinker.class,
+          "invokeMethod",
+          Object.class,
+          LoxFunction.class,
+          Interpreter.class,
+          Object.class,
+          Object.class,
+          Object[].class);
+  private static final MethodHandle RUN_FUNCTION =
+      find(
+          JitLinker.class,
+          "runFunction",
+          Object.class,
+          JitCompiler.Body.class,
+          LoxFunction.class,
+          Interpreter.class,
+          Object.class,
+          Object[].class);
+  private static final MethodHandle CALL_FUNCTION =
+      find(
+          JitLinker.class,
+          "callFunction",
+          Object.class,
+          LoxCallable.class,
+          Interpreter.class,
+          Object.class,
+          Object[].class);
+  private static final MethodHandle GET_PROPERTY =
+      find(JitRuntime.class, "getProperty", Object.class, Object.class, Expr.Get.class);
+  private static final MethodHandle LOOKUP_PROPERTY =
+      find(JitRuntime.class, "lookup", Object.class, Object.class, Expr.Get.class);
+  private static final MethodHandle SET_PROPERTY =
+      find(
+          JitRuntime.class,
+          "setProperty",
+          Object.class,
+          LoxInstance.class,
+          Object.class,
+          Expr.Set.class);
+  private static final MethodHandle INVOKE =
+      find(
+          JitRuntime.class,
+          "invoke",
+          Object.class,
+          Interpreter.class,
+          Object.class,
+          Object.class,
+          Object[].class,
+          Token.class);
+  private static final MethodHandle CALL =
+      find(
+          JitRuntime.class,
+          "call",
+          Object.class,
+          Interpreter.class,
+          Object.class,
+          Object[].class,
+          Token.class);
+
+  private JitLinker() {}
+
+  // NOTE: invokedynamicのブートストラップメソッド。indexは生成したクラスのclass data
+  // (JitCompilerの定数の配列)の添字で、呼び出し箇所の式のノードを指す
+  static CallSite bootstrap(MethodHandles.Lookup caller, String name, MethodType type, int index)
+      throws IllegalAccessException {
+    Object node = MethodHandles.classData(caller, "_", Object[].class)[index];
+
+    switch (name) {
+      case "get":
+        return new GetCache(type, (Expr.Get) node);
+      case "lookup":
+        return new LookupCache(type, (Expr.Get) node);
+      case "set":
+        return new SetCache(type, (Expr.Set) node);
+      case "invoke":
+        return new InvokeCache(type, (Expr.Call) node);
+      case "call":
+        return new CallCache(type, (Expr.Call) node);
+    }
+
+    throw new IllegalArgumentException("Unknown call site '" + name + "'.");
+  }
+
+  // NOTE: 1つの呼び出し箇所のキャッシュ。エントリは(判定, 処理)の組で、新しいものほど先に判定する。
+  // どのエントリにも当たらなければmissに来て、エントリを足してつなぎ直す
+  private abstract static class InlineCache extends MutableCallSite {
+    private final MethodHandle generic;
+    private final MethodHandle fallback;
+    private final List<Object> keys = new ArrayList<>();
+    private final List<MethodHandle> tests = new ArrayList<>();
+    private final List<MethodHandle> targets = new ArrayList<>();
+
+    InlineCache(MethodType type, MethodHandle generic) {
+      super(type);
+      this.generic = generic.asType(type);
+      this.fallback =
+          MISS.bindTo(this).asCollector(Object[].class, type.parameterCount()).asType(type);
+      setTarget(fallback);
+    }
+
+    // NOTE: 引数の組み合わせに合うエントリをaddする。キャッシュできなければfalseを返す
+    abstract boolean link(Object[] arguments);
+
+    private Object miss(Object[] arguments) throws Throwable {
+      if (!link(arguments)) setTarget(generic);
+      return generic.invokeWithArguments(arguments);
+    }
+
+    // NOTE: 同じkeyのエントリ(関数がコンパイルされる前のものなど)は置き換える
+    void add(Object key, MethodHandle test, MethodHandle target) {
+      int index = keys.indexOf(key);
+      if (index != -1) {
+        keys.remove(index);
+        tests.remove(index);
+        targets.remove(index);
+      }
+
+      if (keys.size() == LIMIT) {
+        setTarget(generic);
+        return;
+      }
+
+      keys.add(key);
+      tests.add(test);
+      targets.add(target.asType(type()));
+
+      MethodHandle chain = fallback;
+      for (int i = 0; i < keys.size(); i++) {
+        chain = MethodHandles.guardWithTest(tests.get(i), targets.get(i), chain);
+      }
+      setTarget(chain);
+    }
+  }
+
+  // NOTE: obj.field。(Object)Object
+  private static final class GetCache extends InlineCache {
+    private final Expr.Get get;
+
+    GetCache(MethodType type, Expr.Get get) {
+      super(type, MethodHandles.insertArguments(GET_PROPERTY, 1, get));
+      this.get = get;
+    }
+
+    @Override
+    boolean link(Object[] arguments) {
+      if (!(arguments[0] instanceof LoxInstance)) return false;
+
+      LoxInstance instance = (LoxInstance) arguments[0];
+      MethodHandle test = MethodHandles.insertArguments(MATCHES, 0, instance.shape, instance.klass);
+      int index = instance.shape.indexOf(get.name.symbol);
+      if (index != -1) {
+        add(
+            List.of(instance.shape, instance.klass),
+            test,
+            MethodHandles.insertArguments(GET_FIELD, 0, index));
+        return true;
+      }
+
+      LoxFunction method = instance.klass.findMethod(get.name.symbol);
+      if (method == null) return false;
+
+      add(List.of(instance.shape, instance.klass), test, BIND_METHOD.bindTo(method));
+      return true;
+    }
+  }
+
+  // NOTE: obj.method(...)の呼び出す値。メソッドならbindせずにそのまま返す。(Object)Object
+  private static final class LookupCache extends InlineCache {
+    private final Expr.Get get;
+
+    LookupCache(MethodType type, Expr.Get get) {
+      super(type, MethodHandles.insertArguments(LOOKUP_PROPERTY, 1, get));
+      this.get = get;
+    }
+
+    @Override
+    boolean link(Object[] arguments) {
+      if (!(arguments[0] instanceof LoxInstance)) return false;
+
+      LoxInstance instance = (LoxInstance) arguments[0];
+      MethodHandle test = MethodHandles.insertArguments(MATCHES, 0, instance.shape, instance.klass);
+      int index = instance.shape.indexOf(get.name.symbol);
+      if (index != -1) {
+        add(
+            List.of(instance.shape, instance.klass),
+            test,
+            MethodHandles.insertArguments(LOOKUP_FIELD, 0, index));
+        return true;
+      }
+
+      LoxFunction method = instance.klass.findMethod(get.name.symbol);
+      if (method == null) return false;
+
+      MethodHandle constant = MethodHandles.constant(Object.class, method);
+      add(
+          List.of(instance.shape, instance.klass),
+          test,
+          MethodHandles.dropArguments(constant, 0, Object.class));
+      return true;
+    }
+  }
+
+  // NOTE: obj.field = value。格納先と格納後のShapeは格納前のShapeだけで決まる。
+  // (LoxInstance, Object)Object
+  private static final class SetCache extends InlineCache {
+    private final Expr.Set set;
+
+    SetCache(MethodType type, Expr.Set set) {
+      super(type, MethodHandles.insertArguments(SET_PROPERTY, 2, set));
+      this.set = set;
+    }
+
+    @Override
+    boolean link(Object[] arguments) {
+      Shape shape = ((LoxInstance) arguments[0]).shape;
+      int index = shape.indexOf(set.name.symbol);
+      Shape next = shape;
+      if (index == -1) {
+        next = shape.withField(set.name.symbol);
+        index = next.size() - 1;
+      }
+
+      add(
+          shape,
+          MATCHES_SHAPE.bindTo(shape),
+          MethodHandles.insertArguments(STORE, 0, next, index));
+      return true;
+    }
+  }
+
+  // NOTE: obj.method(...)の呼び出し。LookupCacheが返したメソッドごとにキャッシュする。
+  // (Interpreter, Object object, Object callee, Object[] arguments)Object
+  private static final class InvokeCache extends InlineCache {
+    InvokeCache(MethodType type, Expr.Call call) {
+      super(type, MethodHandles.insertArguments(INVOKE, 4, call.paren));
+    }
+
+    @Override
+    boolean link(Object[] arguments) {
+      if (!(arguments[2] instanceof LoxFunction)) return false;
+
+      LoxFunction method = (LoxFunction) arguments[2];
+      if (method.receiver != null) return false;
+      if (method.arity() != ((Object[]) arguments[3]).length) return false;
+
+      MethodHandle test;
+      MethodHandle target;
+      JitCompiler.Body body = method.declaration.compiled;
+      if (body != null && !method.isInitializer) {
+        test = IS_SAME.bindTo(method);
+        target = MethodHandles.insertArguments(RUN_METHOD, 0, body, method);
+      } else {
+        test = (body == null ? IS_INTERPRETED : IS_SAME).bindTo(method);
+        target = INVOKE_METHOD.bindTo(method);
+      }
+
+      test = MethodHandles.dropArguments(test, 0, Interpreter.class, Object.class);
+      add(method, test, target);
+      return true;
+    }
+  }
+
+  // NOTE: f(...)の呼び出し。呼ばれる値(関数、クラス、ネイティブ関数)ごとにキャッシュする。
+  // (Interpreter, Object callee, Object[] arguments)Object
+  private static final class CallCache extends InlineCache {
+    CallCache(MethodType type, Expr.Call call) {
+      super(type, MethodHandles.insertArguments(CALL, 3, call.paren));
+    }
+
+    @Override
+    boolean link(Object[] arguments) {
+      if (!(arguments[1] instanceof LoxCallable)) return false;
+
+      LoxCallable callee = (LoxCallable) arguments[1];
+      if (callee.arity() != ((Object[]) arguments[2]).length) return false;
+
+      MethodHandle test = IS_SAME.bindTo(callee);
+      MethodHandle target = CALL_FUNCTION.bindTo(callee);
+      if (callee instanceof LoxFunction) {
+        LoxFunction function = (LoxFunction) callee;
+        JitCompiler.Body body = function.declaration.compiled;
+        if (body == null) {
+          test = IS_INTERPRETED.bindTo(function);
+        } else if (!function.isInitializer) {
+          target = MethodHandles.insertArguments(RUN_FUNCTION, 0, body, function);
+        }
+      }
+
+      add(callee, MethodHandles.dropArguments(test, 0, Interpreter.class), target);
+      return true;
+    }
+  }
+
+  private static boolean matches(Shape shape, LoxClass klass, Object object) {
+    return object instanceof LoxInstance
+        && ((LoxInstance) object).shape == shape
+        && ((LoxInstance) object).klass == klass;
+  }
+
+  private static boolean matchesShape(Shape shape, LoxInstance instance) {
+    return instance.shape == shape;
+  }
+
+  private static boolean isSame(Object expected, Object actual) {
+    return actual == expected;
+  }
+
+  // NOTE: コンパイルされたら外れるので、missでコンパイル済みの本体を直接呼ぶエントリに置き換わる
+  private static boolean isInterpreted(LoxFunction expected, Object actual) {
+    return actual == expected && expected.declaration.compiled == null;
+  }
+
+  private static Object getField(int index, Object object) {
+    return ((LoxInstance) object).getField(index);
+  }
+
+  private static Object lookupField(int index, Object object) {
+    Object value = ((LoxInstance) object).getField(index);
+    if (value instanceof LoxFunction && ((LoxFunction) value).receiver == null) {
+      return new JitRuntime.FieldFunction(value);
+    }
+
+    return value;
+  }
+
+  private static Object bindMethod(LoxFunction method, Object object) {
+    return method.bind((LoxInstance) object);
+  }
+
+  private static Object store(Shape next, int index, LoxInstance instance, Object value) {
+    instance.store(next, index, value);
+    return value;
+  }
+
+  private static Object runMethod(
+      JitCompiler.Body body,
+      LoxFunction method,
+      Interpreter interpreter,
+      Object object,
+      Object callee,
+      Object[] arguments) {
+    return LoxFunction.trampoline(interpreter, body.run(method, (LoxInstance) object, arguments));
+  }
+
+  private static Object invokeMethod(
+      LoxFunction method,
+      Interpreter interpreter,
+      Object object,
+      Object callee,
+      Object[] arguments) {
+    return method.invoke(interpreter, (LoxInstance) object, arguments);
+  }
+
+  private static Object runFunction(
+      JitCompiler.Body body,
+      LoxFunction function,
+      Interpreter interpreter,
+      Object callee,
+      Object[] arguments) {
+    return LoxFunction.trampoline(interpreter, body.run(function, function.receiver, arguments));
+  }
+
+  private static Object callFunction(
+      LoxCallable function, Interpreter interpreter, Object callee, Object[] arguments) {
+    return function.call(interpreter, arguments);
+  }
+
+  private static MethodHandle find(
+      Class<?> owner, String name, Class<?> returnType, Class<?>... parameterTypes) {
+    try {
+      return LOOKUP.findStatic(owner, name, MethodType.methodType(returnType, parameterTypes));
+    } catch (ReflectiveOperationException error) {
+      throw new ExceptionInInitializerError(error);
+    }
+  }
+
+  private static MethodHandle virtual(
+      Class<?> owner, String name, Class<?> returnType, Class<?>... parameterTypes) {
+    try {
+      return LOOKUP.findVirtual(owner, name, MethodType.methodType(returnType, parameterTypes));
+    } catch (ReflectiveOperationException error) {
+      throw new ExceptionInInitializerError(error);
+    }
+  }
+}
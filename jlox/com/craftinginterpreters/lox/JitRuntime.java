@@ -0,0 +1,173 @@
+package com.craftinginterpreters.lox;
+
+// NOTE: JitCompilerが生成したコードから呼ぶ処理。型の検査やエラーの報告は木の巡回と同じにする。
+// どれも小さなstaticメソッドなので、HotSpotが生成したコードの中にインライン展開できる
+final class JitRuntime {
+  // NOTE: フィールドに入っている束縛されていない関数。lookupがメソッドと区別するために包む
+  static final class FieldFunction {
+    FieldFunction(Object function) {
+      this.function = function;
+    }
+
+    final Object function;
+  }
+
+  private JitRuntime() {}
+
+  static Object add(Object left, Object right, Token operator) {
+    if (left instanceof Double && right instanceof Double) {
+      return Doubles.box((double) left + (double) right);
+    }
+
+    if (LoxString.isString(left) && LoxString.isString(right)) {
+      return LoxString.concat(left, right);
+    }
+
+    throw new RuntimeError(operator, "Operands must be two number or two strings.");
+  }
+
+  static Object subtract(Object left, Object right, Token operator) {
+    Interpreter.checkNumberOperands(operator, left, right);
+    return Doubles.box((double) left - (double) right);
+  }
+
+  static Object multiply(Object left, Object right, Token operator) {
+    Interpreter.checkNumberOperands(operator, left, right);
+    return Doubles.box((double) left * (double) right);
+  }
+
+  static Object divide(Object left, Object right, Token operator) {
+    Interpreter.checkNumberOperands(operator, left, right);
+    return Doubles.box((double) left / (double) right);
+  }
+
+  static boolean greater(Object left, Object right, Token operator) {
+    Interpreter.checkNumberOperands(operator, left, right);
+    return (double) left > (double) right;
+  }
+
+  static boolean greaterEqual(Object left, Object right, Token operator) {
+    Interpreter.checkNumberOperands(operator, left, right);
+    return (double) left >= (double) right;
+  }
+
+  static boolean less(Object left, Object right, Token operator) {
+    Interpreter.checkNumberOperands(operator, left, right);
+    return (double) left < (double) right;
+  }
+
+  static boolean lessEqual(Object left, Object right, Token operator) {
+    Interpreter.checkNumberOperands(operator, left, right);
+    return (double) left <= (double) right;
+  }
+
+  static Object negate(Object right, Token operator) {
+    Interpreter.checkNumberOperand(operator, right);
+    return Doubles.box(-(double) right);
+  }
+
+  static void assignAt(Object value, Environment environment, int depth, int slot) {
+    environment.assignAt(depth, slot, value);
+  }
+
+  static void assignGlobal(Object value, Environment globals, Token name) {
+    globals.assign(name, value);
+  }
+
+  static Object call(Interpreter interpreter, Object callee, Object[] arguments, Token paren) {
+    if (!(callee instanceof LoxCallable)) {
+      throw new RuntimeError(paren, "Can only call functions and classes.");
+    }
+
+    LoxCallable function = (LoxCallable) callee;
+    checkArity(paren, function, arguments);
+
+    return function.call(interpreter, arguments);
+  }
+
+  // NOTE: 末尾位置の呼び出し。Loxの関数は呼ばずにinterpreterに置き、本体から戻った後に
+  // LoxFunction.trampolineが実行する
+  static Object tailCall(Interpreter interpreter, Object callee, Object[] arguments, Token paren) {
+    if (!(callee instanceof LoxFunction)) return call(interpreter, callee, arguments, paren);
+
+    LoxFunction function = (LoxFunction) callee;
+    checkArity(paren, function, arguments);
+    interpreter.scheduleTailCall(function, function.receiver, arguments);
+    return null;
+  }
+
+  private static void checkArity(Token paren, LoxCallable function, Object[] arguments) {
+    if (arguments.length != function.arity()) {
+      throw new RuntimeError(
+          paren, "Expected " + function.arity() + " arguments but got " + arguments.length + ".");
+    }
+  }
+
+  // NOTE: obj.method(...)の呼び出す値を引数より先に引く。メソッドならbindせずにそのまま返し、
+  // invokeがレシーバを渡して呼ぶ
+  static Object lookup(Object object, Expr.Get get) {
+    if (object instanceof LoxInstance) {
+      Interpreter.cacheProperty(get, (LoxInstance) object);
+      if (get.cachedMethod != null) return get.cachedMethod;
+    }
+
+    Object value = Interpreter.getProperty(get, object);
+    if (value instanceof LoxFunction && ((LoxFunction) value).receiver == null) {
+      return new FieldFunction(value);
+    }
+
+    return value;
+  }
+
+  static Object invoke(
+      Interpreter interpreter, Object object, Object callee, Object[] arguments, Token paren) {
+    if (callee instanceof LoxFunction && ((LoxFunction) callee).receiver == null) {
+      LoxFunction method = (LoxFunction) callee;
+      checkArity(paren, method, arguments);
+      return method.invoke(interpreter, (LoxInstance) object, arguments);
+    }
+
+    if (callee instanceof FieldFunction) callee = ((FieldFunction) callee).function;
+    return call(interpreter, callee, arguments, paren);
+  }
+
+  // NOTE: 末尾位置のobj.method(...)。invokeと同じく、メソッドならbindせずにレシーバを渡す
+  static Object tailInvoke(
+      Interpreter interpreter, Object object, Object callee, Object[] arguments, Token paren) {
+    if (callee instanceof LoxFunction && ((LoxFunction) callee).receiver == null) {
+      LoxFunction method = (LoxFunction) callee;
+      checkArity(paren, method, arguments);
+      interpreter.scheduleTailCall(method, (LoxInstance) object, arguments);
+      return null;
+    }
+
+    if (callee instanceof FieldFunction) callee = ((FieldFunction) callee).function;
+    return tailCall(interpreter, callee, arguments, paren);
+  }
+
+  static Object getProperty(Object object, Expr.Get get) {
+    return Interpreter.getProperty(get, object);
+  }
+
+  static LoxInstance instance(Object object, Token name) {
+    if (!(object instanceof LoxInstance)) {
+      throw new RuntimeError(name, "Only instance have fields.");
+    }
+
+    return (LoxInstance) object;
+  }
+
+  static Object setProperty(LoxInstance instance, Object value, Expr.Set set) {
+    Interpreter.setProperty(set, instance, value);
+    return value;
+  }
+
+  static Object getSuper(Object superclass, Object receiver, Token method) {
+    LoxFunction function = ((LoxClass) superclass).findMethod(method.symbol);
+    if (function == null) {
+      throw new RuntimeError(method, "Undefined property '" + method.lexeme + "'.");
+    }
+
+    return function.bind((LoxInstance) receiver);
+  }
+}
@@ -3,30 +3,105 @@ package com.craftinginterpreters.lox;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.nio.charset.Charset;
-import java.nio.file.Files;
 import java.nio.file.Paths;
+import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 
 public class Lox {
+  // NOTE: 同じスクリプトで実行方式ごとのスループットを比べられるよう、--mode=で切り替える
+  enum Mode {
+    TREE, // Interpreterによる木の巡回
+    CLOSURE, // NodeCompilerで変換したノードの実行
+    VM, // VmCompilerで変換したバイトコードの実行
+    REGISTER, // RegisterCompilerで変換したレジスタ方式のバイトコードの実行
+    JIT, // 木の巡回+呼び出し回数の多い関数をJitCompilerでJVMのバイトコードに変換して実行
+  }
+
   private static final Interpreter interpreter = new Interpreter();
+  private static final VirtualMachine vm = new VirtualMachine(interpreter);
+  private static final RegisterMachine registerMachine = new RegisterMachine(interpreter, vm);
+  private static Mode mode = Mode.TREE;
+  // NOTE: trueなら、Optimizerが書き換えた式や文を標準エラーに書き出す
+  private static boolean dumpOptimizations = false;
   static boolean hadError = false;
   static boolean hadRuntimeError = false;
+  // NOTE: 実行中のファイルのreporter。実行時エラーにもどのファイルかを付けるのに使う
+  private static Reporter running = null;
 
   public static void main(String[] args) throws IOException {
-    if (args.length > 1) {
-      System.out.println("Usage: jlox [script]");
+    List<String> scripts = new ArrayList<>();
+    for (String arg : args) {
+      if (arg.startsWith("--mode=")) {
+        mode = parseMode(arg.substring("--mode=".length()));
+      } else if (arg.equals("--dump-optimizations")) {
+        dumpOptimizations = true;
+      } else if (arg.equals("--count-opcodes")) {
+        vm.counter = new OpcodeCounter("stack vm", OpCode.class, op -> false);
+        registerMachine.counter =
+            new OpcodeCounter(
+                "register vm", RegisterOpCode.class, RegisterOpCode::isSuperinstruction);
+      } else {
+        scripts.add(arg);
+      }
+    }
+
+    if (mode == null) {
+      System.out.println(
+          "Usage: jlox [--mode=tree|closure|vm|register|jit] [--count-opcodes]"
+              + " [--dump-optimizations] [script...]");
       System.exit(64);
-    } else if (args.length == 1) {
-      runFile(args[0]);
+    } else if (!scripts.isEmpty()) {
+      runFiles(scripts);
     } else {
       runPrompt();
     }
   }
 
-  private static void runFile(String path) throws IOException {
-    byte[] bytes = Files.readAllBytes(Paths.get(path));
-    run(new String(bytes, Charset.defaultCharset()));
+  private static Mode parseMode(String name) {
+    for (Mode candidate : Mode.values()) {
+      if (candidate.name().equalsIgnoreCase(name)) return candidate;
+    }
+
+    return null;
+  }
+
+  // NOTE: 複数のファイルは1つのプログラムとして、グローバル変数を共有しながら並べた順に実行する。
+  // ファイルごとの字句解析・構文解析・静的解析は互いに独立しているので、ForkJoinPoolで並列に行う。
+  // どこかにエラーがあれば、どのファイルも実行しない。VmCompilerなどのバックエンドは実行の直前に
+  // ファイルごとにコンパイルするので、そこでエラーになったらそのファイルと後のファイルは実行しない
+  private static void runFiles(List<String> paths) throws IOException {
+    List<Program> programs = new ArrayList<>();
+    if (paths.size() == 1) {
+      // NOTE: 1ファイルだけなら並列にする意味がないので、ForkJoinPoolに渡さずこのスレッドで行う
+      CharSequence source = MappedSource.open(Paths.get(paths.get(0)));
+      programs.add(compile(source, new Reporter(null)));
+    } else {
+      List<ForkJoinTask<Program>> tasks = new ArrayList<>();
+      for (String path : paths) {
+        CharSequence source = MappedSource.open(Paths.get(path));
+        Reporter reporter = new Reporter(path);
+        tasks.add(ForkJoinPool.commonPool().submit(() -> compile(source, reporter)));
+      }
+
+      for (ForkJoinTask<Program> task : tasks) {
+        programs.add(task.join());
+      }
+    }
+
+    for (Program program : programs) {
+      report(program.reporter);
+    }
+
+    if (hadError) System.exit(65);
+
+    for (Program program : programs) {
+      execute(program);
+      if (hadError || hadRuntimeError) break;
+    }
+
+    reportCounters();
 
     if (hadError) System.exit(65);
     if (hadRuntimeError) System.exit(70);
@@ -45,50 +120,111 @@ public class Lox {
     }
   }
 
-  private static void run(String source) {
-    Scanner scanner = new Scanner(source);
-    List<Token> tokens = scanner.scanTokens();
+  private static void run(CharSequence source) {
+    Program program = compile(source, new Reporter(null));
+    if (report(program.reporter)) return;
+
+    execute(program);
+    reportCounters();
+  }
+
+  // NOTE: フロントエンドを通した1ファイル分の文。エラーがあればstatementsはnull
+  private static final class Program {
+    Program(List<Stmt> statements, int frameSize, Reporter reporter) {
+      this.statements = statements;
+      this.frameSize = frameSize;
+      this.reporter = reporter;
+    }
+
+    final List<Stmt> statements;
+    final int frameSize;
+    final Reporter reporter;
+  }
+
+  // NOTE: 並列に呼ばれるので、staticな状態には触らずエラーはreporterに溜める
+  private static Program compile(CharSequence source, Reporter reporter) {
+    Scanner scanner = new Scanner(source, reporter);
+    Tokens tokens = scanner.scanTokens();
     /* NOTE: tokenizeのデバッグ用
-    for (Token token : tokens) {
-      System.out.println("token:" + token);
+    for (int i = 0; tokens.type(i) != TokenType.EOF; i++) {
+      System.out.println("token:" + tokens.token(i));
     }
     */
 
-    Parser parser = new Parser(tokens);
+    Parser parser = new Parser(tokens, reporter);
     // Expr expression = parser.parse(); // NOTE: 8.1.3
     List<Stmt> statements = parser.parse();
 
-    if (hadError) return;
+    if (reporter.hadError()) return new Program(null, 0, reporter);
 
-    Resolver resolver = new Resolver(interpreter);
+    Resolver resolver = new Resolver(reporter);
     resolver.resolve(statements);
 
-    if (hadError) return;
+    if (reporter.hadError()) return new Program(null, 0, reporter);
+
+    Optimizer optimizer =
+        new Optimizer(dumpOptimizations ? System.err : null, resolver.frameSize());
+    statements = optimizer.optimize(statements);
+    return new Program(statements, optimizer.frameSize(), reporter);
+  }
 
+  private static void execute(Program program) {
+    List<Stmt> statements = program.statements;
+    running = program.reporter;
     // System.out.println(new AstPrinter().print(expression)); // NOTE: 8.1.3
     // interpreter.interpret(expression);// NOTE: 8.1.3
-    interpreter.interpret(statements);
+    // NOTE: print文の出力はInterpreterに溜まっているので、実行が終わったら(例外で抜けても)書き出す
+    try {
+      switch (mode) {
+        case TREE:
+          interpreter.interpret(statements, program.frameSize);
+          break;
+        case CLOSURE:
+          interpreter.interpret(new NodeCompiler(interpreter).compile(statements));
+          break;
+        case VM:
+          vm.interpret(new VmCompiler().compile(statements));
+          break;
+        case REGISTER:
+          registerMachine.interpret(new RegisterCompiler().compile(statements));
+          break;
+        case JIT:
+          interpreter.jit = true;
+          interpreter.interpret(statements, program.frameSize);
+          break;
+      }
+    } catch (CompileError error) {
+      // NOTE: バックエンドのエラーはフロントエンドのエラーと同じくファイルのreporterで報告し、
+      // 壊れたChunkは実行しない
+      program.reporter.error(error.line, error.getMessage());
+      report(program.reporter);
+    } finally {
+      interpreter.flush();
+    }
   }
 
-  static void error(int line, String message) {
-    report(line, "", message);
+  private static void reportCounters() {
+    if (vm.counter != null) {
+      vm.counter.report(System.err);
+      registerMachine.counter.report(System.err);
+    }
   }
 
-  static void runtimeError(RuntimeError error) {
-    System.err.println(error.getMessage() + "\n[line" + error.token.line + "]");
-    hadRuntimeError = true;
-  }
+  // NOTE: reporterに溜まったエラーを書き出し、あればtrueを返す
+  private static boolean report(Reporter reporter) {
+    if (!reporter.hadError()) return false;
 
-  private static void report(int line, String where, String message) {
-    System.err.println("[line " + line + "] Error" + where + ": " + message);
+    interpreter.flush();
+    reporter.print(System.err);
     hadError = true;
+    return true;
   }
 
-  static void error(Token token, String message) {
-    if (token.type == TokenType.EOF) {
-      report(token.line, " at end", message);
-    } else {
-      report(token.line, " at '" + token.lexeme + "'", message);
-    }
+  // NOTE: 標準エラーに書く前に、それまでのprint文の出力を書き出して順序を保つ
+  static void runtimeError(RuntimeError error) {
+    interpreter.flush();
+    String prefix = running == null ? "" : running.prefix();
+    System.err.println(prefix + error.getMessage() + "\n[line" + error.token.line + "]");
+    hadRuntimeError = true;
   }
 }
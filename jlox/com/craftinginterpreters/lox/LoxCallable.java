@@ -1,9 +1,9 @@
 package com.craftinginterpreters.lox;
 
-import java.util.List;
-
+// NOTE: 引数は呼び出し側が評価のたびに新しく作る配列で渡す。呼ばれた側はそれを自分のものとして
+// そのまま使ってよい(LoxFunctionは仮引数のslotとして環境に取り込む)
 public interface LoxCallable {
   int arity();
 
-  Object call(Interpreter interpreter, List<Object> arguments);
+  Object call(Interpreter interpreter, Object[] arguments);
 }
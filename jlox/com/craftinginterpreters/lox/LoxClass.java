@@ -1,7 +1,6 @@
 package com.craftinginterpreters.lox;
 
-import java.util.HashMap;
-import java.util.List;
+import java.util.Arrays;
 import java.util.Map;
 
 // NOTE: 12.3 で置換
@@ -9,14 +8,14 @@ import java.util.Map;
 class LoxClass implements LoxCallable {
   final String name;
   final LoxClass superclass;
-  final Map<String, LoxFunction> methods;
+  final Map<Symbol, LoxFunction> methods;
 
   @Override
-  public Object call(Interpreter interpreter, List<Object> arguments) {
+  public Object call(Interpreter interpreter, Object[] arguments) {
     LoxInstance instance = new LoxInstance(this);
-    LoxFunction initializer = findMethod("init");
+    LoxFunction initializer = findMethod(Symbol.INIT);
     if (initializer != null) {
-      initializer.bind(instance).call(interpreter, arguments);
+      initializer.invoke(interpreter, instance, arguments);
     }
 
     return instance;
@@ -24,21 +23,20 @@ class LoxClass implements LoxCallable {
 
   @Override
   public int arity() {
-    LoxFunction initializer = findMethod("init");
+    LoxFunction initializer = findMethod(Symbol.INIT);
     if (initializer == null) return 0;
     return initializer.arity();
   }
 
-  LoxClass(String name, LoxClass superclass, Map<String, LoxFunction> methods) {
+  LoxClass(String name, LoxClass superclass, Map<Symbol, LoxFunction> methods) {
     this.superclass = superclass;
     this.name = name;
     this.methods = methods;
   }
 
-  LoxFunction findMethod(String name) {
-    if (methods.containsKey(name)) {
-      return methods.get(name);
-    }
+  LoxFunction findMethod(Symbol name) {
+    LoxFunction method = methods.get(name);
+    if (method != null) return method;
 
     if (superclass != null) {
       return superclass.findMethod(name);
@@ -53,20 +51,25 @@ class LoxClass implements LoxCallable {
   }
 }
 
+// NOTE: フィールドはインスタンスごとのHashMapではなく、共有のShapeと値の配列で持つ
 class LoxInstance {
-  private LoxClass klass;
-  private final Map<String, Object> fields = new HashMap<>();
+  private static final Object[] NO_VALUES = new Object[0];
+
+  final LoxClass klass;
+  Shape shape = Shape.EMPTY;
+  private Object[] values = NO_VALUES;
 
   LoxInstance(LoxClass klass) {
     this.klass = klass;
   }
 
   Object get(Token name) {
-    if (fields.containsKey(name.lexeme)) {
-      return fields.get(name.lexeme);
+    int index = shape.indexOf(name.symbol);
+    if (index != -1) {
+      return values[index];
     }
 
-    LoxFunction method = klass.findMethod(name.lexeme);
+    LoxFunction method = klass.findMethod(name.symbol);
     // NOTE: 12.6 で置換
     // if (method != null) return method;
     if (method != null) return method.bind(this);
@@ -74,8 +77,36 @@ class LoxInstance {
     throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
   }
 
+  boolean hasField(Symbol name) {
+    return shape.indexOf(name) != -1;
+  }
+
   void set(Token name, Object value) {
-    fields.put(name.lexeme, value);
+    int index = shape.indexOf(name.symbol);
+    if (index == -1) {
+      Shape next = shape.withField(name.symbol);
+      index = next.size() - 1;
+      store(next, index, value);
+    } else {
+      values[index] = value;
+    }
+  }
+
+  // NOTE: インラインキャッシュ用。indexはshapeから引いた位置であること
+  Object getField(int index) {
+    return values[index];
+  }
+
+  // NOTE: インラインキャッシュ用。shapeは格納後のShape(フィールドを足さないなら今のShape)
+  void store(Shape shape, int index, Object value) {
+    if (this.shape != shape) {
+      this.shape = shape;
+      if (values.length < shape.size()) {
+        values = Arrays.copyOf(values, Math.max(4, values.length * 2));
+      }
+    }
+
+    values[index] = value;
   }
 
   @Override
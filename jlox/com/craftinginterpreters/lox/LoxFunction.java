@@ -1,25 +1,33 @@
 package com.craftinginterpreters.lox;
 
-import java.util.List;
-
 class LoxFunction implements LoxCallable {
-  private final Stmt.Function declaration;
-  private final Environment closure;
-  private final boolean isInitializer;
+  final Stmt.Function declaration;
+  final Environment closure;
+  final boolean isInitializer;
+  // NOTE: bind済みのメソッドならthisになるインスタンス。束縛していなければnull
+  final LoxInstance receiver;
 
   // NOTE: 10.6. closure対応で引数拡張
   // LoxFunction(Stmt.Function declaration) {
   LoxFunction(Stmt.Function declaration, Environment closure, boolean isInitializer) {
+    this(declaration, closure, isInitializer, null);
+  }
+
+  LoxFunction(
+      Stmt.Function declaration,
+      Environment closure,
+      boolean isInitializer,
+      LoxInstance receiver) {
     this.isInitializer = isInitializer;
     this.closure = closure;
     this.declaration = declaration;
+    this.receiver = receiver;
   }
 
+  // NOTE: 本ではthisだけを入れた環境を作ってclosureにしていたが、thisは呼び出し時の環境の
+  // slot 0に入れるので、ここではインスタンスを覚えておくだけでよい
   LoxFunction bind(LoxInstance instance) {
-    Environment environment = new Environment(closure);
-    environment.define("this", instance);
-
-    return new LoxFunction(declaration, environment, isInitializer);
+    return new LoxFunction(declaration, closure, isInitializer, instance);
     // NOTE: 12.7.1で置換
     // return new LoxFunction(declaration, environment);
   }
@@ -35,27 +43,102 @@ class LoxFunction implements LoxCallable {
   }
 
   @Override
-  public Object call(Interpreter interpreter, List<Object> arguments) {
-    // NOTE: 10.6. closure対応で引数拡張
-    // Environment environment = new Environment(interpreter.globals);
-    Environment environment = new Environment(closure);
-    for (int i = 0; i < declaration.params.size(); i++) {
-      environment.define(declaration.params.get(i).lexeme, arguments.get(i)); // 環境に引数を入れている(!)
+  public Object call(Interpreter interpreter, Object[] arguments) {
+    return invoke(interpreter, receiver, arguments);
+  }
+
+  // NOTE: bind(instance).call(...)と同じだが、束縛済みのLoxFunctionを作らない
+  Object invoke(Interpreter interpreter, LoxInstance receiver, Object[] arguments) {
+    Object value = activate(interpreter, receiver, arguments);
+    // NOTE: ループを持つtrampolineまで呼ぶと再帰の多いコードでinvokeが大きくなり、
+    // インライン展開されにくくなるので、末尾呼び出しがなければここで返す
+    if (interpreter.tailFunction == null) return value;
+    return trampoline(interpreter, value);
+  }
+
+  // NOTE: 本体が末尾呼び出し(return f(x);)で終わっていたら、ここで続けてその関数を実行する。
+  // JitLinkerがJITで生成した本体を、RegisterMachineがRegisterFunctionの本体を直接呼んだ後にも使う
+  static Object trampoline(Interpreter interpreter, Object value) {
+    while (interpreter.tailFunction != null) {
+      LoxFunction function = interpreter.tailFunction;
+      LoxInstance receiver = interpreter.tailReceiver;
+      Object[] arguments = interpreter.tailArguments;
+      interpreter.tailFunction = null;
+      interpreter.tailReceiver = null;
+      interpreter.tailArguments = null;
+
+      value = function.activate(interpreter, receiver, arguments);
     }
 
-    try {
-      interpreter.executeBlock(declaration.body, environment);
-    } catch (Return returnValue) {
-      if (isInitializer) return closure.getAt(0, "this");
+    return value;
+  }
+
+  // NOTE: 本体を1回実行する。末尾呼び出しで終わった場合、その呼び出しはinterpreterに置かれている。
+  // 本体を変換済みのサブクラス(CompiledFunction, VmFunction, RegisterFunction)はここを上書きする
+  Object activate(Interpreter interpreter, LoxInstance receiver, Object[] arguments) {
+    // NOTE: 呼び出し回数がしきい値に達したらJVMのバイトコードにして、以降はそちらを実行する。
+    // コンパイルできなかった関数はcompiledがnullのまま、木の巡回で実行し続ける
+    if (interpreter.jit) {
+      JitCompiler.Body code = declaration.compiled;
+      if (code == null && ++declaration.calls == JitCompiler.THRESHOLD) {
+        code = JitCompiler.compile(interpreter, declaration, receiver != null);
+        declaration.compiled = code;
+      }
+      if (code != null) {
+        Object value = code.run(this, receiver, arguments);
+        return isInitializer ? receiver : value;
+      }
+    }
 
-      return returnValue.value; // 早期リターンの場合、コールスタックでバケツリレーする必要がるためtry catchで帯域脱出する
+    // NOTE: 10.6. closure対応で引数拡張
+    // Environment environment = new Environment(interpreter.globals);
+    Object[] frame = frame(receiver, arguments);
+    Environment environment = closure;
+    if (declaration.heapSize > 0) {
+      // NOTE: 内側の関数に捕捉される変数がある呼び出しだけ環境を作り、捕捉される仮引数を写す
+      environment = new Environment(closure, declaration.heapSize);
+      int[] heapParams = declaration.heapParams;
+      for (int slot = 0; slot < heapParams.length; slot++) {
+        if (heapParams[slot] != -1) environment.assign(slot, frame[heapParams[slot]]);
+      }
     }
 
-    if (isInitializer) return closure.getAt(0, "this");
+    interpreter.executeBody(declaration.body, environment, frame);
+    // NOTE: 早期リターンの場合も、ブロックやループが自分で抜けてくるのでここに戻ってくる
+    Object value = interpreter.completeCall();
+
+    if (isInitializer) return receiver;
 
     // NOTE: 10.5で置換
     // interpreter.executeBlock(declaration.body, environment);
-    return null;
+    return value;
+  }
+
+  // NOTE: 木の巡回で使うフレーム。Resolverはthis(メソッドなら)と仮引数をフレームの先頭に並べるので、
+  // ローカル変数のないメソッドでない関数なら引数の配列をそのままフレームにする
+  private Object[] frame(LoxInstance receiver, Object[] arguments) {
+    int size = declaration.frameSize;
+    if (receiver == null && arguments.length == size) return arguments;
+
+    Object[] frame = new Object[size];
+    int offset = 0;
+    if (receiver != null) frame[offset++] = receiver;
+    System.arraycopy(arguments, 0, frame, offset, arguments.length);
+    return frame;
+  }
+
+  // NOTE: 呼び出し1回につき作るのはこの環境だけにする。メソッドでなければ引数の配列をそのまま
+  // slotとして使い、メソッドならthisをslot 0に、引数をその後ろに並べる(Resolverがこの順にslotを振る)
+  Environment activation(LoxInstance receiver, Object[] arguments) {
+    if (receiver == null) return new Environment(closure, arguments);
+
+    Environment environment = new Environment(closure, arguments.length + 1);
+    environment.define(receiver);
+    for (Object argument : arguments) {
+      environment.define(argument);
+    }
+
+    return environment;
   }
 }
 
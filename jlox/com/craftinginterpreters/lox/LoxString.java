@@ -0,0 +1,88 @@
+package com.craftinginterpreters.lox;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+// NOTE: 文字列の連結結果。s = s + piece;を繰り返しても毎回全体をコピーしないよう、連結は左右を
+// 指すだけの節(ロープ)にしておき、中身が必要になったとき(表示や比較)に1度だけ平らにする。
+// 短い連結はコピーしたほうが安いので、SHORT文字未満ならjava.lang.Stringのまま返す。
+// Loxの文字列の値はStringとLoxStringが混ざるので、型の判定はisStringで行う
+final class LoxString {
+  private static final int SHORT = 64;
+
+  private final int length;
+  // NOTE: 平らにする前の左右(StringかLoxString)。平らにしたらnullにして部分木を手放す
+  private Object left;
+  private Object right;
+  private String flat;
+
+  private LoxString(Object left, Object right, int length) {
+    this.left = left;
+    this.right = right;
+    this.length = length;
+  }
+
+  static boolean isString(Object value) {
+    return value instanceof String || value instanceof LoxString;
+  }
+
+  // NOTE: left, rightはどちらもisStringを満たすこと
+  static Object concat(Object left, Object right) {
+    int length = length(left) + length(right);
+    if (length < SHORT) return left.toString() + right.toString();
+    return new LoxString(left, right, length);
+  }
+
+  private static int length(Object value) {
+    if (value instanceof LoxString) return ((LoxString) value).length;
+    return ((String) value).length();
+  }
+
+  @Override
+  public String toString() {
+    if (flat == null) flatten();
+    return flat;
+  }
+
+  // NOTE: 連結を繰り返したロープは左に深くなるので、再帰せずに右端から順に埋める
+  private void flatten() {
+    char[] chars = new char[length];
+    int end = length;
+    Deque<Object> pending = new ArrayDeque<>();
+    pending.push(left);
+    pending.push(right);
+    while (!pending.isEmpty()) {
+      Object node = pending.pop();
+      if (node instanceof LoxString && ((LoxString) node).flat == null) {
+        pending.push(((LoxString) node).left);
+        pending.push(((LoxString) node).right);
+        continue;
+      }
+
+      String text = node.toString();
+      end -= text.length();
+      text.getChars(0, text.length(), chars, end);
+    }
+
+    flat = new String(chars);
+    left = null;
+    right = null;
+  }
+
+  // NOTE: 中身が同じならStringとも等しい。Interpreter.isEqualがどちらの向きでもここへ来るようにする
+  @Override
+  public boolean equals(Object other) {
+    if (other instanceof LoxString) {
+      if (((LoxString) other).length != length) return false;
+      other = other.toString();
+    }
+
+    if (!(other instanceof String) || ((String) other).length() != length) return false;
+    return toString().equals(other);
+  }
+
+  @Override
+  public int hashCode() {
+    return toString().hashCode();
+  }
+}
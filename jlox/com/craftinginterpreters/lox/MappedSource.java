@@ -0,0 +1,63 @@
+package com.craftinginterpreters.lox;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+
+// NOTE: メモリにマップしたソースファイル。ASCIIだけのファイルはStringにデコードせず、バイトをそのまま
+// 文字として読むので、ファイルの中身をヒープに写さない。ASCII以外を含むときはCharBufferにデコードする
+final class MappedSource implements CharSequence {
+  private final ByteBuffer bytes;
+
+  private MappedSource(ByteBuffer bytes) {
+    this.bytes = bytes;
+  }
+
+  static CharSequence open(Path path) throws IOException {
+    // NOTE: マップした領域はチャネルを閉じても有効
+    try (FileChannel channel = FileChannel.open(path)) {
+      ByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      if (isAscii(bytes)) return new MappedSource(bytes);
+      return Charset.defaultCharset().decode(bytes);
+    }
+  }
+
+  // NOTE: 1バイトずつgetするより速いので、小分けにしてヒープの配列へ写しながら調べる
+  private static boolean isAscii(ByteBuffer bytes) {
+    byte[] chunk = new byte[8192];
+    for (int start = 0; start < bytes.limit(); start += chunk.length) {
+      int length = Math.min(chunk.length, bytes.limit() - start);
+      bytes.get(start, chunk, 0, length);
+      for (int i = 0; i < length; i++) {
+        if (chunk[i] < 0) return false;
+      }
+    }
+
+    return true;
+  }
+
+  @Override
+  public int length() {
+    return bytes.limit();
+  }
+
+  @Override
+  public char charAt(int index) {
+    return (char) bytes.get(index);
+  }
+
+  @Override
+  public CharSequence subSequence(int start, int end) {
+    byte[] chars = new byte[end - start];
+    bytes.get(start, chars);
+    return new String(chars, StandardCharsets.US_ASCII);
+  }
+
+  @Override
+  public String toString() {
+    return subSequence(0, length()).toString();
+  }
+}
@@ -0,0 +1,28 @@
+package com.craftinginterpreters.lox;
+
+// NOTE: ExprNode/StmtNodeの共通部分。実際に見た値の型に合わせてノードが自分自身を特殊化した
+// ノードへ置き換えられるよう、親へのポインタを持っておく(TruffleのNode.replaceと同じ考え方)
+abstract class Node {
+  Node parent;
+
+  <T extends Node> T adopt(T child) {
+    if (child != null) child.parent = this;
+    return child;
+  }
+
+  <T extends Node> T[] adopt(T[] children) {
+    for (T child : children) adopt(child);
+    return children;
+  }
+
+  <T extends Node> T replace(T replacement) {
+    replacement.parent = parent;
+    parent.replaceChild(this, replacement);
+    return replacement;
+  }
+
+  // NOTE: 子を持つノードは、childを指しているフィールドをreplacementに差し替える
+  void replaceChild(Node child, Node replacement) {
+    throw new IllegalStateException(getClass().getSimpleName() + " has no child to replace.");
+  }
+}
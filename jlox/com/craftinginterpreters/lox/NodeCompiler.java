@@ -0,0 +1,245 @@
+package com.craftinginterpreters.lox;
+
+import java.util.List;
+
+// NOTE: Resolver済みのStmt/Exprを、一度だけ実行用のノード(ExprNode/StmtNode)の木に変換する。
+// 変数はResolverが書き込んだdepth/slotから読み書きするノードを選び、演算子は種類ごとのノードにする
+class NodeCompiler implements Expr.Visitor<ExprNode>, Stmt.Visitor<StmtNode> {
+  private final Interpreter interpreter;
+  // NOTE: 0のときはトップレベル(グローバル環境)で宣言している
+  private int scopeDepth = 0;
+
+  NodeCompiler(Interpreter interpreter) {
+    this.interpreter = interpreter;
+  }
+
+  StmtNode[] compile(List<Stmt> statements) {
+    StmtNode[] nodes = new StmtNode[statements.size()];
+    for (int i = 0; i < nodes.length; i++) {
+      nodes[i] = compile(statements.get(i));
+    }
+
+    return nodes;
+  }
+
+  private StmtNode compile(Stmt stmt) {
+    return stmt.accept(this);
+  }
+
+  private ExprNode compile(Expr expr) {
+    return expr.accept(this);
+  }
+
+  private StmtNode define(Token name, ExprNode value) {
+    if (scopeDepth == 0) return new StmtNode.DefineGlobal(name, value);
+    return new StmtNode.DefineLocal(value);
+  }
+
+  private ExprNode.Function function(Stmt.Function stmt) {
+    scopeDepth++;
+    StmtNode[] body = compile(stmt.body);
+    scopeDepth--;
+
+    return new ExprNode.Function(stmt, body);
+  }
+
+  private ExprNode variable(Token name, int depth, int slot) {
+    if (depth == -1) return new ExprNode.GlobalGet(interpreter.globals, name);
+    if (depth == 0) return new ExprNode.LocalGet(slot);
+    return new ExprNode.OuterGet(depth, slot);
+  }
+
+  @Override
+  public StmtNode visitBlockStmt(Stmt.Block stmt) {
+    scopeDepth++;
+    StmtNode[] statements = compile(stmt.statements);
+    scopeDepth--;
+
+    return new StmtNode.Block(statements);
+  }
+
+  @Override
+  public StmtNode visitClassStmt(Stmt.Class stmt) {
+    ExprNode superclass = null;
+    Token superclassName = null;
+    if (stmt.superclass != null) {
+      superclass = compile(stmt.superclass);
+      superclassName = stmt.superclass.name;
+    }
+
+    ExprNode.Function[] methods = new ExprNode.Function[stmt.methods.size()];
+    for (int i = 0; i < methods.length; i++) {
+      methods[i] = function(stmt.methods.get(i));
+    }
+
+    return define(stmt.name, new ExprNode.Class(stmt.name, superclass, superclassName, methods));
+  }
+
+  @Override
+  public StmtNode visitExpressionStmt(Stmt.Expression stmt) {
+    return new StmtNode.Expression(compile(stmt.expression));
+  }
+
+  @Override
+  public StmtNode visitFunctionStmt(Stmt.Function stmt) {
+    return define(stmt.name, function(stmt));
+  }
+
+  @Override
+  public StmtNode visitIfStmt(Stmt.If stmt) {
+    StmtNode elseBranch = null;
+    if (stmt.elseBranch != null) elseBranch = compile(stmt.elseBranch);
+
+    return new StmtNode.If(compile(stmt.condition), compile(stmt.thenBranch), elseBranch);
+  }
+
+  @Override
+  public StmtNode visitPrintStmt(Stmt.Print stmt) {
+    return new StmtNode.Print(interpreter, compile(stmt.expression));
+  }
+
+  @Override
+  public StmtNode visitReturnStmt(Stmt.Return stmt) {
+    ExprNode value = null;
+    if (stmt.value != null) value = compile(stmt.value);
+
+    if (stmt.tailCall) return new StmtNode.TailReturn(value);
+    return new StmtNode.Return(value);
+  }
+
+  @Override
+  public StmtNode visitWhileStmt(Stmt.While stmt) {
+    return new StmtNode.While(compile(stmt.condition), compile(stmt.body));
+  }
+
+  @Override
+  public StmtNode visitVarStmt(Stmt.Var stmt) {
+    ExprNode value = new ExprNode.Constant(null);
+    if (stmt.initializer != null) value = compile(stmt.initializer);
+
+    return define(stmt.name, value);
+  }
+
+  @Override
+  public ExprNode visitAssignExpr(Expr.Assign expr) {
+    ExprNode value = compile(expr.value);
+
+    if (expr.depth == -1) return new ExprNode.GlobalSet(interpreter.globals, expr.name, value);
+    return new ExprNode.LocalSet(expr.depth, expr.slot, value);
+  }
+
+  @Override
+  public ExprNode visitBinaryExpr(Expr.Binary expr) {
+    ExprNode left = compile(expr.left);
+    ExprNode right = compile(expr.right);
+
+    switch (expr.operator.type) {
+      case BANG_EQUAL:
+        return new ExprNode.NotEqual(left, expr.operator, right);
+      case EQUAL_EQUAL:
+        return new ExprNode.Equal(left, expr.operator, right);
+      case GREATER:
+        return new ExprNode.Greater(left, expr.operator, right);
+      case GREATER_EQUAL:
+        return new ExprNode.GreaterEqual(left, expr.operator, right);
+      case LESS:
+        return new ExprNode.Less(left, expr.operator, right);
+      case LESS_EQUAL:
+        return new ExprNode.LessEqual(left, expr.operator, right);
+      case MINUS:
+        return new ExprNode.Subtract(left, expr.operator, right);
+      case PLUS:
+        return new ExprNode.Add(left, expr.operator, right);
+      case SLASH:
+        return new ExprNode.Divide(left, expr.operator, right);
+      case STAR:
+        return new ExprNode.Multiply(left, expr.operator, right);
+    }
+
+    // unreachable.
+    return null;
+  }
+
+  @Override
+  public ExprNode visitCallExpr(Expr.Call expr) {
+    ExprNode[] arguments = new ExprNode[expr.arguments.size()];
+    for (int i = 0; i < arguments.length; i++) {
+      arguments[i] = compile(expr.arguments.get(i));
+    }
+
+    // NOTE: obj.method(...)はプロパティ参照と呼び出しを分けず、bindを省けるInvokeにする
+    if (expr.callee instanceof Expr.Get) {
+      Expr.Get get = (Expr.Get) expr.callee;
+      return new ExprNode.Invoke(interpreter, compile(get.object), get.name, expr.paren, arguments);
+    }
+
+    return new ExprNode.Call(interpreter, compile(expr.callee), expr.paren, arguments);
+  }
+
+  @Override
+  public ExprNode visitGetExpr(Expr.Get expr) {
+    return new ExprNode.Get(compile(expr.object), expr.name);
+  }
+
+  @Override
+  public ExprNode visitGroupingExpr(Expr.Grouping expr) {
+    // NOTE: 括弧は構文上の情報なので、実行用のノードは作らない
+    return compile(expr.expression);
+  }
+
+  // NOTE: ループ不変の式の使い回しは木の巡回とJITだけで行い、ここでは毎回評価する
+  @Override
+  public ExprNode visitInvariantExpr(Expr.Invariant expr) {
+    return compile(expr.expression);
+  }
+
+  @Override
+  public ExprNode visitLiteralExpr(Expr.Literal expr) {
+    if (expr.value instanceof Double) return new ExprNode.NumberConstant((double) expr.value);
+    return new ExprNode.Constant(expr.value);
+  }
+
+  @Override
+  public ExprNode visitLogicalExpr(Expr.Logical expr) {
+    ExprNode left = compile(expr.left);
+    ExprNode right = compile(expr.right);
+
+    if (expr.operator.type == TokenType.OR) return new ExprNode.Or(left, right);
+    return new ExprNode.And(left, right);
+  }
+
+  @Override
+  public ExprNode visitSetExpr(Expr.Set expr) {
+    return new ExprNode.Set(compile(expr.object), expr.name, compile(expr.value));
+  }
+
+  @Override
+  public ExprNode visitSuperExpr(Expr.Super expr) {
+    return new ExprNode.Super(expr.depth, expr.slot, expr.method);
+  }
+
+  @Override
+  public ExprNode visitThisExpr(Expr.This expr) {
+    return variable(expr.keyword, expr.depth, expr.slot);
+  }
+
+  @Override
+  public ExprNode visitUnaryExpr(Expr.Unary expr) {
+    ExprNode right = compile(expr.right);
+
+    switch (expr.operator.type) {
+      case BANG:
+        return new ExprNode.Not(right);
+      case MINUS:
+        return new ExprNode.Negate(expr.operator, right);
+    }
+
+    // unreachable.
+    return null;
+  }
+
+  @Override
+  public ExprNode visitVariableExpr(Expr.Variable expr) {
+    return variable(expr.name, expr.depth, expr.slot);
+  }
+}
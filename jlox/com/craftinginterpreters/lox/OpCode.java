@@ -0,0 +1,59 @@
+package com.craftinginterpreters.lox;
+
+// NOTE: cloxのchunk.hのOpCodeに対応する命令。Chunkのcodeにbyteとして並ぶ。
+// オペランドはいずれも2byte(big endian)で、constは定数表の添字、depth/slotはResolverが振った値
+final class OpCode {
+  static final byte OP_CONSTANT = 0; // const
+  static final byte OP_NIL = 1;
+  static final byte OP_TRUE = 2;
+  static final byte OP_FALSE = 3;
+  static final byte OP_POP = 4;
+
+  static final byte OP_GET_LOCAL = 5; // slot
+  static final byte OP_SET_LOCAL = 6; // slot
+  static final byte OP_GET_OUTER = 7; // depth, slot
+  static final byte OP_SET_OUTER = 8; // depth, slot
+  static final byte OP_GET_GLOBAL = 9; // const(Token)
+  static final byte OP_SET_GLOBAL = 10; // const(Token)
+  static final byte OP_DEFINE_LOCAL = 11;
+  static final byte OP_DEFINE_GLOBAL = 12; // const(Token)
+
+  static final byte OP_GET_PROPERTY = 13; // const(Token)
+  static final byte OP_SET_PROPERTY = 14; // const(Token)
+  static final byte OP_GET_SUPER = 15; // depth, slot, const(Token)
+
+  static final byte OP_EQUAL = 16;
+  static final byte OP_GREATER = 17;
+  static final byte OP_GREATER_EQUAL = 18;
+  static final byte OP_LESS = 19;
+  static final byte OP_LESS_EQUAL = 20;
+  static final byte OP_ADD = 21;
+  static final byte OP_SUBTRACT = 22;
+  static final byte OP_MULTIPLY = 23;
+  static final byte OP_DIVIDE = 24;
+  static final byte OP_NOT = 25;
+  static final byte OP_NEGATE = 26;
+
+  static final byte OP_PRINT = 27;
+  static final byte OP_JUMP = 28; // offset
+  static final byte OP_JUMP_IF_FALSE = 29; // offset (条件の値はpopしない)
+  static final byte OP_LOOP = 30; // offset
+
+  static final byte OP_CALL = 31; // argc
+  // NOTE: obj.method(...)用。GET_METHODでメソッドとレシーバを積み、CALL_METHODでbindせずに呼ぶ
+  static final byte OP_GET_METHOD = 32; // const(Token)
+  static final byte OP_CALL_METHOD = 33; // argc
+  static final byte OP_CLOSURE = 34; // const(VmCompiler.FunctionTemplate)
+  static final byte OP_CLASS = 35; // const(VmCompiler.ClassTemplate)
+  static final byte OP_RETURN = 36;
+
+  static final byte OP_PUSH_SCOPE = 37;
+  static final byte OP_POP_SCOPE = 38;
+
+  // NOTE: return f(x);用。CALL/CALL_METHODと同じく呼んだ後、RETURNせずにそのまま結果を返す。
+  // Loxの関数は呼ばずにInterpreterに置き、LoxFunction.invokeのトランポリンが実行する
+  static final byte OP_TAIL_CALL = 39; // argc
+  static final byte OP_TAIL_CALL_METHOD = 40; // argc
+
+  private OpCode() {}
+}
@@ -0,0 +1,62 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.Arrays;
+import java.util.function.IntPredicate;
+
+// NOTE: --count-opcodesを付けたときに、実行した命令の数を命令ごとに数えて表示する。
+// 同じスクリプトを--mode=vmと--mode=registerで実行して総数を比べれば、レジスタ方式と
+// superinstructionでどれだけdispatchが減ったかが分かる
+final class OpcodeCounter {
+  final long[] counts = new long[256];
+  private final String name;
+  private final String[] opcodes = new String[256];
+  private final IntPredicate superinstruction;
+
+  // NOTE: 命令の名前は命令を定義したクラスのbyte定数から引く
+  OpcodeCounter(String name, Class<?> opcodeClass, IntPredicate superinstruction) {
+    this.name = name;
+    this.superinstruction = superinstruction;
+
+    for (Field field : opcodeClass.getDeclaredFields()) {
+      if (field.getType() != byte.class || !Modifier.isStatic(field.getModifiers())) continue;
+
+      try {
+        opcodes[field.getByte(null) & 0xff] = field.getName();
+      } catch (IllegalAccessException e) {
+        throw new AssertionError(e);
+      }
+    }
+  }
+
+  void report(PrintStream out) {
+    long total = 0;
+    long fused = 0;
+    for (int op = 0; op < counts.length; op++) {
+      total += counts[op];
+      if (superinstruction.test(op)) fused += counts[op];
+    }
+    if (total == 0) return;
+
+    Integer[] order = new Integer[counts.length];
+    for (int op = 0; op < order.length; op++) order[op] = op;
+    Arrays.sort(order, (a, b) -> Long.compare(counts[b], counts[a]));
+
+    out.println("== " + name + ": " + total + " instructions ==");
+    for (int op : order) {
+      if (counts[op] == 0) break;
+
+      out.printf(
+          "%-30s %12d %5.1f%%%s%n",
+          opcodes[op],
+          counts[op],
+          100.0 * counts[op] / total,
+          superinstruction.test(op) ? " *" : "");
+    }
+    out.printf("superinstructions: %d (%.1f%%)%n", fused, 100.0 * fused / total);
+
+    Arrays.fill(counts, 0);
+  }
+}
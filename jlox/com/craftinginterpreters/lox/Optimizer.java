@@ -0,0 +1,548 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+// NOTE: Resolverの後、実行の前にASTを書き換える。リテラルだけの部分木(60 * 60 * 24や!true、
+// 文字列リテラルの連結)を計算済みのリテラルにし、条件がリテラルのifやwhileを刈り込む。
+// ノードはfinalなフィールドしか持たないので、変わった部分だけ作り直し、Resolverの注釈を写す。
+// 実行時にエラーになる組み合わせ("a" - 1など)は、エラーを実行時に出すため畳まない。
+// ループの中では、繰り返しで値の変わらない式(ループ内で代入されない変数やリテラルの演算)を
+// Expr.Invariantで包み、ループに入ってから最初に評価した値を以降の繰り返しで使い回す
+class Optimizer implements Expr.Visitor<Expr>, Stmt.Visitor<Stmt> {
+  // NOTE: 畳めない(実行時にエラーになる)ことを表す。nilのリテラルと区別するためnullは使わない
+  private static final Object UNFOLDABLE = new Object();
+
+  // NOTE: nullでなければ、書き換えた式や文を変更前と変更後の組でここへ書き出す
+  private final PrintStream log;
+  private final AstPrinter printer = new AstPrinter();
+  // NOTE: 今最適化している関数(またはトップレベル)のフレームの大きさ。Invariantの値を置くslotを
+  // 後ろに足していく
+  private int frameSize;
+  // NOTE: 今最適化しているループ。ループの外や、ループの中で宣言された関数の本体ではnull
+  private Loop loop = null;
+
+  // NOTE: ループの中で代入や宣言される名前と、呼び出しがあるか。不変な式かどうかの判定に使う
+  private static class Loop {
+    final Set<String> assigned = new HashSet<>();
+    boolean calls = false;
+    final List<Integer> invariants = new ArrayList<>();
+  }
+
+  // NOTE: frameSizeはResolverが求めたトップレベルのフレームの大きさ
+  Optimizer(PrintStream log, int frameSize) {
+    this.log = log;
+    this.frameSize = frameSize;
+  }
+
+  // NOTE: Invariantのslotを足した後のトップレベルのフレームの大きさ。optimizeの後に呼ぶ
+  int frameSize() {
+    return frameSize;
+  }
+
+  List<Stmt> optimize(List<Stmt> statements) {
+    List<Stmt> result = new ArrayList<>(statements.size());
+    for (Stmt statement : statements) {
+      Stmt optimized = optimize(statement);
+      // NOTE: nullは刈り込んで消えた文
+      if (optimized != null) result.add(optimized);
+    }
+
+    return result;
+  }
+
+  private Stmt optimize(Stmt stmt) {
+    return stmt.accept(this);
+  }
+
+  // NOTE: ifやwhileの本体のように文が1つ必要な場所では、消えた文を空のブロックにする
+  private Stmt optimizeBody(Stmt stmt) {
+    Stmt optimized = optimize(stmt);
+    if (optimized == null) return new Stmt.Block(new ArrayList<>());
+    return optimized;
+  }
+
+  // NOTE: 文の中の式の入口。書き換わっていれば式全体を変更前と変更後で書き出す
+  private Expr optimize(Expr expr) {
+    Expr optimized = fold(expr);
+    if (log != null && optimized != expr) {
+      log.println(printer.print(expr) + " => " + printer.print(optimized));
+    }
+
+    return optimized;
+  }
+
+  private Expr fold(Expr expr) {
+    if (loop == null || !isComputation(expr) || !isInvariant(expr)) return expr.accept(this);
+
+    // NOTE: 中の式は畳むだけにして、包むのは不変な式のうちいちばん外側のものにする
+    Loop current = loop;
+    loop = null;
+    Expr folded = expr.accept(this);
+    loop = current;
+    if (!isComputation(folded)) return folded;
+
+    Expr.Invariant invariant = new Expr.Invariant(folded);
+    invariant.frameSlot = frameSize++;
+    current.invariants.add(invariant.frameSlot);
+    return invariant;
+  }
+
+  // NOTE: 評価のたびに計算(と数値の箱詰め)が起きる式。変数やリテラルだけなら包んでも得をしない
+  private static boolean isComputation(Expr expr) {
+    if (expr instanceof Expr.Grouping) return isComputation(((Expr.Grouping) expr).expression);
+    return expr instanceof Expr.Binary
+        || expr instanceof Expr.Logical
+        || expr instanceof Expr.Unary;
+  }
+
+  // NOTE: 副作用がなく、ループの繰り返しで値が変わらない式。フレームにある変数は
+  // ループ内で代入されなければ変わらない。グローバル変数やクロージャに捕捉された変数は、
+  // ループ内の呼び出しで書き換えられるかもしれないので、呼び出しがないときだけ不変とみなす
+  private boolean isInvariant(Expr expr) {
+    if (expr instanceof Expr.Literal || expr instanceof Expr.This) return true;
+    if (expr instanceof Expr.Grouping) return isInvariant(((Expr.Grouping) expr).expression);
+    if (expr instanceof Expr.Unary) return isInvariant(((Expr.Unary) expr).right);
+    if (expr instanceof Expr.Binary) {
+      Expr.Binary binary = (Expr.Binary) expr;
+      return isInvariant(binary.left) && isInvariant(binary.right);
+    }
+    if (expr instanceof Expr.Logical) {
+      Expr.Logical logical = (Expr.Logical) expr;
+      return isInvariant(logical.left) && isInvariant(logical.right);
+    }
+    if (expr instanceof Expr.Variable) {
+      Expr.Variable variable = (Expr.Variable) expr;
+      if (loop.assigned.contains(variable.name.lexeme)) return false;
+      return variable.frameSlot != -1 || !loop.calls;
+    }
+
+    return false;
+  }
+
+  // NOTE: ループの中の代入と宣言の名前、呼び出しを集める。宣言した関数の本体は呼び出さない限り
+  // 実行されないので見ない(フレームの変数は関数から書き換えられず、ほかは呼び出しで判定する)
+  private static void scan(Loop loop, Stmt stmt) {
+    if (stmt instanceof Stmt.Block) {
+      for (Stmt statement : ((Stmt.Block) stmt).statements) {
+        scan(loop, statement);
+      }
+    } else if (stmt instanceof Stmt.Class) {
+      loop.assigned.add(((Stmt.Class) stmt).name.lexeme);
+    } else if (stmt instanceof Stmt.Expression) {
+      scan(loop, ((Stmt.Expression) stmt).expression);
+    } else if (stmt instanceof Stmt.Function) {
+      loop.assigned.add(((Stmt.Function) stmt).name.lexeme);
+    } else if (stmt instanceof Stmt.If) {
+      Stmt.If ifStmt = (Stmt.If) stmt;
+      scan(loop, ifStmt.condition);
+      scan(loop, ifStmt.thenBranch);
+      if (ifStmt.elseBranch != null) scan(loop, ifStmt.elseBranch);
+    } else if (stmt instanceof Stmt.Print) {
+      scan(loop, ((Stmt.Print) stmt).expression);
+    } else if (stmt instanceof Stmt.Return) {
+      if (((Stmt.Return) stmt).value != null) scan(loop, ((Stmt.Return) stmt).value);
+    } else if (stmt instanceof Stmt.Var) {
+      Stmt.Var var = (Stmt.Var) stmt;
+      loop.assigned.add(var.name.lexeme);
+      if (var.initializer != null) scan(loop, var.initializer);
+    } else if (stmt instanceof Stmt.While) {
+      scan(loop, ((Stmt.While) stmt).condition);
+      scan(loop, ((Stmt.While) stmt).body);
+    }
+  }
+
+  private static void scan(Loop loop, Expr expr) {
+    if (expr instanceof Expr.Assign) {
+      loop.assigned.add(((Expr.Assign) expr).name.lexeme);
+      scan(loop, ((Expr.Assign) expr).value);
+    } else if (expr instanceof Expr.Binary) {
+      scan(loop, ((Expr.Binary) expr).left);
+      scan(loop, ((Expr.Binary) expr).right);
+    } else if (expr instanceof Expr.Call) {
+      loop.calls = true;
+      scan(loop, ((Expr.Call) expr).callee);
+      for (Expr argument : ((Expr.Call) expr).arguments) {
+        scan(loop, argument);
+      }
+    } else if (expr instanceof Expr.Get) {
+      scan(loop, ((Expr.Get) expr).object);
+    } else if (expr instanceof Expr.Grouping) {
+      scan(loop, ((Expr.Grouping) expr).expression);
+    } else if (expr instanceof Expr.Logical) {
+      scan(loop, ((Expr.Logical) expr).left);
+      scan(loop, ((Expr.Logical) expr).right);
+    } else if (expr instanceof Expr.Set) {
+      scan(loop, ((Expr.Set) expr).object);
+      scan(loop, ((Expr.Set) expr).value);
+    } else if (expr instanceof Expr.Unary) {
+      scan(loop, ((Expr.Unary) expr).right);
+    }
+  }
+
+  private List<Expr> fold(List<Expr> exprs) {
+    List<Expr> result = new ArrayList<>(exprs.size());
+    boolean changed = false;
+    for (Expr expr : exprs) {
+      Expr folded = fold(expr);
+      changed |= folded != expr;
+      result.add(folded);
+    }
+
+    return changed ? result : exprs;
+  }
+
+  private void pruned(String what) {
+    if (log != null) log.println(what);
+  }
+
+  @Override
+  public Stmt visitBlockStmt(Stmt.Block stmt) {
+    List<Stmt> statements = optimize(stmt.statements);
+    if (statements.equals(stmt.statements)) return stmt;
+
+    Stmt.Block block = new Stmt.Block(statements);
+    block.heapSize = stmt.heapSize;
+    return block;
+  }
+
+  @Override
+  public Stmt visitClassStmt(Stmt.Class stmt) {
+    List<Stmt.Function> methods = new ArrayList<>(stmt.methods.size());
+    boolean changed = false;
+    for (Stmt.Function method : stmt.methods) {
+      Stmt.Function optimized = (Stmt.Function) optimize(method);
+      changed |= optimized != method;
+      methods.add(optimized);
+    }
+
+    if (!changed) return stmt;
+
+    Stmt.Class klass = new Stmt.Class(stmt.name, stmt.superclass, methods);
+    klass.frameSlot = stmt.frameSlot;
+    klass.heapSlot = stmt.heapSlot;
+    return klass;
+  }
+
+  @Override
+  public Stmt visitExpressionStmt(Stmt.Expression stmt) {
+    Expr expression = optimize(stmt.expression);
+    if (expression == stmt.expression) return stmt;
+    return new Stmt.Expression(expression);
+  }
+
+  @Override
+  public Stmt visitFunctionStmt(Stmt.Function stmt) {
+    Loop enclosingLoop = loop;
+    int enclosingFrameSize = frameSize;
+    loop = null;
+    frameSize = stmt.frameSize;
+    List<Stmt> body = optimize(stmt.body);
+    int size = frameSize;
+    loop = enclosingLoop;
+    frameSize = enclosingFrameSize;
+
+    if (body.equals(stmt.body)) return stmt;
+
+    Stmt.Function function = new Stmt.Function(stmt.name, stmt.params, body);
+    function.frameSlot = stmt.frameSlot;
+    function.heapSlot = stmt.heapSlot;
+    function.frameSize = size;
+    function.heapSize = stmt.heapSize;
+    function.heapParams = stmt.heapParams;
+    return function;
+  }
+
+  // NOTE: ifの本体は宣言にならない(Parser.statement)ので、刈り込んでもslotの順序は変わらない
+  @Override
+  public Stmt visitIfStmt(Stmt.If stmt) {
+    Expr condition = optimize(stmt.condition);
+    if (condition instanceof Expr.Literal) {
+      if (Interpreter.isTruthy(((Expr.Literal) condition).value)) {
+        pruned("if (" + printer.print(condition) + ") => then branch");
+        return optimize(stmt.thenBranch);
+      }
+
+      pruned("if (" + printer.print(condition) + ") => else branch");
+      if (stmt.elseBranch == null) return null;
+      return optimize(stmt.elseBranch);
+    }
+
+    Stmt thenBranch = optimizeBody(stmt.thenBranch);
+    Stmt elseBranch = stmt.elseBranch == null ? null : optimizeBody(stmt.elseBranch);
+    if (condition == stmt.condition
+        && thenBranch == stmt.thenBranch
+        && elseBranch == stmt.elseBranch) {
+      return stmt;
+    }
+
+    return new Stmt.If(condition, thenBranch, elseBranch);
+  }
+
+  @Override
+  public Stmt visitPrintStmt(Stmt.Print stmt) {
+    Expr expression = optimize(stmt.expression);
+    if (expression == stmt.expression) return stmt;
+    return new Stmt.Print(expression);
+  }
+
+  @Override
+  public Stmt visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.value == null) return stmt;
+
+    Expr value = optimize(stmt.value);
+    if (value == stmt.value) return stmt;
+
+    Stmt.Return result = new Stmt.Return(stmt.keyword, value);
+    result.tailCall = stmt.tailCall;
+    return result;
+  }
+
+  @Override
+  public Stmt visitVarStmt(Stmt.Var stmt) {
+    if (stmt.initializer == null) return stmt;
+
+    Expr initializer = optimize(stmt.initializer);
+    if (initializer == stmt.initializer) return stmt;
+
+    Stmt.Var var = new Stmt.Var(stmt.name, initializer);
+    var.frameSlot = stmt.frameSlot;
+    var.heapSlot = stmt.heapSlot;
+    return var;
+  }
+
+  @Override
+  public Stmt visitWhileStmt(Stmt.While stmt) {
+    Loop enclosingLoop = loop;
+    Loop current = new Loop();
+    scan(current, stmt.condition);
+    scan(current, stmt.body);
+
+    loop = current;
+    Expr condition = optimize(stmt.condition);
+    if (condition instanceof Expr.Literal
+        && !Interpreter.isTruthy(((Expr.Literal) condition).value)) {
+      loop = enclosingLoop;
+      pruned("while (" + printer.print(condition) + ") => removed");
+      return null;
+    }
+
+    Stmt body = optimizeBody(stmt.body);
+    loop = enclosingLoop;
+
+    if (condition == stmt.condition && body == stmt.body) return stmt;
+
+    Stmt.While result = new Stmt.While(condition, body);
+    if (!current.invariants.isEmpty()) {
+      result.invariants = current.invariants.stream().mapToInt(Integer::intValue).toArray();
+    }
+    return result;
+  }
+
+  @Override
+  public Expr visitAssignExpr(Expr.Assign expr) {
+    Expr value = fold(expr.value);
+    if (value == expr.value) return expr;
+
+    Expr.Assign assign = new Expr.Assign(expr.name, value);
+    assign.depth = expr.depth;
+    assign.slot = expr.slot;
+    assign.frameSlot = expr.frameSlot;
+    assign.heapDepth = expr.heapDepth;
+    assign.heapSlot = expr.heapSlot;
+    return assign;
+  }
+
+  @Override
+  public Expr visitBinaryExpr(Expr.Binary expr) {
+    Expr left = fold(expr.left);
+    Expr right = fold(expr.right);
+
+    if (left instanceof Expr.Literal && right instanceof Expr.Literal) {
+      Object value =
+          evaluate(expr.operator, ((Expr.Literal) left).value, ((Expr.Literal) right).value);
+      if (value != UNFOLDABLE) return new Expr.Literal(value);
+    }
+
+    Expr simplified = simplify(expr.operator, left, right);
+    if (simplified != null) return simplified;
+
+    if (left == expr.left && right == expr.right) return expr;
+    return new Expr.Binary(left, expr.operator, right);
+  }
+
+  private static Object evaluate(Token operator, Object left, Object right) {
+    switch (operator.type) {
+      case EQUAL_EQUAL:
+        return Interpreter.isEqual(left, right);
+      case BANG_EQUAL:
+        return !Interpreter.isEqual(left, right);
+      case PLUS:
+        if (left instanceof String && right instanceof String) {
+          return (String) left + (String) right;
+        }
+        break;
+      default:
+        break;
+    }
+
+    if (!(left instanceof Double) || !(right instanceof Double)) return UNFOLDABLE;
+
+    double a = (double) left;
+    double b = (double) right;
+    switch (operator.type) {
+      case GREATER:
+        return a > b;
+      case GREATER_EQUAL:
+        return a >= b;
+      case LESS:
+        return a < b;
+      case LESS_EQUAL:
+        return a <= b;
+      case MINUS:
+        return a - b;
+      case PLUS:
+        return a + b;
+      case SLASH:
+        return a / b;
+      case STAR:
+        return a * b;
+      default:
+        return UNFOLDABLE;
+    }
+  }
+
+  // NOTE: 片方がリテラルの恒等式。xが数値だと分かっているときだけx - 0, x * 1, 1 * x, x / 1をxにする
+  // (数値でなければ実行時エラーになるため)。x + 0と0 + xは、xが-0のとき結果が0になるので畳まない
+  private static Expr simplify(Token operator, Expr left, Expr right) {
+    switch (operator.type) {
+      case MINUS:
+      case SLASH:
+        if (isNumber(left) && isLiteral(right, operator.type == TokenType.MINUS ? 0.0 : 1.0)) {
+          return left;
+        }
+        return null;
+      case STAR:
+        if (isNumber(left) && isLiteral(right, 1.0)) return left;
+        if (isLiteral(left, 1.0) && isNumber(right)) return right;
+        return null;
+      default:
+        return null;
+    }
+  }
+
+  private static boolean isLiteral(Expr expr, double value) {
+    return expr instanceof Expr.Literal
+        && Double.valueOf(value).equals(((Expr.Literal) expr).value);
+  }
+
+  // NOTE: 評価すれば(エラーでなければ)必ず数値になる式
+  private static boolean isNumber(Expr expr) {
+    if (expr instanceof Expr.Grouping) return isNumber(((Expr.Grouping) expr).expression);
+    if (expr instanceof Expr.Literal) return ((Expr.Literal) expr).value instanceof Double;
+    if (expr instanceof Expr.Unary) return ((Expr.Unary) expr).operator.type == TokenType.MINUS;
+    if (expr instanceof Expr.Binary) {
+      switch (((Expr.Binary) expr).operator.type) {
+        case MINUS:
+        case SLASH:
+        case STAR:
+          return true;
+        default:
+          return false;
+      }
+    }
+
+    return false;
+  }
+
+  @Override
+  public Expr visitCallExpr(Expr.Call expr) {
+    Expr callee = fold(expr.callee);
+    List<Expr> arguments = fold(expr.arguments);
+    if (callee == expr.callee && arguments == expr.arguments) return expr;
+    return new Expr.Call(callee, expr.paren, arguments);
+  }
+
+  @Override
+  public Expr visitGetExpr(Expr.Get expr) {
+    Expr object = fold(expr.object);
+    if (object == expr.object) return expr;
+    return new Expr.Get(object, expr.name);
+  }
+
+  @Override
+  public Expr visitGroupingExpr(Expr.Grouping expr) {
+    Expr expression = fold(expr.expression);
+    if (expression instanceof Expr.Literal) return expression;
+    if (expression == expr.expression) return expr;
+    return new Expr.Grouping(expression);
+  }
+
+  @Override
+  public Expr visitInvariantExpr(Expr.Invariant expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitLiteralExpr(Expr.Literal expr) {
+    return expr;
+  }
+
+  // NOTE: 左辺がリテラルなら、短絡するか(その値になる)右辺になるかがこの場で決まる
+  @Override
+  public Expr visitLogicalExpr(Expr.Logical expr) {
+    Expr left = fold(expr.left);
+    Expr right = fold(expr.right);
+
+    if (left instanceof Expr.Literal) {
+      boolean truthy = Interpreter.isTruthy(((Expr.Literal) left).value);
+      if (expr.operator.type == TokenType.OR ? truthy : !truthy) return left;
+      return right;
+    }
+
+    if (left == expr.left && right == expr.right) return expr;
+    return new Expr.Logical(left, expr.operator, right);
+  }
+
+  @Override
+  public Expr visitSetExpr(Expr.Set expr) {
+    Expr object = fold(expr.object);
+    Expr value = fold(expr.value);
+    if (object == expr.object && value == expr.value) return expr;
+    return new Expr.Set(object, expr.name, value);
+  }
+
+  @Override
+  public Expr visitSuperExpr(Expr.Super expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitThisExpr(Expr.This expr) {
+    return expr;
+  }
+
+  @Override
+  public Expr visitUnaryExpr(Expr.Unary expr) {
+    Expr right = fold(expr.right);
+
+    if (right instanceof Expr.Literal) {
+      Object value = ((Expr.Literal) right).value;
+      if (expr.operator.type == TokenType.BANG) {
+        return new Expr.Literal(!Interpreter.isTruthy(value));
+      }
+      if (value instanceof Double) return new Expr.Literal(-(double) value);
+    }
+
+    if (right == expr.right) return expr;
+    return new Expr.Unary(expr.operator, right);
+  }
+
+  @Override
+  public Expr visitVariableExpr(Expr.Variable expr) {
+    return expr;
+  }
+}
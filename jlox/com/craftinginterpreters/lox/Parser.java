@@ -9,11 +9,15 @@ import java.util.List;
 class Parser {
   private static class ParseError extends RuntimeException {}
 
-  private final List<Token> tokens;
+  // NOTE: トークン列はTokensの配列のまま読み、ASTに載せるトークンだけpreviousやtokenでTokenにする。
+  // Tokensは直近のトークンしか持たないので、位置を覚えておいて後で読むことはしない
+  private final Tokens tokens;
+  private final Reporter reporter;
   private int current = 0;
 
-  Parser(List<Token> tokens) {
+  Parser(Tokens tokens, Reporter reporter) {
     this.tokens = tokens;
+    this.reporter = reporter;
   }
 
   /* NOTE: 8.1.2で置換
@@ -102,7 +106,7 @@ class Parser {
   }
 
   private Stmt classDeclaration() {
-    Token name = consume(IDENTIFIER, "Expect class name.");
+    Token name = token(consume(IDENTIFIER, "Expect class name."));
 
     Expr.Variable superclass = null;
     if (match(LESS)) {
@@ -234,7 +238,7 @@ class Parser {
 
   private Stmt varDeclaration() {
     // declarationのmatchで今はvar a=24だとするとa部分を指す。ここを消費しつつ、current++
-    Token name = consume(IDENTIFIER, "Expect variable name.");
+    Token name = token(consume(IDENTIFIER, "Expect variable name."));
 
     Expr initializer = null;
     if (match(EQUAL)) { // = を消費
@@ -263,7 +267,7 @@ class Parser {
   // MEMO: finishCallとの違い(?)
   // おそらく定義する話(function)と呼び出す話(finishCall)
   private Stmt.Function function(String kind) {
-    Token name = consume(IDENTIFIER, "Expect" + kind + " name.");
+    Token name = token(consume(IDENTIFIER, "Expect" + kind + " name."));
     consume(LEFT_PAREN, "Expect '(' after" + kind + " name.");
     List<Token> parameters = new ArrayList<>();
 
@@ -273,7 +277,7 @@ class Parser {
           error(peek(), "Can't have more than 255 arguments.");
         }
 
-        parameters.add(consume(IDENTIFIER, "Expect parameter name."));
+        parameters.add(token(consume(IDENTIFIER, "Expect parameter name.")));
       } while (match(COMMA));
     }
     consume(RIGHT_PAREN, "Expect ')' after parameters.");
@@ -363,7 +367,7 @@ class Parser {
         arguments.add(expression());
       } while (match(COMMA));
     }
-    Token paren = consume(RIGHT_PAREN, "Expect ')' after arguments.");
+    Token paren = token(consume(RIGHT_PAREN, "Expect ')' after arguments."));
 
     return new Expr.Call(callee, paren, arguments);
   }
@@ -375,7 +379,7 @@ class Parser {
       if (match(LEFT_PAREN)) {
         expr = finishCall(expr);
       } else if (match(DOT)) {
-        Token name = consume(IDENTIFIER, "Expect property name after '.'.");
+        Token name = token(consume(IDENTIFIER, "Expect property name after '.'."));
         expr = new Expr.Get(expr, name);
       } else {
         break;
@@ -391,13 +395,13 @@ class Parser {
     if (match(NIL)) return new Expr.Literal(null);
 
     if (match(NUMBER, STRING)) {
-      return new Expr.Literal(previous().literal);
+      return new Expr.Literal(tokens.literal(current - 1));
     }
 
     if (match(SUPER)) {
       Token keyword = previous();
       consume(DOT, "Expect ',' after 'super'.");
-      Token method = consume(IDENTIFIER, "Expect superclass method name.");
+      Token method = token(consume(IDENTIFIER, "Expect superclass method name."));
 
       return new Expr.Super(keyword, method);
     }
@@ -428,45 +432,52 @@ class Parser {
     return false;
   }
 
-  private Token consume(TokenType type, String message) {
-    if (check(type)) return advance();
+  // NOTE: 消費したトークンの位置を返す。ASTに載せるときだけ呼び出し側でtokenにする
+  private int consume(TokenType type, String message) {
+    if (check(type)) {
+      advance();
+      return current - 1;
+    }
 
     throw error(peek(), message);
   }
 
+  // NOTE: 末尾ではEOFと比べることになるので、isAtEndを別に確かめなくてもfalseになる
   private boolean check(TokenType type) {
-    if (isAtEnd()) return false;
-    return peek().type == type;
+    return tokens.type(current) == type;
   }
 
-  private Token advance() {
+  private void advance() {
     if (!isAtEnd()) current++;
-    return previous();
   }
 
   private boolean isAtEnd() {
-    return peek().type == EOF;
+    return tokens.type(current) == EOF;
   }
 
   private Token peek() {
-    return tokens.get(current);
+    return token(current);
   }
 
   private Token previous() {
-    return tokens.get(current - 1);
+    return token(current - 1);
+  }
+
+  private Token token(int index) {
+    return tokens.token(index);
   }
 
   private ParseError error(Token token, String message) {
-    Lox.error(token, message);
+    reporter.error(token, message);
     return new ParseError();
   }
 
   private void synchronize() {
     advance();
     while (!isAtEnd()) {
-      if (previous().type == SEMICOLON) return;
+      if (tokens.type(current - 1) == SEMICOLON) return;
 
-      switch (peek().type) {
+      switch (tokens.type(current)) {
         case CLASS:
         case FOR:
         case FUN:
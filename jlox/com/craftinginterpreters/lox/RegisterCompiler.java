@@ -0,0 +1,699 @@
+package com.craftinginterpreters.lox;
+
+import static com.craftinginterpreters.lox.RegisterOpCode.*;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// NOTE: Resolver済みのStmt/Exprをレジスタ方式の命令列に変換する。関数(とトップレベル)ごとに
+// レジスタの配列を1つ使い、ローカル変数はResolverが振った(depth, slot)から決まるレジスタに、
+// 式の途中の値はその上の一時レジスタに置く。ブロックごとの環境は作らないので、ローカル変数を
+// 捕捉しうる関数(本体の中で関数やクラスを宣言している関数)はVmCompilerに任せる
+class RegisterCompiler implements Expr.Visitor<Integer>, Stmt.Visitor<Void> {
+  // NOTE: OP_CLOSUREの定数。onStackならVmCompilerが作ったスタック機械用の命令列を持つ
+  static class FunctionTemplate {
+    FunctionTemplate(Stmt.Function declaration, Chunk chunk, int registers, boolean onStack) {
+      this.declaration = declaration;
+      this.chunk = chunk;
+      this.registers = registers;
+      this.onStack = onStack;
+      this.constants = chunk.constants.toArray();
+    }
+
+    final Stmt.Function declaration;
+    final Chunk chunk;
+    final int registers;
+    final boolean onStack;
+    // NOTE: rkオペランドから引くたびにListを通らないよう、配列にしておく
+    final Object[] constants;
+  }
+
+  static class ClassTemplate {
+    ClassTemplate(Token name, Token superclassName, FunctionTemplate[] methods) {
+      this.name = name;
+      this.superclassName = superclassName;
+      this.methods = methods;
+    }
+
+    final Token name;
+    final Token superclassName;
+    final FunctionTemplate[] methods;
+  }
+
+  // NOTE: プロパティの参照・代入・メソッド呼び出し1箇所ごとの定数。Expr.Get/Expr.Setと同じく、
+  // 直前に見たShapeとクラスから引いた結果を覚えておく
+  static class PropertySite {
+    PropertySite(Token name) {
+      this.name = name;
+    }
+
+    final Token name;
+    Shape shape;
+    LoxClass klass;
+    int index;
+    LoxFunction method;
+    // NOTE: 代入のときの格納後のShape
+    Shape nextShape;
+  }
+
+  // NOTE: 式の値を置くレジスタを指定しないとき
+  private static final int ANY = -1;
+
+  private final Chunk chunk = new Chunk();
+  // NOTE: スコープごとに、slotの順にローカル変数のレジスタを並べる。トップレベルでは空
+  private final List<List<Integer>> scopes = new ArrayList<>();
+  private final Map<Object, Integer> literals = new HashMap<>();
+  // NOTE: これより下のレジスタはローカル変数が使っている。topまでが使用中の一時レジスタ
+  private int locals = 0;
+  private int top = 0;
+  private int registers = 0;
+  // NOTE: 今コンパイルしている式の値を置くレジスタ
+  private int destination = ANY;
+  private int line = 1;
+
+  FunctionTemplate compile(List<Stmt> statements) {
+    // NOTE: トップレベルで宣言した関数やクラスが捕まえるのはグローバル環境だけだが、
+    // ブロックの中で宣言しているならスクリプト全体をスタック機械で実行する
+    for (Stmt statement : statements) {
+      if (statement instanceof Stmt.Function || statement instanceof Stmt.Class) continue;
+      if (!declaresNothing(statement)) {
+        return new FunctionTemplate(null, new VmCompiler().compile(statements), 0, true);
+      }
+    }
+
+    // NOTE: VmCompilerと同じく、限界を超えたら最初の1つでCompileErrorを投げる
+    statements(statements);
+    emit(OP_RETURN);
+    emitShort(literal(null));
+    return new FunctionTemplate(null, chunk, registers, false);
+  }
+
+  private FunctionTemplate function(Stmt.Function stmt, boolean isMethod) {
+    if (!declaresNothing(stmt.body)) {
+      return new FunctionTemplate(stmt, new VmCompiler().function(stmt).chunk, 0, true);
+    }
+
+    RegisterCompiler compiler = new RegisterCompiler();
+    compiler.line = stmt.name.line;
+    compiler.beginScope();
+    // NOTE: Resolverと同じく、メソッドならthisがslot 0で、引数がその後ろに並ぶ
+    if (isMethod) compiler.declareLocal();
+    for (int i = 0; i < stmt.params.size(); i++) {
+      compiler.declareLocal();
+    }
+
+    compiler.statements(stmt.body);
+    compiler.emit(OP_RETURN, stmt.name);
+    compiler.emitShort(compiler.literal(null));
+    return new FunctionTemplate(stmt, compiler.chunk, compiler.registers, false);
+  }
+
+  // NOTE: 関数やクラスの宣言を含まない文なら、その中のローカル変数を捕捉する関数は作られない
+  static boolean declaresNothing(List<Stmt> statements) {
+    for (Stmt statement : statements) {
+      if (!declaresNothing(statement)) return false;
+    }
+
+    return true;
+  }
+
+  private static boolean declaresNothing(Stmt stmt) {
+    if (stmt instanceof Stmt.Function || stmt instanceof Stmt.Class) return false;
+    if (stmt instanceof Stmt.Block) return declaresNothing(((Stmt.Block) stmt).statements);
+    if (stmt instanceof Stmt.While) return declaresNothing(((Stmt.While) stmt).body);
+    if (stmt instanceof Stmt.If) {
+      Stmt.If ifStmt = (Stmt.If) stmt;
+      return declaresNothing(ifStmt.thenBranch)
+          && (ifStmt.elseBranch == null || declaresNothing(ifStmt.elseBranch));
+    }
+
+    return true;
+  }
+
+  // NOTE: 式の中にローカル変数への代入があるか。関数はローカル変数を捕捉しないので、
+  // 呼び出し先で書き換えられることはない
+  private static boolean assigns(Expr expr) {
+    if (expr instanceof Expr.Assign) return true;
+    if (expr instanceof Expr.Binary) {
+      return assigns(((Expr.Binary) expr).left) || assigns(((Expr.Binary) expr).right);
+    }
+    if (expr instanceof Expr.Logical) {
+      return assigns(((Expr.Logical) expr).left) || assigns(((Expr.Logical) expr).right);
+    }
+    if (expr instanceof Expr.Grouping) return assigns(((Expr.Grouping) expr).expression);
+    if (expr instanceof Expr.Unary) return assigns(((Expr.Unary) expr).right);
+    if (expr instanceof Expr.Get) return assigns(((Expr.Get) expr).object);
+    if (expr instanceof Expr.Set) {
+      return assigns(((Expr.Set) expr).object) || assigns(((Expr.Set) expr).value);
+    }
+    if (expr instanceof Expr.Call) {
+      Expr.Call call = (Expr.Call) expr;
+      if (assigns(call.callee)) return true;
+      for (Expr argument : call.arguments) {
+        if (assigns(argument)) return true;
+      }
+    }
+
+    return false;
+  }
+
+  private void statements(List<Stmt> statements) {
+    for (Stmt statement : statements) {
+      statement(statement);
+    }
+  }
+
+  // NOTE: 文の終わりで一時レジスタはすべて空く
+  private void statement(Stmt stmt) {
+    stmt.accept(this);
+    top = locals;
+  }
+
+  private void beginScope() {
+    scopes.add(new ArrayList<>());
+  }
+
+  // NOTE: ローカル変数は文の先頭(一時レジスタがない状態)で宣言するので、localsの位置に置ける
+  private int declareLocal() {
+    int register = allocate();
+    locals = top;
+    scopes.get(scopes.size() - 1).add(register);
+    return register;
+  }
+
+  private int local(int depth, int slot) {
+    return scopes.get(scopes.size() - 1 - depth).get(slot);
+  }
+
+  private boolean isLocal(int operand) {
+    return operand < locals;
+  }
+
+  private int allocate() {
+    if (top == RK_CONSTANT) throw new CompileError(line, "Too many registers in one function.");
+
+    top++;
+    if (top > registers) registers = top;
+    return top - 1;
+  }
+
+  // NOTE: 結果を書くレジスタ。指定がなければ一時レジスタを割り当てる
+  private int target() {
+    return destination == ANY ? allocate() : destination;
+  }
+
+  private int copy(int operand) {
+    int register = allocate();
+    move(register, operand);
+    return register;
+  }
+
+  // NOTE: 値がすでにあるレジスタか定数(rk)を返す。ローカル変数や定数ならコピーしない
+  private int operand(Expr expr) {
+    return compile(expr, ANY);
+  }
+
+  private void compileTo(Expr expr, int register) {
+    int result = compile(expr, register);
+    if (result != register) move(register, result);
+  }
+
+  private int compile(Expr expr, int destination) {
+    int enclosing = this.destination;
+    this.destination = destination;
+    int result = expr.accept(this);
+    this.destination = enclosing;
+    return result;
+  }
+
+  private void emit(int op) {
+    chunk.write(op, line);
+  }
+
+  private void emit(int op, Token token) {
+    line = token.line;
+    emit(op);
+  }
+
+  private void emitShort(int operand) {
+    chunk.writeShort(operand, line);
+  }
+
+  private void move(int register, int operand) {
+    emit(OP_MOVE);
+    emitShort(register);
+    emitShort(operand);
+  }
+
+  private int constant(Object value) {
+    int index = chunk.addConstant(value);
+    if (index >= NO_REGISTER - RK_CONSTANT) {
+      throw new CompileError(line, "Too many constants in one chunk.");
+    }
+    return index;
+  }
+
+  // NOTE: リテラルはrkオペランドにする。同じ値なら定数表の同じ位置を使う
+  private int literal(Object value) {
+    Integer operand = literals.get(value);
+    if (operand == null) {
+      operand = RK_CONSTANT + constant(value);
+      literals.put(value, operand);
+    }
+
+    return operand;
+  }
+
+  // NOTE: 飛び先のオペランドは命令の最後に置く。後でpatchJumpで埋める
+  private int emitJump() {
+    emitShort(0xffff);
+    return chunk.count - 2;
+  }
+
+  private void patchJump(int offset) {
+    int jump = chunk.count - offset - 2;
+    if (jump > 0xffff) throw new CompileError(line, "Too much code to jump over.");
+
+    chunk.code[offset] = (byte) ((jump >> 8) & 0xff);
+    chunk.code[offset + 1] = (byte) (jump & 0xff);
+  }
+
+  private void emitLoop(int loopStart) {
+    emit(OP_LOOP);
+
+    int offset = chunk.count - loopStart + 2;
+    if (offset > 0xffff) throw new CompileError(line, "Loop body too large.");
+    emitShort(offset);
+  }
+
+  // NOTE: 条件が偽のときに飛ぶジャンプを書き、patchJump用の位置を返す。
+  // 条件が比較なら、比較して真偽値をレジスタに置く命令とJUMP_IF_FALSEを1命令にまとめる
+  private int jumpIfFalse(Expr condition) {
+    while (condition instanceof Expr.Grouping) {
+      condition = ((Expr.Grouping) condition).expression;
+    }
+
+    int mark = top;
+    int op = condition instanceof Expr.Binary ? branch(((Expr.Binary) condition).operator) : -1;
+    if (op != -1) {
+      Expr.Binary binary = (Expr.Binary) condition;
+      int left = operand(binary.left);
+      if (isLocal(left) && assigns(binary.right)) left = copy(left);
+      int right = operand(binary.right);
+
+      emit(op, binary.operator);
+      emitShort(left);
+      emitShort(right);
+    } else {
+      int value = operand(condition);
+      emit(OP_JUMP_IF_FALSE);
+      emitShort(value);
+    }
+
+    top = mark;
+    return emitJump();
+  }
+
+  private static int branch(Token operator) {
+    switch (operator.type) {
+      case EQUAL_EQUAL:
+        return OP_JUMP_UNLESS_EQUAL;
+      case BANG_EQUAL:
+        return OP_JUMP_UNLESS_NOT_EQUAL;
+      case GREATER:
+        return OP_JUMP_UNLESS_GREATER;
+      case GREATER_EQUAL:
+        return OP_JUMP_UNLESS_GREATER_EQUAL;
+      case LESS:
+        return OP_JUMP_UNLESS_LESS;
+      case LESS_EQUAL:
+        return OP_JUMP_UNLESS_LESS_EQUAL;
+      default:
+        return -1;
+    }
+  }
+
+  private void defineGlobal(Token name, int operand) {
+    emit(OP_DEFINE_GLOBAL, name);
+    emitShort(constant(name));
+    emitShort(operand);
+  }
+
+  @Override
+  public Void visitBlockStmt(Stmt.Block stmt) {
+    int enclosing = locals;
+    beginScope();
+    statements(stmt.statements);
+    scopes.remove(scopes.size() - 1);
+    locals = enclosing;
+    return null;
+  }
+
+  // NOTE: declaresNothingで弾いているので、関数やクラスの宣言はトップレベルにしか現れない
+  @Override
+  public Void visitClassStmt(Stmt.Class stmt) {
+    int superclass = NO_REGISTER;
+    Token superclassName = null;
+    if (stmt.superclass != null) {
+      superclass = allocate();
+      compileTo(stmt.superclass, superclass);
+      superclassName = stmt.superclass.name;
+    }
+
+    FunctionTemplate[] methods = new FunctionTemplate[stmt.methods.size()];
+    for (int i = 0; i < methods.length; i++) {
+      methods[i] = function(stmt.methods.get(i), true);
+    }
+
+    int register = allocate();
+    emit(OP_CLASS, stmt.name);
+    emitShort(register);
+    emitShort(constant(new ClassTemplate(stmt.name, superclassName, methods)));
+    emitShort(superclass);
+    defineGlobal(stmt.name, register);
+    return null;
+  }
+
+  @Override
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    operand(stmt.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionStmt(Stmt.Function stmt) {
+    int register = allocate();
+    emit(OP_CLOSURE, stmt.name);
+    emitShort(register);
+    emitShort(constant(function(stmt, false)));
+    defineGlobal(stmt.name, register);
+    return null;
+  }
+
+  @Override
+  public Void visitIfStmt(Stmt.If stmt) {
+    int thenJump = jumpIfFalse(stmt.condition);
+    statement(stmt.thenBranch);
+
+    if (stmt.elseBranch == null) {
+      patchJump(thenJump);
+      return null;
+    }
+
+    emit(OP_JUMP);
+    int elseJump = emitJump();
+    patchJump(thenJump);
+    statement(stmt.elseBranch);
+    patchJump(elseJump);
+    return null;
+  }
+
+  @Override
+  public Void visitPrintStmt(Stmt.Print stmt) {
+    int value = operand(stmt.expression);
+    emit(OP_PRINT);
+    emitShort(value);
+    return null;
+  }
+
+  @Override
+  public Void visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.tailCall) {
+      call((Expr.Call) stmt.value, NO_REGISTER, true);
+      return null;
+    }
+
+    int value = stmt.value == null ? literal(null) : operand(stmt.value);
+    emit(OP_RETURN, stmt.keyword);
+    emitShort(value);
+    return null;
+  }
+
+  @Override
+  public Void visitWhileStmt(Stmt.While stmt) {
+    int loopStart = chunk.count;
+    int exitJump = jumpIfFalse(stmt.condition);
+    statement(stmt.body);
+    emitLoop(loopStart);
+    patchJump(exitJump);
+    return null;
+  }
+
+  @Override
+  public Void visitVarStmt(Stmt.Var stmt) {
+    if (scopes.isEmpty()) {
+      int value = stmt.initializer == null ? literal(null) : operand(stmt.initializer);
+      defineGlobal(stmt.name, value);
+      return null;
+    }
+
+    // NOTE: 初期化式を評価している間はまだ宣言していないので、一時レジスタとして扱う
+    int register = allocate();
+    if (stmt.initializer == null) {
+      move(register, literal(null));
+    } else {
+      compileTo(stmt.initializer, register);
+    }
+
+    top = register;
+    declareLocal();
+    return null;
+  }
+
+  @Override
+  public Integer visitAssignExpr(Expr.Assign expr) {
+    if (expr.depth == -1) {
+      int value = destination;
+      if (value == ANY) {
+        value = operand(expr.value);
+      } else {
+        compileTo(expr.value, value);
+      }
+
+      emit(OP_SET_GLOBAL, expr.name);
+      emitShort(constant(expr.name));
+      emitShort(value);
+      return value;
+    }
+
+    // NOTE: 値を直接ローカル変数のレジスタに書くので、i = i + 1は1命令になる
+    int register = local(expr.depth, expr.slot);
+    int result = destination;
+    compileTo(expr.value, register);
+    if (result == ANY || result == register) return register;
+
+    move(result, register);
+    return result;
+  }
+
+  @Override
+  public Integer visitBinaryExpr(Expr.Binary expr) {
+    int register = target();
+    int mark = top;
+    int left = operand(expr.left);
+    if (isLocal(left) && assigns(expr.right)) left = copy(left);
+    int right = operand(expr.right);
+
+    switch (expr.operator.type) {
+      case BANG_EQUAL:
+        emit(OP_NOT_EQUAL, expr.operator);
+        break;
+      case EQUAL_EQUAL:
+        emit(OP_EQUAL, expr.operator);
+        break;
+      case GREATER:
+        emit(OP_GREATER, expr.operator);
+        break;
+      case GREATER_EQUAL:
+        emit(OP_GREATER_EQUAL, expr.operator);
+        break;
+      case LESS:
+        emit(OP_LESS, expr.operator);
+        break;
+      case LESS_EQUAL:
+        emit(OP_LESS_EQUAL, expr.operator);
+        break;
+      case MINUS:
+        emit(OP_SUBTRACT, expr.operator);
+        break;
+      case PLUS:
+        emit(OP_ADD, expr.operator);
+        break;
+      case SLASH:
+        emit(OP_DIVIDE, expr.operator);
+        break;
+      case STAR:
+        emit(OP_MULTIPLY, expr.operator);
+        break;
+    }
+    emitShort(register);
+    emitShort(left);
+    emitShort(right);
+
+    top = mark;
+    return register;
+  }
+
+  @Override
+  public Integer visitCallExpr(Expr.Call expr) {
+    int register = target();
+    call(expr, register, false);
+    return register;
+  }
+
+  // NOTE: 末尾位置の呼び出しなら結果をregisterに置かない
+  private void call(Expr.Call expr, int register, boolean tail) {
+    int mark = top;
+
+    // NOTE: 呼び出す値(INVOKEならレシーバ)と引数を連続したレジスタに置く
+    int base = top;
+    for (int i = 0; i <= expr.arguments.size(); i++) {
+      allocate();
+    }
+
+    Expr.Get get = expr.callee instanceof Expr.Get ? (Expr.Get) expr.callee : null;
+    compileTo(get != null ? get.object : expr.callee, base);
+    for (int i = 0; i < expr.arguments.size(); i++) {
+      compileTo(expr.arguments.get(i), base + 1 + i);
+    }
+
+    // NOTE: obj.method(...)はbindした関数を作らずに呼ぶ
+    if (tail) {
+      emit(get != null ? OP_TAIL_INVOKE : OP_TAIL_CALL, expr.paren);
+    } else {
+      emit(get != null ? OP_INVOKE : OP_CALL, expr.paren);
+      emitShort(register);
+    }
+    emitShort(base);
+    if (get != null) emitShort(constant(new PropertySite(get.name)));
+    emitShort(expr.arguments.size());
+
+    top = mark;
+  }
+
+  @Override
+  public Integer visitGetExpr(Expr.Get expr) {
+    int register = target();
+    int mark = top;
+    int object = operand(expr.object);
+
+    emit(OP_GET_PROPERTY, expr.name);
+    emitShort(register);
+    emitShort(object);
+    emitShort(constant(new PropertySite(expr.name)));
+
+    top = mark;
+    return register;
+  }
+
+  @Override
+  public Integer visitGroupingExpr(Expr.Grouping expr) {
+    return compile(expr.expression, destination);
+  }
+
+  // NOTE: ループ不変の式の使い回しは木の巡回とJITだけで行い、ここでは毎回評価する
+  @Override
+  public Integer visitInvariantExpr(Expr.Invariant expr) {
+    return compile(expr.expression, destination);
+  }
+
+  @Override
+  public Integer visitLiteralExpr(Expr.Literal expr) {
+    int operand = literal(expr.value);
+    if (destination == ANY) return operand;
+
+    move(destination, operand);
+    return destination;
+  }
+
+  @Override
+  public Integer visitLogicalExpr(Expr.Logical expr) {
+    int register = target();
+    // NOTE: 左辺の値を先に書くので、右辺が読むかもしれないローカル変数には直接書かない
+    int result = isLocal(register) ? allocate() : register;
+    int mark = top;
+
+    compileTo(expr.left, result);
+    emit(expr.operator.type == TokenType.OR ? OP_JUMP_IF_TRUE : OP_JUMP_IF_FALSE, expr.operator);
+    emitShort(result);
+    int endJump = emitJump();
+    compileTo(expr.right, result);
+    patchJump(endJump);
+
+    top = mark;
+    if (result != register) move(register, result);
+    return register;
+  }
+
+  @Override
+  public Integer visitSetExpr(Expr.Set expr) {
+    int object = operand(expr.object);
+    if (isLocal(object) && assigns(expr.value)) object = copy(object);
+    int value = operand(expr.value);
+
+    emit(OP_SET_PROPERTY, expr.name);
+    emitShort(object);
+    emitShort(constant(new PropertySite(expr.name)));
+    emitShort(value);
+
+    if (destination == ANY) return value;
+    move(destination, value);
+    return destination;
+  }
+
+  @Override
+  public Integer visitSuperExpr(Expr.Super expr) {
+    int register = target();
+
+    // NOTE: superのスコープはメソッドの外側なので、closureから数えた深さにする
+    emit(OP_GET_SUPER, expr.method);
+    emitShort(register);
+    emitShort(expr.depth - scopes.size());
+    emitShort(expr.slot);
+    emitShort(constant(expr.method));
+    return register;
+  }
+
+  @Override
+  public Integer visitThisExpr(Expr.This expr) {
+    return variable(expr.keyword, expr.depth, expr.slot);
+  }
+
+  @Override
+  public Integer visitUnaryExpr(Expr.Unary expr) {
+    int register = target();
+    int mark = top;
+    int right = operand(expr.right);
+
+    emit(expr.operator.type == TokenType.BANG ? OP_NOT : OP_NEGATE, expr.operator);
+    emitShort(register);
+    emitShort(right);
+
+    top = mark;
+    return register;
+  }
+
+  @Override
+  public Integer visitVariableExpr(Expr.Variable expr) {
+    return variable(expr.name, expr.depth, expr.slot);
+  }
+
+  private int variable(Token name, int depth, int slot) {
+    if (depth == -1) {
+      int register = target();
+      emit(OP_GET_GLOBAL, name);
+      emitShort(register);
+      emitShort(constant(name));
+      return register;
+    }
+
+    int register = local(depth, slot);
+    if (destination == ANY) return register;
+
+    line = name.line;
+    move(destination, register);
+    return destination;
+  }
+}
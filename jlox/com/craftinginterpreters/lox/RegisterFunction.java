@@ -0,0 +1,47 @@
+package com.craftinginterpreters.lox;
+
+// NOTE: RegisterCompilerでレジスタ方式の命令列に変換済みの本体を持つ関数。
+// 呼び出すたびに環境ではなくレジスタの配列を作り、引数をその先頭に並べる
+class RegisterFunction extends LoxFunction {
+  private final RegisterMachine machine;
+  private final RegisterCompiler.FunctionTemplate template;
+
+  RegisterFunction(
+      RegisterMachine machine,
+      RegisterCompiler.FunctionTemplate template,
+      Environment closure,
+      boolean isInitializer,
+      LoxInstance receiver) {
+    super(template.declaration, closure, isInitializer, receiver);
+    this.machine = machine;
+    this.template = template;
+  }
+
+  @Override
+  LoxFunction bind(LoxInstance instance) {
+    return new RegisterFunction(machine, template, closure, isInitializer, instance);
+  }
+
+  @Override
+  Object activate(Interpreter interpreter, LoxInstance receiver, Object[] arguments) {
+    return activate(receiver, arguments, 0, arguments.length);
+  }
+
+  // NOTE: 呼び出し元のレジスタに並んだ引数(arguments[from]から)を新しいレジスタの配列に直接
+  // コピーする。メソッドならthisをレジスタ0に、引数をその後ろに置く(Resolverのslotと同じ順)。
+  // 末尾呼び出しで終わった場合は、呼び出し元がLoxFunction.trampolineで続きを実行する
+  Object activate(LoxInstance receiver, Object[] arguments, int from, int count) {
+    Object[] registers = new Object[template.registers];
+    int first = 0;
+    if (receiver != null) {
+      registers[0] = receiver;
+      first = 1;
+    }
+    System.arraycopy(arguments, from, registers, first, count);
+
+    Object value = machine.run(template, registers, closure);
+
+    if (isInitializer) return receiver;
+    return value;
+  }
+}
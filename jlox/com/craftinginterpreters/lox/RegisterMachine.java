@@ -0,0 +1,511 @@
+package com.craftinginterpreters.lox;
+
+import static com.craftinginterpreters.lox.RegisterOpCode.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// NOTE: RegisterCompilerが作った命令列を実行する。関数の呼び出しごとにレジスタの配列を1つ作り、
+// 命令は読み書きするレジスタ(か定数)をオペランドで直接指定するので、値スタックへの積み下ろしの
+// 命令がいらない。VmCompilerに任せた関数はVirtualMachineで実行する
+class RegisterMachine {
+  private final Interpreter interpreter;
+  private final VirtualMachine vm;
+  OpcodeCounter counter;
+
+  RegisterMachine(Interpreter interpreter, VirtualMachine vm) {
+    this.interpreter = interpreter;
+    this.vm = vm;
+  }
+
+  void interpret(RegisterCompiler.FunctionTemplate script) {
+    if (script.onStack) {
+      vm.interpret(script.chunk);
+      return;
+    }
+
+    try {
+      run(script, new Object[script.registers], interpreter.globals);
+    } catch (RuntimeError error) {
+      Lox.runtimeError(error);
+    }
+  }
+
+  Object run(RegisterCompiler.FunctionTemplate function, Object[] registers, Environment closure) {
+    Chunk chunk = function.chunk;
+    byte[] code = chunk.code;
+    Object[] constants = function.constants;
+    long[] counts = counter == null ? null : counter.counts;
+    int ip = 0;
+
+    for (; ; ) {
+      // NOTE: 実行時エラーの行番号は命令の先頭の位置から引く
+      int start = ip;
+      byte op = code[ip++];
+      if (counts != null) counts[op]++;
+
+      switch (op) {
+        case OP_MOVE:
+          registers[readShort(code, ip)] = rk(registers, constants, readShort(code, ip + 2));
+          ip += 4;
+          break;
+        case OP_GET_GLOBAL:
+          registers[readShort(code, ip)] =
+              interpreter.globals.get((Token) constants[readShort(code, ip + 2)]);
+          ip += 4;
+          break;
+        case OP_SET_GLOBAL:
+          interpreter.globals.assign(
+              (Token) constants[readShort(code, ip)],
+              rk(registers, constants, readShort(code, ip + 2)));
+          ip += 4;
+          break;
+        case OP_DEFINE_GLOBAL:
+          interpreter.globals.define(
+              ((Token) constants[readShort(code, ip)]).symbol,
+              rk(registers, constants, readShort(code, ip + 2)));
+          ip += 4;
+          break;
+
+        case OP_GET_PROPERTY:
+          registers[readShort(code, ip)] =
+              getProperty(
+                  (RegisterCompiler.PropertySite) constants[readShort(code, ip + 4)],
+                  rk(registers, constants, readShort(code, ip + 2)));
+          ip += 6;
+          break;
+        case OP_SET_PROPERTY:
+          setProperty(
+              (RegisterCompiler.PropertySite) constants[readShort(code, ip + 2)],
+              rk(registers, constants, readShort(code, ip)),
+              rk(registers, constants, readShort(code, ip + 4)));
+          ip += 6;
+          break;
+        case OP_GET_SUPER:
+          registers[readShort(code, ip)] =
+              getSuper(
+                  registers,
+                  closure,
+                  readShort(code, ip + 2),
+                  readShort(code, ip + 4),
+                  (Token) constants[readShort(code, ip + 6)]);
+          ip += 8;
+          break;
+
+        case OP_EQUAL:
+          registers[readShort(code, ip)] =
+              Interpreter.isEqual(
+                  rk(registers, constants, readShort(code, ip + 2)),
+                  rk(registers, constants, readShort(code, ip + 4)));
+          ip += 6;
+          break;
+        case OP_NOT_EQUAL:
+          registers[readShort(code, ip)] =
+              !Interpreter.isEqual(
+                  rk(registers, constants, readShort(code, ip + 2)),
+                  rk(registers, constants, readShort(code, ip + 4)));
+          ip += 6;
+          break;
+        case OP_GREATER:
+          registers[readShort(code, ip)] =
+              left(registers, constants, code, ip, chunk, start)
+                  > right(registers, constants, code, ip, chunk, start);
+          ip += 6;
+          break;
+        case OP_GREATER_EQUAL:
+          registers[readShort(code, ip)] =
+              left(registers, constants, code, ip, chunk, start)
+                  >= right(registers, constants, code, ip, chunk, start);
+          ip += 6;
+          break;
+        case OP_LESS:
+          registers[readShort(code, ip)] =
+              left(registers, constants, code, ip, chunk, start)
+                  < right(registers, constants, code, ip, chunk, start);
+          ip += 6;
+          break;
+        case OP_LESS_EQUAL:
+          registers[readShort(code, ip)] =
+              left(registers, constants, code, ip, chunk, start)
+                  <= right(registers, constants, code, ip, chunk, start);
+          ip += 6;
+          break;
+        case OP_ADD:
+          {
+            Object left = rk(registers, constants, readShort(code, ip + 2));
+            Object right = rk(registers, constants, readShort(code, ip + 4));
+            Object value;
+            if (left instanceof Double && right instanceof Double) {
+              value = Doubles.box((double) left + (double) right);
+            } else if (LoxString.isString(left) && LoxString.isString(right)) {
+              value = LoxString.concat(left, right);
+            } else {
+              throw error(chunk, start, "Operands must be two number or two strings.");
+            }
+
+            registers[readShort(code, ip)] = value;
+            ip += 6;
+            break;
+          }
+        case OP_SUBTRACT:
+          registers[readShort(code, ip)] =
+              Doubles.box(
+                  left(registers, constants, code, ip, chunk, start)
+                      - right(registers, constants, code, ip, chunk, start));
+          ip += 6;
+          break;
+        case OP_MULTIPLY:
+          registers[readShort(code, ip)] =
+              Doubles.box(
+                  left(registers, constants, code, ip, chunk, start)
+                      * right(registers, constants, code, ip, chunk, start));
+          ip += 6;
+          break;
+        case OP_DIVIDE:
+          registers[readShort(code, ip)] =
+              Doubles.box(
+                  left(registers, constants, code, ip, chunk, start)
+                      / right(registers, constants, code, ip, chunk, start));
+          ip += 6;
+          break;
+        case OP_NOT:
+          registers[readShort(code, ip)] =
+              !Interpreter.isTruthy(rk(registers, constants, readShort(code, ip + 2)));
+          ip += 4;
+          break;
+        case OP_NEGATE:
+          {
+            Object right = rk(registers, constants, readShort(code, ip + 2));
+            if (!(right instanceof Double)) throw error(chunk, start, "Operand must be a number.");
+            registers[readShort(code, ip)] = Doubles.box(-(double) right);
+            ip += 4;
+            break;
+          }
+
+        case OP_PRINT:
+          interpreter.print(rk(registers, constants, readShort(code, ip)));
+          ip += 2;
+          break;
+        case OP_JUMP:
+          ip += readShort(code, ip) + 2;
+          break;
+        case OP_JUMP_IF_FALSE:
+          if (Interpreter.isTruthy(rk(registers, constants, readShort(code, ip)))) {
+            ip += 4;
+          } else {
+            ip += readShort(code, ip + 2) + 4;
+          }
+          break;
+        case OP_JUMP_IF_TRUE:
+          if (Interpreter.isTruthy(rk(registers, constants, readShort(code, ip)))) {
+            ip += readShort(code, ip + 2) + 4;
+          } else {
+            ip += 4;
+          }
+          break;
+        case OP_LOOP:
+          ip -= readShort(code, ip) - 2;
+          break;
+
+        case OP_JUMP_UNLESS_EQUAL:
+          {
+            Object left = rk(registers, constants, readShort(code, ip));
+            Object right = rk(registers, constants, readShort(code, ip + 2));
+            ip += Interpreter.isEqual(left, right) ? 6 : readShort(code, ip + 4) + 6;
+            break;
+          }
+        case OP_JUMP_UNLESS_NOT_EQUAL:
+          {
+            Object left = rk(registers, constants, readShort(code, ip));
+            Object right = rk(registers, constants, readShort(code, ip + 2));
+            ip += !Interpreter.isEqual(left, right) ? 6 : readShort(code, ip + 4) + 6;
+            break;
+          }
+        case OP_JUMP_UNLESS_GREATER:
+          {
+            double left = number(rk(registers, constants, readShort(code, ip)), chunk, start);
+            double right = number(rk(registers, constants, readShort(code, ip + 2)), chunk, start);
+            ip += left > right ? 6 : readShort(code, ip + 4) + 6;
+            break;
+          }
+        case OP_JUMP_UNLESS_GREATER_EQUAL:
+          {
+            double left = number(rk(registers, constants, readShort(code, ip)), chunk, start);
+            double right = number(rk(registers, constants, readShort(code, ip + 2)), chunk, start);
+            ip += left >= right ? 6 : readShort(code, ip + 4) + 6;
+            break;
+          }
+        case OP_JUMP_UNLESS_LESS:
+          {
+            double left = number(rk(registers, constants, readShort(code, ip)), chunk, start);
+            double right = number(rk(registers, constants, readShort(code, ip + 2)), chunk, start);
+            ip += left < right ? 6 : readShort(code, ip + 4) + 6;
+            break;
+          }
+        case OP_JUMP_UNLESS_LESS_EQUAL:
+          {
+            double left = number(rk(registers, constants, readShort(code, ip)), chunk, start);
+            double right = number(rk(registers, constants, readShort(code, ip + 2)), chunk, start);
+            ip += left <= right ? 6 : readShort(code, ip + 4) + 6;
+            break;
+          }
+
+        case OP_CALL:
+          registers[readShort(code, ip)] =
+              call(chunk, start, registers, readShort(code, ip + 2), readShort(code, ip + 4));
+          ip += 6;
+          break;
+        case OP_INVOKE:
+          registers[readShort(code, ip)] =
+              invoke(
+                  chunk,
+                  start,
+                  (RegisterCompiler.PropertySite) constants[readShort(code, ip + 4)],
+                  registers,
+                  readShort(code, ip + 2),
+                  readShort(code, ip + 6));
+          ip += 8;
+          break;
+        case OP_CLOSURE:
+          registers[readShort(code, ip)] =
+              function(
+                  (RegisterCompiler.FunctionTemplate) constants[readShort(code, ip + 2)],
+                  closure,
+                  false);
+          ip += 4;
+          break;
+        case OP_CLASS:
+          {
+            int superclass = readShort(code, ip + 4);
+            registers[readShort(code, ip)] =
+                defineClass(
+                    (RegisterCompiler.ClassTemplate) constants[readShort(code, ip + 2)],
+                    superclass == NO_REGISTER ? null : registers[superclass],
+                    closure);
+            ip += 6;
+            break;
+          }
+        case OP_RETURN:
+          return rk(registers, constants, readShort(code, ip));
+        case OP_TAIL_CALL:
+          return tailCall(chunk, start, registers, readShort(code, ip), readShort(code, ip + 2));
+        case OP_TAIL_INVOKE:
+          return tailInvoke(
+              chunk,
+              start,
+              (RegisterCompiler.PropertySite) constants[readShort(code, ip + 2)],
+              registers,
+              readShort(code, ip),
+              readShort(code, ip + 4));
+      }
+    }
+  }
+
+  private LoxFunction function(
+      RegisterCompiler.FunctionTemplate template, Environment closure, boolean isInitializer) {
+    if (template.onStack) {
+      return new VmFunction(vm, template.chunk, template.declaration, closure, isInitializer, null);
+    }
+
+    return new RegisterFunction(this, template, closure, isInitializer, null);
+  }
+
+  // NOTE: 頻繁には実行されない命令の本体はrunの外に出し、runを小さく保ってJITが扱いやすくする
+  private LoxClass defineClass(
+      RegisterCompiler.ClassTemplate template, Object superclassValue, Environment environment) {
+    LoxClass superclass = null;
+    if (template.superclassName != null) {
+      if (!(superclassValue instanceof LoxClass)) {
+        throw new RuntimeError(template.superclassName, "Superclass must be class.");
+      }
+      superclass = (LoxClass) superclassValue;
+
+      environment = new Environment(environment, 1);
+      environment.define(superclass);
+    }
+
+    Map<Symbol, LoxFunction> methods = new HashMap<>();
+    for (RegisterCompiler.FunctionTemplate method : template.methods) {
+      Symbol name = method.declaration.name.symbol;
+      methods.put(name, function(method, environment, name == Symbol.INIT));
+    }
+
+    return new LoxClass(template.name.lexeme, superclass, methods);
+  }
+
+  // NOTE: thisはメソッドのレジスタ0にある
+  private LoxFunction getSuper(
+      Object[] registers, Environment closure, int depth, int slot, Token name) {
+    LoxClass superclass = (LoxClass) closure.getAt(depth, slot);
+
+    LoxFunction method = superclass.findMethod(name.symbol);
+    if (method == null) {
+      throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
+    }
+
+    return method.bind((LoxInstance) registers[0]);
+  }
+
+  private Object getProperty(RegisterCompiler.PropertySite site, Object object) {
+    if (object instanceof LoxInstance) {
+      LoxInstance instance = (LoxInstance) object;
+      cacheProperty(site, instance);
+      if (site.index != -1) return instance.getField(site.index);
+      if (site.method != null) return site.method.bind(instance);
+
+      return instance.get(site.name);
+    }
+
+    throw new RuntimeError(site.name, "Only instances have properties.");
+  }
+
+  // NOTE: Interpreter.cachePropertyと同じ。フィールドがあるときはmethodをnullにしておく
+  private void cacheProperty(RegisterCompiler.PropertySite site, LoxInstance instance) {
+    if (instance.shape == site.shape && instance.klass == site.klass) return;
+
+    site.shape = instance.shape;
+    site.klass = instance.klass;
+    site.index = instance.shape.indexOf(site.name.symbol);
+    site.method = null;
+    if (site.index == -1) site.method = instance.klass.findMethod(site.name.symbol);
+  }
+
+  private void setProperty(RegisterCompiler.PropertySite site, Object object, Object value) {
+    if (!(object instanceof LoxInstance)) {
+      throw new RuntimeError(site.name, "Only instance have fields.");
+    }
+
+    LoxInstance instance = (LoxInstance) object;
+    if (instance.shape == site.shape) {
+      instance.store(site.nextShape, site.index, value);
+    } else {
+      site.shape = instance.shape;
+      instance.set(site.name, value);
+      site.nextShape = instance.shape;
+      site.index = instance.shape.indexOf(site.name.symbol);
+    }
+  }
+
+  // NOTE: registers[base]を呼ぶ。引数はその後ろのcount個のレジスタにある
+  private Object call(Chunk chunk, int ip, Object[] registers, int base, int count) {
+    Object callee = registers[base];
+    if (callee instanceof RegisterFunction) {
+      RegisterFunction function = (RegisterFunction) callee;
+      checkArity(chunk, ip, function, count);
+      Object value = function.activate(function.receiver, registers, base + 1, count);
+      if (interpreter.tailFunction == null) return value;
+      return LoxFunction.trampoline(interpreter, value);
+    }
+
+    if (!(callee instanceof LoxCallable)) {
+      throw error(chunk, ip, "Can only call functions and classes.");
+    }
+
+    LoxCallable function = (LoxCallable) callee;
+    checkArity(chunk, ip, function, count);
+
+    return function.call(interpreter, Arrays.copyOfRange(registers, base + 1, base + 1 + count));
+  }
+
+  // NOTE: registers[base]のレシーバのメソッドを、bindした関数を作らずに呼ぶ
+  private Object invoke(
+      Chunk chunk,
+      int ip,
+      RegisterCompiler.PropertySite site,
+      Object[] registers,
+      int base,
+      int count) {
+    Object object = registers[base];
+    if (object instanceof LoxInstance) {
+      LoxInstance instance = (LoxInstance) object;
+      cacheProperty(site, instance);
+      if (site.method != null) {
+        checkArity(chunk, ip, site.method, count);
+        if (site.method instanceof RegisterFunction) {
+          RegisterFunction method = (RegisterFunction) site.method;
+          Object value = method.activate(instance, registers, base + 1, count);
+          if (interpreter.tailFunction == null) return value;
+          return LoxFunction.trampoline(interpreter, value);
+        }
+
+        return site.method.invoke(
+            interpreter, instance, Arrays.copyOfRange(registers, base + 1, base + 1 + count));
+      }
+    }
+
+    registers[base] = getProperty(site, object);
+    return call(chunk, ip, registers, base, count);
+  }
+
+  // NOTE: Loxの関数は呼ばずにInterpreterに置く。クラスやネイティブ関数はその場で呼ぶ
+  private Object tailCall(Chunk chunk, int ip, Object[] registers, int base, int count) {
+    Object callee = registers[base];
+    if (!(callee instanceof LoxFunction)) return call(chunk, ip, registers, base, count);
+
+    LoxFunction function = (LoxFunction) callee;
+    checkArity(chunk, ip, function, count);
+    interpreter.scheduleTailCall(
+        function, function.receiver, Arrays.copyOfRange(registers, base + 1, base + 1 + count));
+    return null;
+  }
+
+  private Object tailInvoke(
+      Chunk chunk,
+      int ip,
+      RegisterCompiler.PropertySite site,
+      Object[] registers,
+      int base,
+      int count) {
+    Object object = registers[base];
+    if (object instanceof LoxInstance) {
+      LoxInstance instance = (LoxInstance) object;
+      cacheProperty(site, instance);
+      if (site.method != null) {
+        checkArity(chunk, ip, site.method, count);
+        interpreter.scheduleTailCall(
+            site.method, instance, Arrays.copyOfRange(registers, base + 1, base + 1 + count));
+        return null;
+      }
+    }
+
+    registers[base] = getProperty(site, object);
+    return tailCall(chunk, ip, registers, base, count);
+  }
+
+  private void checkArity(Chunk chunk, int ip, LoxCallable function, int count) {
+    if (count != function.arity()) {
+      throw error(
+          chunk, ip, "Expected " + function.arity() + " arguments but got " + count + ".");
+    }
+  }
+
+  private double left(
+      Object[] registers, Object[] constants, byte[] code, int ip, Chunk chunk, int start) {
+    return number(rk(registers, constants, readShort(code, ip + 2)), chunk, start);
+  }
+
+  private double right(
+      Object[] registers, Object[] constants, byte[] code, int ip, Chunk chunk, int start) {
+    return number(rk(registers, constants, readShort(code, ip + 4)), chunk, start);
+  }
+
+  private double number(Object value, Chunk chunk, int ip) {
+    if (value instanceof Double) return (double) value;
+    throw error(chunk, ip, "Operands must be a strings.");
+  }
+
+  // NOTE: 命令はトークンを持たないので、行番号表から行番号だけのトークンを作って報告する
+  private RuntimeError error(Chunk chunk, int ip, String message) {
+    return new RuntimeError(new Token(TokenType.EOF, "", null, chunk.lines[ip]), message);
+  }
+
+  private static Object rk(Object[] registers, Object[] constants, int operand) {
+    if (operand < RK_CONSTANT) return registers[operand];
+    return constants[operand - RK_CONSTANT];
+  }
+
+  private static int readShort(byte[] code, int ip) {
+    return ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+  }
+}
@@ -0,0 +1,65 @@
+package com.craftinginterpreters.lox;
+
+// NOTE: RegisterCompiler/RegisterMachine用の命令。OpCodeと同じくオペランドは2byte(big endian)で、
+// 値をスタックに積まずにオペランドで読み書きするレジスタを直接指定する。
+// dst/rはレジスタ番号、rkはレジスタ番号か、RK_CONSTANTを足した定数表の添字(Luaと同じ方式)
+final class RegisterOpCode {
+  static final int RK_CONSTANT = 0x8000;
+  // NOTE: OP_CLASSでスーパークラスがないとき
+  static final int NO_REGISTER = 0xffff;
+
+  static final byte OP_MOVE = 0; // dst, rk
+  static final byte OP_GET_GLOBAL = 1; // dst, const(Token)
+  static final byte OP_SET_GLOBAL = 2; // const(Token), rk
+  static final byte OP_DEFINE_GLOBAL = 3; // const(Token), rk
+
+  static final byte OP_GET_PROPERTY = 4; // dst, rk, const(PropertySite)
+  static final byte OP_SET_PROPERTY = 5; // rk, const(PropertySite), rk
+  static final byte OP_GET_SUPER = 6; // dst, depth, slot, const(Token)
+
+  // NOTE: 算術・比較はdst = rk op rk。dstにローカル変数のレジスタを指定すれば、スタック機械の
+  // GET_LOCAL, CONSTANT, ADD, SET_LOCAL, POPのような並びが1命令になる
+  static final byte OP_EQUAL = 7; // dst, rk, rk
+  static final byte OP_NOT_EQUAL = 8; // dst, rk, rk
+  static final byte OP_GREATER = 9; // dst, rk, rk
+  static final byte OP_GREATER_EQUAL = 10; // dst, rk, rk
+  static final byte OP_LESS = 11; // dst, rk, rk
+  static final byte OP_LESS_EQUAL = 12; // dst, rk, rk
+  static final byte OP_ADD = 13; // dst, rk, rk
+  static final byte OP_SUBTRACT = 14; // dst, rk, rk
+  static final byte OP_MULTIPLY = 15; // dst, rk, rk
+  static final byte OP_DIVIDE = 16; // dst, rk, rk
+  static final byte OP_NOT = 17; // dst, rk
+  static final byte OP_NEGATE = 18; // dst, rk
+
+  static final byte OP_PRINT = 19; // rk
+  static final byte OP_JUMP = 20; // offset
+  static final byte OP_JUMP_IF_FALSE = 21; // rk, offset
+  static final byte OP_JUMP_IF_TRUE = 22; // rk, offset
+  static final byte OP_LOOP = 23; // offset
+
+  // NOTE: superinstruction。if/whileの条件の比較とJUMP_IF_FALSEをまとめ、比較が成り立たなければ飛ぶ
+  static final byte OP_JUMP_UNLESS_EQUAL = 24; // rk, rk, offset
+  static final byte OP_JUMP_UNLESS_NOT_EQUAL = 25; // rk, rk, offset
+  static final byte OP_JUMP_UNLESS_GREATER = 26; // rk, rk, offset
+  static final byte OP_JUMP_UNLESS_GREATER_EQUAL = 27; // rk, rk, offset
+  static final byte OP_JUMP_UNLESS_LESS = 28; // rk, rk, offset
+  static final byte OP_JUMP_UNLESS_LESS_EQUAL = 29; // rk, rk, offset
+
+  // NOTE: 呼び出す値をr、引数をその後ろのレジスタに並べておく。INVOKEはrがレシーバ
+  static final byte OP_CALL = 30; // dst, r, argc
+  static final byte OP_INVOKE = 31; // dst, r, const(PropertySite), argc
+  static final byte OP_CLOSURE = 32; // dst, const(RegisterCompiler.FunctionTemplate)
+  static final byte OP_CLASS = 33; // dst, const(RegisterCompiler.ClassTemplate), r
+  static final byte OP_RETURN = 34; // rk
+  // NOTE: return f(x);用。CALL/INVOKEと同じく呼んだ後、RETURNせずにそのまま結果を返す。
+  // Loxの関数は呼ばずにInterpreterに置き、LoxFunction.invokeのトランポリンが実行する
+  static final byte OP_TAIL_CALL = 35; // r, argc
+  static final byte OP_TAIL_INVOKE = 36; // r, const(PropertySite), argc
+
+  static boolean isSuperinstruction(int op) {
+    return op >= OP_JUMP_UNLESS_EQUAL && op <= OP_JUMP_UNLESS_LESS_EQUAL;
+  }
+
+  private RegisterOpCode() {}
+}
@@ -0,0 +1,47 @@
+package com.craftinginterpreters.lox;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+// NOTE: 1つのソースファイルのコンパイルエラー(Scanner, Parser, Resolver, バックエンドが見つけたもの)を集める。
+// ファイルごとのフロントエンドは並列に動くので、Lox.hadErrorのようなstaticな状態には書かず、
+// ここに溜めておいてLoxがファイルの順に書き出す
+final class Reporter {
+  // NOTE: 複数のファイルを動かすときだけ、どのファイルのエラーかをメッセージの先頭に付ける
+  private final String file;
+  private final List<String> messages = new ArrayList<>();
+
+  Reporter(String file) {
+    this.file = file;
+  }
+
+  synchronized void error(int line, String message) {
+    report(line, "", message);
+  }
+
+  synchronized void error(Token token, String message) {
+    if (token.type == TokenType.EOF) {
+      report(token.line, " at end", message);
+    } else {
+      report(token.line, " at '" + token.lexeme + "'", message);
+    }
+  }
+
+  private void report(int line, String where, String message) {
+    messages.add(prefix() + "[line " + line + "] Error" + where + ": " + message);
+  }
+
+  // NOTE: Loxが実行時エラーを書き出すときにも、同じ接頭辞を付ける
+  String prefix() {
+    return file == null ? "" : file + ": ";
+  }
+
+  synchronized boolean hadError() {
+    return !messages.isEmpty();
+  }
+
+  synchronized void print(PrintStream err) {
+    for (String message : messages) err.println(message);
+  }
+}
@@ -1,16 +1,64 @@
 package com.craftinginterpreters.lox;
 
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Stack;
 
+// NOTE: 変数の置き場所を2通り求める。depth/slotはスコープごとにEnvironmentを作る実行方式用。
+// frameSlot/heapDepth/heapSlotは木の巡回とJIT用で、内側の関数に捕捉されない変数は呼び出しごとの
+// フレーム(Object[])に置き、捕捉される変数だけをEnvironment(clox のupvalueに当たるヒープ上の箱)に置く。
+// 捕捉されるかどうかはスコープを抜けるまで分からないので、後者はスコープを抜けるときに書き込む
 class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
-  private final Interpreter interpreter;
-  public final Stack<Map<String, Boolean>> scopes = new Stack<>();
+  private final Reporter reporter;
+  private final Stack<Scope> scopes = new Stack<>();
   private FunctionType currentFunction = FunctionType.NONE;
+  // NOTE: 今解決している関数のフレーム。トップレベルのブロックで宣言した変数もフレームに置く
+  private Frame frame = new Frame();
+
+  // NOTE: スコープ内で宣言された順にslotを振る。実行時のEnvironmentも同じ順序で値を積む
+  private static class Variable {
+    final int slot;
+    final int frameSlot;
+    final Scope scope;
+    boolean defined;
+    // NOTE: -1でなければ内側の関数に捕捉されていて、スコープのEnvironmentのこの位置に置く
+    int heapSlot = -1;
+
+    Variable(int slot, int frameSlot, Scope scope, boolean defined) {
+      this.slot = slot;
+      this.frameSlot = frameSlot;
+      this.scope = scope;
+      this.defined = defined;
+    }
+  }
+
+  private static class Scope {
+    final Map<String, Variable> variables = new HashMap<>();
+    final Scope enclosing;
+    final Frame frame;
+    // NOTE: 捕捉された変数の数。0でなければ実行時にこのスコープのEnvironmentを作る
+    int heapSize = 0;
+    // NOTE: スコープを抜けるとき(捕捉されるかどうかが決まったとき)に置き場所を書き込む処理
+    final List<Runnable> fixups = new ArrayList<>();
+
+    Scope(Scope enclosing, Frame frame) {
+      this.enclosing = enclosing;
+      this.frame = frame;
+    }
+  }
+
+  // NOTE: 1回の呼び出しのフレーム。ブロックを抜けたら、そのslotは後の宣言で使い回す
+  private static class Frame {
+    int next = 0;
+    int size = 0;
+  }
 
-  Resolver(Interpreter interpreter) {
-    this.interpreter = interpreter;
+  // NOTE: 変数の置き場所の書き込み先。frameSlotが-1ならheapDepth/heapSlotのEnvironmentにある
+  private interface Location {
+    void set(int frameSlot, int heapDepth, int heapSlot);
   }
 
   private enum FunctionType {
@@ -28,16 +76,25 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
   private ClassType currentClass = ClassType.NONE;
 
-  void resolve(java.util.List<Stmt> statements) {
+  Resolver(Reporter reporter) {
+    this.reporter = reporter;
+  }
+
+  void resolve(List<Stmt> statements) {
     for (Stmt statement : statements) {
       resolve(statement);
     }
   }
 
+  // NOTE: トップレベルのフレームの大きさ。resolveの後に呼ぶ
+  int frameSize() {
+    return frame.size;
+  }
+
   public Void visitBlockStmt(Stmt.Block stmt) {
     beginScope();
     resolve(stmt.statements);
-    endScope();
+    stmt.heapSize = endScope().heapSize;
     return null;
   }
 
@@ -45,26 +102,28 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     ClassType enclosingClass = currentClass;
     currentClass = ClassType.CLASS;
 
-    declare(stmt.name);
+    declared(
+        declare(stmt.name),
+        (frameSlot, heapDepth, heapSlot) -> {
+          stmt.frameSlot = frameSlot;
+          stmt.heapSlot = heapSlot;
+        });
     define(stmt.name);
 
     if (stmt.superclass != null && stmt.name.lexeme.equals(stmt.superclass.name.lexeme)) {
-      Lox.error(stmt.superclass.name, "A class can't inherit from itself.");
+      reporter.error(stmt.superclass.name, "A class can't inherit from itself.");
     }
 
-    if (stmt.superclass != null) {
-      beginScope();
-      scopes.peek().put("super", true);
-    }
-
-    beginScope();
-
+    // NOTE: スーパークラスはsuperの環境を作る前に評価するので、その外側で解決する
     if (stmt.superclass != null) {
       currentClass = ClassType.SUBCLASS;
       resolve(stmt.superclass);
+
+      beginScope();
+      // NOTE: superの環境はクラスの宣言時に1つだけ作り、メソッドはそれを閉じ込めるので常にヒープに置く
+      capture(declareSynthetic("super"));
     }
 
-    scopes.peek().put("this", true);
     for (Stmt.Function method : stmt.methods) {
       FunctionType declaration = FunctionType.METHOD;
       if (method.name.lexeme.equals("init")) {
@@ -74,8 +133,6 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
       resolveFunction(method, declaration);
     }
 
-    endScope();
-
     if (stmt.superclass != null) endScope();
 
     currentClass = enclosingClass;
@@ -99,15 +156,17 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   @Override
   public Void visitReturnStmt(Stmt.Return stmt) {
     if (currentFunction == FunctionType.NONE) {
-      Lox.error(stmt.keyword, "Can't return from top-level code.");
+      reporter.error(stmt.keyword, "Can't return from top-level code.");
     }
 
     if (stmt.value != null) {
       if (currentFunction == FunctionType.INITIALIZER) {
-        Lox.error(stmt.keyword, "Can't return a value from an initializer.");
+        reporter.error(stmt.keyword, "Can't return a value from an initializer.");
       }
 
       resolve(stmt.value);
+      // NOTE: 戻り値がそのまま呼び出しの結果なら、呼び出し元に戻ってから呼んでも結果は変わらない
+      stmt.tailCall = stmt.value instanceof Expr.Call;
     }
 
     return null;
@@ -121,7 +180,12 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
   @Override
   public Void visitFunctionStmt(Stmt.Function stmt) {
-    declare(stmt.name);
+    declared(
+        declare(stmt.name),
+        (frameSlot, heapDepth, heapSlot) -> {
+          stmt.frameSlot = frameSlot;
+          stmt.heapSlot = heapSlot;
+        });
     define(stmt.name);
     resolveFunction(stmt, FunctionType.FUNCTION);
     return null;
@@ -129,7 +193,12 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
   @Override
   public Void visitVarStmt(Stmt.Var stmt) {
-    declare(stmt.name);
+    declared(
+        declare(stmt.name),
+        (frameSlot, heapDepth, heapSlot) -> {
+          stmt.frameSlot = frameSlot;
+          stmt.heapSlot = heapSlot;
+        });
     if (stmt.initializer != null) {
       resolve(stmt.initializer);
     }
@@ -147,7 +216,15 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   @Override
   public Void visitAssignExpr(Expr.Assign expr) {
     resolve(expr.value);
-    resolveLocal(expr, expr.name);
+    expr.depth = resolveLocal(expr.name);
+    if (expr.depth != -1) expr.slot = slotOf(expr.depth, expr.name);
+    locate(
+        expr.name,
+        (frameSlot, heapDepth, heapSlot) -> {
+          expr.frameSlot = frameSlot;
+          expr.heapDepth = heapDepth;
+          expr.heapSlot = heapSlot;
+        });
     return null;
   }
 
@@ -181,6 +258,12 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
     return null;
   }
 
+  @Override
+  public Void visitInvariantExpr(Expr.Invariant expr) {
+    resolve(expr.expression);
+    return null;
+  }
+
   @Override
   public Void visitLiteralExpr(Expr.Literal expr) {
     return null;
@@ -204,16 +287,27 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   @Override
   public Void visitSuperExpr(Expr.Super expr) {
     if (currentClass == ClassType.NONE) {
-      Lox.error(expr.keyword, "Can't use 'super' outside of a class.");
+      reporter.error(expr.keyword, "Can't use 'super' outside of a class.");
 
       return null;
     } else if (currentClass != ClassType.SUBCLASS) {
-      Lox.error(expr.keyword, "Can't use 'super' in a class with no superclass.");
+      reporter.error(expr.keyword, "Can't use 'super' in a class with no superclass.");
 
       return null;
     }
 
-    resolveLocal(expr, expr.keyword);
+    expr.depth = resolveLocal(expr.keyword);
+    if (expr.depth != -1) expr.slot = slotOf(expr.depth, expr.keyword);
+    locate(
+        expr.keyword,
+        (frameSlot, heapDepth, heapSlot) -> {
+          expr.heapDepth = heapDepth;
+          expr.heapSlot = heapSlot;
+        });
+
+    // NOTE: superで引いたメソッドを束縛するthisも、thisと同じように置き場所を求めておく
+    expr.receiver = new Expr.This(new Token(TokenType.THIS, "this", null, expr.keyword.line));
+    resolve(expr.receiver);
 
     return null;
   }
@@ -221,12 +315,20 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   @Override
   public Void visitThisExpr(Expr.This expr) {
     if (currentClass == ClassType.NONE) {
-      Lox.error(expr.keyword, "Can't use 'this' outside of a class.");
+      reporter.error(expr.keyword, "Can't use 'this' outside of a class.");
 
       return null;
     }
 
-    resolveLocal(expr, expr.keyword);
+    expr.depth = resolveLocal(expr.keyword);
+    if (expr.depth != -1) expr.slot = slotOf(expr.depth, expr.keyword);
+    locate(
+        expr.keyword,
+        (frameSlot, heapDepth, heapSlot) -> {
+          expr.frameSlot = frameSlot;
+          expr.heapDepth = heapDepth;
+          expr.heapSlot = heapSlot;
+        });
     return null;
   }
 
@@ -238,11 +340,22 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
 
   @Override
   public Void visitVariableExpr(Expr.Variable expr) {
-    if (!scopes.isEmpty() && scopes.peek().get(expr.name.lexeme) == Boolean.FALSE) {
-      Lox.error(expr.name, "Can't read local variable in its own initializer.");
+    if (!scopes.isEmpty()) {
+      Variable variable = scopes.peek().variables.get(expr.name.lexeme);
+      if (variable != null && !variable.defined) {
+        reporter.error(expr.name, "Can't read local variable in its own initializer.");
+      }
     }
 
-    resolveLocal(expr, expr.name);
+    expr.depth = resolveLocal(expr.name);
+    if (expr.depth != -1) expr.slot = slotOf(expr.depth, expr.name);
+    locate(
+        expr.name,
+        (frameSlot, heapDepth, heapSlot) -> {
+          expr.frameSlot = frameSlot;
+          expr.heapDepth = heapDepth;
+          expr.heapSlot = heapSlot;
+        });
     return null;
   }
 
@@ -257,48 +370,141 @@ class Resolver implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
   private void resolveFunction(Stmt.Function function, FunctionType type) {
     FunctionType enclosingFunction = currentFunction;
     currentFunction = type;
+    Frame enclosingFrame = frame;
+    frame = new Frame();
 
     beginScope();
+    // NOTE: 仮引数(とthis)は呼び出し時に引数の配列からフレームの先頭に並べる
+    List<Variable> params = new ArrayList<>();
+    // NOTE: thisは専用のスコープを作らず、メソッド本体のスコープのslot 0に置く
+    if (type == FunctionType.METHOD || type == FunctionType.INITIALIZER) {
+      params.add(declareSynthetic("this"));
+    }
     for (Token param : function.params) {
-      declare(param);
+      params.add(declare(param));
       define(param);
     }
     resolve(function.body);
-    endScope();
+    Scope scope = endScope();
+
+    function.frameSize = frame.size;
+    function.heapSize = scope.heapSize;
+    function.heapParams = null;
+    if (scope.heapSize > 0) {
+      function.heapParams = new int[scope.heapSize];
+      Arrays.fill(function.heapParams, -1);
+      for (Variable param : params) {
+        if (param.heapSlot != -1) function.heapParams[param.heapSlot] = param.frameSlot;
+      }
+    }
+
+    frame = enclosingFrame;
     currentFunction = enclosingFunction;
   }
 
   private void beginScope() {
-    scopes.push(new HashMap<String, Boolean>());
+    scopes.push(new Scope(scopes.isEmpty() ? null : scopes.peek(), frame));
   }
 
-  private void endScope() {
-    scopes.pop();
+  // NOTE: ここで捕捉されるかどうかが決まるので、宣言と参照に置き場所を書き込む
+  private Scope endScope() {
+    Scope scope = scopes.pop();
+    for (Runnable fixup : scope.fixups) {
+      fixup.run();
+    }
+
+    // NOTE: ブロックのフレームのslotは、抜けた後の宣言で使い回す
+    int reserved = scope.frame.next;
+    for (Variable variable : scope.variables.values()) {
+      reserved = Math.min(reserved, variable.frameSlot);
+    }
+    scope.frame.next = reserved;
+
+    return scope;
   }
 
-  private void declare(Token name) {
-    if (scopes.empty()) return;
+  private Variable declare(Token name) {
+    if (scopes.empty()) return null;
 
-    Map<String, Boolean> scope = scopes.peek();
+    Scope scope = scopes.peek();
     // 同一スコープ内で変数宣言が被った場合エラーログ出力
-    if (scope.containsKey(name.lexeme)) {
-      Lox.error(name, "Already a variable with this name in this scope.");
+    if (scope.variables.containsKey(name.lexeme)) {
+      reporter.error(name, "Already a variable with this name in this scope.");
     }
 
-    scope.put(name.lexeme, false);
+    Variable variable = new Variable(scope.variables.size(), allocate(), scope, false);
+    scope.variables.put(name.lexeme, variable);
+    return variable;
   }
 
   private void define(Token name) {
     if (scopes.isEmpty()) return;
-    scopes.peek().put(name.lexeme, true);
+    scopes.peek().variables.get(name.lexeme).defined = true;
+  }
+
+  // NOTE: this, superは実行時に専用のEnvironmentへ1つだけ積まれるため、slotは常に0になる
+  private Variable declareSynthetic(String name) {
+    Scope scope = scopes.peek();
+    Variable variable = new Variable(scope.variables.size(), allocate(), scope, true);
+    scope.variables.put(name, variable);
+    return variable;
+  }
+
+  private int allocate() {
+    int slot = frame.next++;
+    frame.size = Math.max(frame.size, frame.next);
+    return slot;
+  }
+
+  private void capture(Variable variable) {
+    if (variable.heapSlot == -1) variable.heapSlot = variable.scope.heapSize++;
+  }
+
+  // NOTE: 宣言した変数の置き場所。グローバル変数(variableがnull)なら何もしない
+  private void declared(Variable variable, Location location) {
+    if (variable == null) return;
+    variable.scope.fixups.add(() -> place(variable, variable.scope, location));
+  }
+
+  // NOTE: 参照した変数の置き場所。別の関数で宣言された変数を参照したら、その変数は捕捉される
+  private void locate(Token name, Location location) {
+    for (int i = scopes.size() - 1; i >= 0; i--) {
+      Variable variable = scopes.get(i).variables.get(name.lexeme);
+      if (variable == null) continue;
+
+      Scope use = scopes.peek();
+      if (variable.scope.frame != use.frame) capture(variable);
+      variable.scope.fixups.add(() -> place(variable, use, location));
+      return;
+    }
+  }
+
+  private static void place(Variable variable, Scope use, Location location) {
+    if (variable.heapSlot == -1) {
+      location.set(variable.frameSlot, 0, -1);
+      return;
+    }
+
+    // NOTE: 実行時のEnvironmentの連なりは、外側に向かってEnvironmentを作るスコープだけが並ぶ
+    int heapDepth = 0;
+    for (Scope scope = use; scope != variable.scope; scope = scope.enclosing) {
+      if (scope.heapSize > 0) heapDepth++;
+    }
+    location.set(-1, heapDepth, variable.heapSlot);
   }
 
-  private void resolveLocal(Expr expr, Token name) {
+  // NOTE: 解決したスコープまでの距離をASTのノードに直接書き込む。見つからなければグローバル(-1)
+  private int resolveLocal(Token name) {
     for (int i = scopes.size() - 1; i >= 0; i--) {
-      if (scopes.get(i).containsKey(name.lexeme)) {
-        interpreter.resolve(expr, scopes.size() - 1 - i);
-        return;
+      if (scopes.get(i).variables.containsKey(name.lexeme)) {
+        return scopes.size() - 1 - i;
       }
     }
+
+    return -1;
+  }
+
+  private int slotOf(int depth, Token name) {
+    return scopes.get(scopes.size() - 1 - depth).variables.get(name.lexeme).slot;
   }
 }
@@ -2,51 +2,67 @@ package com.craftinginterpreters.lox;
 
 import static com.craftinginterpreters.lox.TokenType.*;
 
-import java.util.ArrayList;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
-
 class Scanner {
-  private final String source;
-  private final List<Token> tokens = new ArrayList<>();
+  // NOTE: 識別子かキーワードの字句と、その種類。識別子ならSymbolも持つ
+  private static final class Name {
+    Name(String text, TokenType type, Symbol symbol) {
+      this.text = text;
+      this.type = type;
+      this.symbol = symbol;
+    }
+
+    final String text;
+    final TokenType type;
+    final Symbol symbol;
+  }
+
+  private final CharSequence source;
+  private final int length;
+  private final Tokens tokens;
+  private final Reporter reporter;
+  // NOTE: このソースで見つけた識別子とキーワードのハッシュ表(オープンアドレス法)。同じ名前には
+  // substringを作らずsourceの範囲と比べて、最初に作ったNameを使い回す。キーワードかどうかを
+  // 調べるのも、その名前を初めて見たときだけになる
+  private Name[] names = new Name[256];
+  private int nameCount = 0;
   private int start = 0;
   private int current = 0;
   private int line = 1;
-  private static final Map<String, TokenType> keywords;
+  // NOTE: ASCIIの文字ごとの種類。isAlphaやisDigitを範囲の比較を重ねずに表を1回引くだけで済ませる
+  private static final byte DIGIT = 1;
+  private static final byte ALPHA = 2;
+  private static final byte[] classes = new byte[128];
 
   static {
-    keywords = new HashMap<>();
-    keywords.put("and", AND);
-    keywords.put("class", CLASS);
-    keywords.put("else", ELSE);
-    keywords.put("false", FALSE);
-    keywords.put("for", FOR);
-    keywords.put("fun", FUN);
-    keywords.put("if", IF);
-    keywords.put("nil", NIL);
-    keywords.put("or", OR);
-    keywords.put("print", PRINT);
-    keywords.put("return", RETURN);
-    keywords.put("super", SUPER);
-    keywords.put("this", THIS);
-    keywords.put("true", TRUE);
-    keywords.put("var", VAR);
-    keywords.put("while", WHILE);
-  }
-
-  Scanner(String source) {
+    for (char c = '0'; c <= '9'; c++) classes[c] = DIGIT;
+    for (char c = 'a'; c <= 'z'; c++) classes[c] = ALPHA;
+    for (char c = 'A'; c <= 'Z'; c++) classes[c] = ALPHA;
+    classes['_'] = ALPHA;
+  }
+
+  Scanner(CharSequence source, Reporter reporter) {
     this.source = source;
+    this.length = source.length();
+    this.tokens = new Tokens(source, this);
+    this.reporter = reporter;
+  }
+
+  // NOTE: ここではまだ走査しない。Parserがtokensを読み進めるのに合わせてscanNextで走査する
+  Tokens scanTokens() {
+    return tokens;
   }
 
-  List<Token> scanTokens() {
-    while (!isAtEnd()) {
+  // NOTE: トークンがcount個以上になるまで走査する。末尾まで来たらEOFを足して止める
+  void scanNext(int count) {
+    while (tokens.size() < count) {
+      if (isAtEnd()) {
+        tokens.add(EOF, current, 0, line, null);
+        return;
+      }
+
       start = current;
       scanToken();
     }
-
-    tokens.add(new Token(EOF, "", null, line));
-    return tokens;
   }
 
   private void scanToken() {
@@ -120,7 +136,7 @@ class Scanner {
         } else if (isAlpha(c)) {
           identifier();
         } else {
-          Lox.error(line, "Unexpected character.");
+          reporter.error(line, "Unexpected character.");
         }
 
         break;
@@ -128,26 +144,108 @@ class Scanner {
   }
 
   private void identifier() {
-    while (isAlphaNumeric(peek())) advance(); // アルファベッド、数値が続く限り進める。var a = 24などはvからはじめvarまで
+    // NOTE: 字句を読みながら、名前の表を引くためのhash(String.hashCodeと同じ計算)も求める。
+    // advanceで読み直さないよう、peekで読んだ文字を使ってcurrentを直接進める
+    int hash = source.charAt(start);
+    // アルファベッド、数値が続く限り進める。var a = 24などはvからはじめvarまで
+    for (char c = peek(); isAlphaNumeric(c); c = peek()) {
+      hash = 31 * hash + c;
+      current++;
+    }
+
+    Name name = name(hash); // 初期位置からの字句(var)
+    if (name.type == IDENTIFIER) {
+      addToken(IDENTIFIER, name.symbol);
+    } else {
+      addToken(name.type);
+    }
+  }
+
+  // NOTE: clox と同じく、キーワードかどうかを先頭の文字と残りの文字列の比較で決める。
+  // 字句のStringを作ったりハッシュ表を引いたりしない
+  private TokenType identifierType() {
+    switch (source.charAt(start)) {
+      case 'a':
+        return checkKeyword(1, "nd", AND);
+      case 'c':
+        return checkKeyword(1, "lass", CLASS);
+      case 'e':
+        return checkKeyword(1, "lse", ELSE);
+      case 'f':
+        if (current - start > 1) {
+          switch (source.charAt(start + 1)) {
+            case 'a':
+              return checkKeyword(2, "lse", FALSE);
+            case 'o':
+              return checkKeyword(2, "r", FOR);
+            case 'u':
+              return checkKeyword(2, "n", FUN);
+          }
+        }
+        break;
+      case 'i':
+        return checkKeyword(1, "f", IF);
+      case 'n':
+        return checkKeyword(1, "il", NIL);
+      case 'o':
+        return checkKeyword(1, "r", OR);
+      case 'p':
+        return checkKeyword(1, "rint", PRINT);
+      case 'r':
+        return checkKeyword(1, "eturn", RETURN);
+      case 's':
+        return checkKeyword(1, "uper", SUPER);
+      case 't':
+        if (current - start > 1) {
+          switch (source.charAt(start + 1)) {
+            case 'h':
+              return checkKeyword(2, "is", THIS);
+            case 'r':
+              return checkKeyword(2, "ue", TRUE);
+          }
+        }
+        break;
+      case 'v':
+        return checkKeyword(1, "ar", VAR);
+      case 'w':
+        return checkKeyword(1, "hile", WHILE);
+    }
 
-    String text = source.substring(start, current); // 初期位置から抜き出す(var)
-    TokenType type = keywords.get(text);
-    if (type == null) type = IDENTIFIER;
+    return IDENTIFIER;
+  }
 
-    addToken(type);
+  private TokenType checkKeyword(int offset, String rest, TokenType type) {
+    if (current - start == offset + rest.length() && matches(start + offset, rest)) return type;
+    return IDENTIFIER;
   }
 
   private void number() {
-    while (isDigit(peek())) advance();
+    while (isDigit(peek())) current++;
 
     // NOTE: 2個の先読みが必要`.`の後に数字があることが確定するまで`.`を消費したくないから
     if (peek() == '.' && isDigit(peekNext())) {
       advance();
 
-      while (isDigit(peek())) advance();
+      while (isDigit(peek())) current++;
+    }
+
+    addToken(NUMBER, parseNumber());
+  }
+
+  // NOTE: 小数点のない15桁以下の数はdoubleで正確に表せるので、substringを作らずに桁から組み立てる
+  private double parseNumber() {
+    if (current - start > 15) {
+      return Double.parseDouble(text(start, current));
+    }
+
+    long value = 0;
+    for (int i = start; i < current; i++) {
+      char c = source.charAt(i);
+      if (c == '.') return Double.parseDouble(text(start, current));
+      value = value * 10 + (c - '0');
     }
 
-    addToken(NUMBER, Double.parseDouble(source.substring(start, current)));
+    return value;
   }
 
   private void string() {
@@ -157,13 +255,13 @@ class Scanner {
     }
 
     if (isAtEnd()) {
-      Lox.error(line, "Unterminated string.");
+      reporter.error(line, "Unterminated string.");
       return;
     }
 
     advance(); // 閉じる"の分を消費する
 
-    String value = source.substring(start + 1, current - 1);
+    String value = text(start + 1, current - 1);
     addToken(STRING, value);
   }
 
@@ -181,24 +279,24 @@ class Scanner {
   }
 
   private char peekNext() {
-    if (current + 1 >= source.length()) return '\0';
+    if (current + 1 >= length) return '\0';
     return source.charAt(current + 1);
   }
 
   private boolean isAlpha(char c) {
-    return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+    return c < 128 && classes[c] == ALPHA;
   }
 
   private boolean isAlphaNumeric(char c) {
-    return isAlpha(c) || isDigit(c);
+    return c < 128 && classes[c] != 0;
   }
 
   private boolean isDigit(char c) {
-    return c >= '0' && c <= '9';
+    return c < 128 && classes[c] == DIGIT;
   }
 
   private boolean isAtEnd() {
-    return current >= source.length();
+    return current >= length;
   }
 
   private char advance() {
@@ -210,7 +308,55 @@ class Scanner {
   }
 
   private void addToken(TokenType type, Object literal) {
-    String text = source.substring(start, current);
-    tokens.add(new Token(type, text, literal, line));
+    tokens.add(type, start, current - start, line, literal);
+  }
+
+  // NOTE: startからcurrentまでの字句のName
+  private Name name(int hash) {
+    int size = current - start;
+    int mask = names.length - 1;
+    int index = spread(hash) & mask;
+    for (Name name = names[index]; name != null; name = names[index]) {
+      if (name.text.length() == size && matches(start, name.text)) return name;
+      index = (index + 1) & mask;
+    }
+
+    String text = text(start, current);
+    TokenType type = identifierType();
+    Name name = new Name(text, type, type == IDENTIFIER ? Symbol.intern(text) : null);
+    names[index] = name;
+    if (++nameCount * 2 > names.length) growNames();
+    return name;
+  }
+
+  // NOTE: 短い名前はhashの下位ビットが偏るので、上位ビットを混ぜてから表の位置にする
+  private static int spread(int hash) {
+    return hash ^ (hash >>> 7);
+  }
+
+  private boolean matches(int from, String name) {
+    for (int i = 0; i < name.length(); i++) {
+      if (source.charAt(from + i) != name.charAt(i)) return false;
+    }
+
+    return true;
+  }
+
+  private String text(int from, int to) {
+    return source.subSequence(from, to).toString();
+  }
+
+  // NOTE: hashはString.hashCodeと同じ計算なので、広げるときは字句のhashCodeで入れ直せる
+  private void growNames() {
+    Name[] old = names;
+    names = new Name[old.length * 2];
+    int mask = names.length - 1;
+    for (Name name : old) {
+      if (name == null) continue;
+
+      int index = spread(name.text.hashCode()) & mask;
+      while (names[index] != null) index = (index + 1) & mask;
+      names[index] = name;
+    }
   }
 }
@@ -0,0 +1,41 @@
+package com.craftinginterpreters.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// NOTE: インスタンスが持っているフィールド名とその格納位置(index)の組。V8のhidden classと同じ考え方で、
+// 同じ順番でフィールドを追加したインスタンス同士は同じShapeを共有するので、
+// インスタンス側は値の配列だけを持てばよい
+final class Shape {
+  static final Shape EMPTY = new Shape(new HashMap<>());
+
+  private final Map<Symbol, Integer> indices;
+  // NOTE: このShapeにフィールドを1つ足したときの遷移先
+  private final Map<Symbol, Shape> transitions = new HashMap<>();
+
+  private Shape(Map<Symbol, Integer> indices) {
+    this.indices = indices;
+  }
+
+  int size() {
+    return indices.size();
+  }
+
+  int indexOf(Symbol name) {
+    Integer index = indices.get(name);
+    if (index == null) return -1;
+    return index;
+  }
+
+  Shape withField(Symbol name) {
+    Shape next = transitions.get(name);
+    if (next != null) return next;
+
+    Map<Symbol, Integer> indices = new HashMap<>(this.indices);
+    indices.put(name, indices.size());
+    next = new Shape(indices);
+    transitions.put(name, next);
+
+    return next;
+  }
+}
@@ -34,6 +34,8 @@ abstract class Stmt {
     }
 
     final List<Stmt> statements;
+
+    int heapSize;
   }
 
   static class Class extends Stmt {
@@ -51,6 +53,9 @@ abstract class Stmt {
     final Token name;
     final Expr.Variable superclass;
     final List<Stmt.Function> methods;
+
+    int frameSlot = -1;
+    int heapSlot = -1;
   }
 
   static class Expression extends Stmt {
@@ -81,6 +86,14 @@ abstract class Stmt {
     final Token name;
     final List<Token> params;
     final List<Stmt> body;
+
+    int calls;
+    JitCompiler.Body compiled;
+    int frameSlot = -1;
+    int heapSlot = -1;
+    int frameSize;
+    int heapSize;
+    int[] heapParams;
   }
 
   static class If extends Stmt {
@@ -126,6 +139,8 @@ abstract class Stmt {
 
     final Token keyword;
     final Expr value;
+
+    boolean tailCall;
   }
 
   static class While extends Stmt {
@@ -141,6 +156,8 @@ abstract class Stmt {
 
     final Expr condition;
     final Stmt body;
+
+    int[] invariants;
   }
 
   static class Var extends Stmt {
@@ -156,6 +173,9 @@ abstract class Stmt {
 
     final Token name;
     final Expr initializer;
+
+    int frameSlot = -1;
+    int heapSlot = -1;
   }
 
   abstract <R> R accept(Visitor<R> visitor);
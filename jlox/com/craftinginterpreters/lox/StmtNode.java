@@ -0,0 +1,195 @@
+package com.craftinginterpreters.lox;
+
+// NOTE: ExprNodeと同様に、NodeCompilerがStmtから変換した実行用のノード。
+// executeは文の完了の仕方を返す。普通に終わればNORMAL、return文で終わればその戻り値を返すので、
+// 例外を投げずにブロックやループから関数の呼び出し元まで戻れる
+abstract class StmtNode extends Node {
+  static final Object NORMAL = new Object();
+
+  abstract Object execute(Environment environment);
+
+  static class Expression extends StmtNode {
+    Expression(ExprNode expression) {
+      this.expression = adopt(expression);
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      expression.evaluateVoid(environment);
+      return NORMAL;
+    }
+
+    @Override
+    void replaceChild(Node child, Node replacement) {
+      if (expression == child) expression = (ExprNode) replacement;
+    }
+
+    ExprNode expression;
+  }
+
+  static class Print extends StmtNode {
+    Print(Interpreter interpreter, ExprNode expression) {
+      this.interpreter = interpreter;
+      this.expression = adopt(expression);
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      Object value = expression.evaluate(environment);
+      interpreter.print(value);
+      return NORMAL;
+    }
+
+    @Override
+    void replaceChild(Node child, Node replacement) {
+      if (expression == child) expression = (ExprNode) replacement;
+    }
+
+    final Interpreter interpreter;
+    ExprNode expression;
+  }
+
+  // NOTE: var, fun, classの宣言はいずれも「値を作って定義する」ノードにまとめる
+  static class DefineGlobal extends StmtNode {
+    DefineGlobal(Token name, ExprNode value) {
+      this.name = name;
+      this.value = adopt(value);
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      environment.define(name.symbol, value.evaluate(environment));
+      return NORMAL;
+    }
+
+    @Override
+    void replaceChild(Node child, Node replacement) {
+      if (value == child) value = (ExprNode) replacement;
+    }
+
+    final Token name;
+    ExprNode value;
+  }
+
+  static class DefineLocal extends StmtNode {
+    DefineLocal(ExprNode value) {
+      this.value = adopt(value);
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      environment.define(value.evaluate(environment));
+      return NORMAL;
+    }
+
+    @Override
+    void replaceChild(Node child, Node replacement) {
+      if (value == child) value = (ExprNode) replacement;
+    }
+
+    ExprNode value;
+  }
+
+  static class Block extends StmtNode {
+    Block(StmtNode[] statements) {
+      this.statements = adopt(statements);
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      Environment inner = new Environment(environment);
+      for (StmtNode statement : statements) {
+        Object completion = statement.execute(inner);
+        if (completion != NORMAL) return completion;
+      }
+
+      return NORMAL;
+    }
+
+    final StmtNode[] statements;
+  }
+
+  static class If extends StmtNode {
+    If(ExprNode condition, StmtNode thenBranch, StmtNode elseBranch) {
+      this.condition = adopt(condition);
+      this.thenBranch = adopt(thenBranch);
+      this.elseBranch = adopt(elseBranch);
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      if (condition.evaluateCondition(environment)) {
+        return thenBranch.execute(environment);
+      } else if (elseBranch != null) {
+        return elseBranch.execute(environment);
+      }
+
+      return NORMAL;
+    }
+
+    @Override
+    void replaceChild(Node child, Node replacement) {
+      if (condition == child) condition = (ExprNode) replacement;
+    }
+
+    ExprNode condition;
+    final StmtNode thenBranch;
+    final StmtNode elseBranch;
+  }
+
+  static class While extends StmtNode {
+    While(ExprNode condition, StmtNode body) {
+      this.condition = adopt(condition);
+      this.body = adopt(body);
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      while (condition.evaluateCondition(environment)) {
+        Object completion = body.execute(environment);
+        if (completion != NORMAL) return completion;
+      }
+
+      return NORMAL;
+    }
+
+    @Override
+    void replaceChild(Node child, Node replacement) {
+      if (condition == child) condition = (ExprNode) replacement;
+    }
+
+    ExprNode condition;
+    final StmtNode body;
+  }
+
+  static class Return extends StmtNode {
+    Return(ExprNode value) {
+      this.value = adopt(value);
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      if (value == null) return null;
+      return value.evaluate(environment);
+    }
+
+    @Override
+    void replaceChild(Node child, Node replacement) {
+      if (value == child) value = (ExprNode) replacement;
+    }
+
+    ExprNode value;
+  }
+
+  // NOTE: 末尾位置の呼び出しを返すreturn文(return f(x);)
+  static class TailReturn extends Return {
+    TailReturn(ExprNode value) {
+      super(value);
+    }
+
+    @Override
+    Object execute(Environment environment) {
+      return value.evaluateTail(environment);
+    }
+  }
+}
@@ -0,0 +1,42 @@
+package com.craftinginterpreters.lox;
+
+import java.util.HashMap;
+import java.util.Map;
+
+// NOTE: 識別子の名前。同じ名前には常に同じSymbolを返すので、名前の比較は==で済み、ハッシュも作った
+// ときに計算したものを使う。idは0から振る連番で、グローバル変数の表(Environment)の添字になる
+final class Symbol {
+  private static final Map<String, Symbol> table = new HashMap<>();
+
+  static final Symbol INIT = intern("init");
+
+  final String name;
+  final int id;
+  private final int hash;
+
+  private Symbol(String name, int id) {
+    this.name = name;
+    this.id = id;
+    this.hash = name.hashCode();
+  }
+
+  static synchronized Symbol intern(String name) {
+    Symbol symbol = table.get(name);
+    if (symbol == null) {
+      symbol = new Symbol(name, table.size());
+      table.put(name, symbol);
+    }
+
+    return symbol;
+  }
+
+  @Override
+  public int hashCode() {
+    return hash;
+  }
+
+  @Override
+  public String toString() {
+    return name;
+  }
+}
@@ -5,12 +5,19 @@ class Token {
   final String lexeme;
   final Object literal;
   final int line;
+  // NOTE: 識別子の名前。実行時の名前での検索(グローバル変数、フィールド、メソッド)はこれで行う
+  final Symbol symbol;
 
   Token(TokenType type, String lexeme, Object literal, int line) {
+    this(type, lexeme, literal, line, type == TokenType.IDENTIFIER ? Symbol.intern(lexeme) : null);
+  }
+
+  Token(TokenType type, String lexeme, Object literal, int line, Symbol symbol) {
     this.type = type;
     this.lexeme = lexeme;
     this.literal = literal;
     this.line = line;
+    this.symbol = symbol;
   }
 
   public String toString() {
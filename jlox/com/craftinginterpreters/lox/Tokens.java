@@ -0,0 +1,122 @@
+package com.craftinginterpreters.lox;
+
+import static com.craftinginterpreters.lox.TokenType.*;
+
+import java.util.Locale;
+
+// NOTE: Scannerが作るトークン列。トークンごとにTokenや字句のStringを作らず、種類・開始位置・長さ・行を
+// 配列に並べて持つ。識別子とリテラルの値だけはvaluesに置く(識別子はScannerが引いたSymbol)。
+// ParserはASTに載せるトークンだけtokenでTokenにする。記号やキーワードの字句は種類ごとの定数を使い、
+// 数値や文字列リテラルの字句はエラーの報告で要るときだけsourceから切り出す。
+// ソース全体を先に走査はせず、Parserが先のトークンを読もうとしたときにScannerに走査させる。
+// 配列は直近WINDOW個のトークンだけを持つリングバッファなので、大きなソースでも大きさは変わらない
+final class Tokens {
+  private static final TokenType[] TYPES = TokenType.values();
+  private static final String[] LEXEMES = new String[TYPES.length];
+
+  static {
+    LEXEMES[LEFT_PAREN.ordinal()] = "(";
+    LEXEMES[RIGHT_PAREN.ordinal()] = ")";
+    LEXEMES[LEFT_BRACE.ordinal()] = "{";
+    LEXEMES[RIGHT_BRACE.ordinal()] = "}";
+    LEXEMES[COMMA.ordinal()] = ",";
+    LEXEMES[DOT.ordinal()] = ".";
+    LEXEMES[MINUS.ordinal()] = "-";
+    LEXEMES[PLUS.ordinal()] = "+";
+    LEXEMES[SEMICOLON.ordinal()] = ";";
+    LEXEMES[SLASH.ordinal()] = "/";
+    LEXEMES[STAR.ordinal()] = "*";
+    LEXEMES[BANG.ordinal()] = "!";
+    LEXEMES[BANG_EQUAL.ordinal()] = "!=";
+    LEXEMES[EQUAL.ordinal()] = "=";
+    LEXEMES[EQUAL_EQUAL.ordinal()] = "==";
+    LEXEMES[GREATER.ordinal()] = ">";
+    LEXEMES[GREATER_EQUAL.ordinal()] = ">=";
+    LEXEMES[LESS.ordinal()] = "<";
+    LEXEMES[LESS_EQUAL.ordinal()] = "<=";
+    LEXEMES[EOF.ordinal()] = "";
+
+    // NOTE: キーワードの字句は種類の名前を小文字にしたもの。トルコ語のロケールなどでTHISが"thıs"に
+    // ならないよう、既定のロケールは使わない
+    for (int i = AND.ordinal(); i < EOF.ordinal(); i++) {
+      LEXEMES[i] = TYPES[i].name().toLowerCase(Locale.ROOT);
+    }
+  }
+
+  private static final int WINDOW = 4096;
+
+  private final CharSequence source;
+  private final Scanner scanner;
+  private final byte[] types = new byte[WINDOW];
+  private final int[] starts = new int[WINDOW];
+  private final int[] lengths = new int[WINDOW];
+  private final int[] lines = new int[WINDOW];
+  private final Object[] values = new Object[WINDOW];
+  // NOTE: これまでに足したトークンの数。添字はソースの先頭からの通し番号で、size - WINDOWより前は消えている
+  private int size = 0;
+
+  Tokens(CharSequence source, Scanner scanner) {
+    this.source = source;
+    this.scanner = scanner;
+  }
+
+  void add(TokenType type, int start, int length, int line, Object value) {
+    int slot = size & (WINDOW - 1);
+    types[slot] = (byte) type.ordinal();
+    starts[slot] = start;
+    lengths[slot] = length;
+    lines[slot] = line;
+    values[slot] = value;
+    size++;
+  }
+
+  int size() {
+    return size;
+  }
+
+  // NOTE: indexのトークンがまだ走査されていなければ走査させ、配列での位置を返す。Parserと1トークンずつ
+  // 交互に動くより速いので、WINDOWの半分先までまとめて走査する
+  private int slot(int index) {
+    if (index >= size) scan(index);
+    assert index >= size - WINDOW : "token " + index + " is gone";
+    return index & (WINDOW - 1);
+  }
+
+  // NOTE: slotをParserの中にインライン展開できるよう、走査の呼び出しは別のメソッドにしておく
+  private void scan(int index) {
+    scanner.scanNext(index + WINDOW / 2);
+  }
+
+  TokenType type(int index) {
+    return TYPES[types[slot(index)]];
+  }
+
+  int line(int index) {
+    return lines[slot(index)];
+  }
+
+  // NOTE: NUMBERならDouble、STRINGなら中身のString
+  Object literal(int index) {
+    return values[slot(index)];
+  }
+
+  String lexeme(int index) {
+    int slot = slot(index);
+    TokenType type = TYPES[types[slot]];
+    if (type == IDENTIFIER) return ((Symbol) values[slot]).name;
+
+    String lexeme = LEXEMES[type.ordinal()];
+    if (lexeme != null) return lexeme;
+    return source.subSequence(starts[slot], starts[slot] + lengths[slot]).toString();
+  }
+
+  Token token(int index) {
+    int slot = slot(index);
+    TokenType type = TYPES[types[slot]];
+    if (type == IDENTIFIER) {
+      return new Token(type, lexeme(index), null, lines[slot], (Symbol) values[slot]);
+    }
+
+    return new Token(type, lexeme(index), values[slot], lines[slot], null);
+  }
+}
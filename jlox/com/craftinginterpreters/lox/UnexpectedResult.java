@@ -0,0 +1,12 @@
+package com.craftinginterpreters.lox;
+
+// NOTE: ExprNode.evaluateNumberで数値以外が出てきたときに、実際の値を呼び出し元へ返すための例外。
+// 受け取ったノードは汎用のノードへ書き換わるので、同じ箇所で何度も投げられることはない
+class UnexpectedResult extends Exception {
+  final Object result;
+
+  UnexpectedResult(Object result) {
+    super(null, null, false, false);
+    this.result = result;
+  }
+}
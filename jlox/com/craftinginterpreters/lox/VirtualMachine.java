@@ -0,0 +1,439 @@
+package com.craftinginterpreters.lox;
+
+import static com.craftinginterpreters.lox.OpCode.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// NOTE: VmCompilerが作ったChunkを実行するスタックマシン。命令ごとにswitchで分岐し、
+// 式の途中の値は値スタックに積む。Lox関数の呼び出しはVmFunction.invokeからrunを入れ子に呼び、
+// 呼ばれた側は呼び出し元が使っている位置より上のスタックを使う
+class VirtualMachine {
+  private static final int STACK_CAPACITY = 256;
+
+  private final Interpreter interpreter;
+  private Object[] stack = new Object[STACK_CAPACITY];
+  private int sp = 0;
+  OpcodeCounter counter;
+
+  VirtualMachine(Interpreter interpreter) {
+    this.interpreter = interpreter;
+  }
+
+  void interpret(Chunk chunk) {
+    try {
+      run(chunk, interpreter.globals);
+    } catch (RuntimeError error) {
+      sp = 0;
+      Lox.runtimeError(error);
+    }
+  }
+
+  // NOTE: spとstackはローカル変数に持って回し、他のrunを呼び出しうる命令(CALL系)の前後でだけ
+  // フィールドと同期する。スタックの深さは命令のbyte数を超えないので、入口で容量を確保すれば
+  // 積むたびに容量を確認しなくてよい
+  Object run(Chunk chunk, Environment environment) {
+    byte[] code = chunk.code;
+    List<Object> constants = chunk.constants;
+    long[] counts = counter == null ? null : counter.counts;
+    int ip = 0;
+
+    if (stack.length < sp + chunk.count) {
+      stack = Arrays.copyOf(stack, Math.max(stack.length * 2, sp + chunk.count));
+    }
+    Object[] stack = this.stack;
+    int sp = this.sp;
+
+    for (; ; ) {
+      // NOTE: 実行時エラーの行番号は命令の先頭の位置から引く
+      int start = ip;
+      byte op = code[ip++];
+      if (counts != null) counts[op]++;
+
+      switch (op) {
+        case OP_CONSTANT:
+          stack[sp++] = constants.get(readShort(code, ip));
+          ip += 2;
+          break;
+        case OP_NIL:
+          stack[sp++] = null;
+          break;
+        case OP_TRUE:
+          stack[sp++] = true;
+          break;
+        case OP_FALSE:
+          stack[sp++] = false;
+          break;
+        case OP_POP:
+          sp--;
+          break;
+
+        case OP_GET_LOCAL:
+          stack[sp++] = environment.get(readShort(code, ip));
+          ip += 2;
+          break;
+        case OP_SET_LOCAL:
+          environment.assign(readShort(code, ip), stack[sp - 1]);
+          ip += 2;
+          break;
+        case OP_GET_OUTER:
+          stack[sp++] = environment.getAt(readShort(code, ip), readShort(code, ip + 2));
+          ip += 4;
+          break;
+        case OP_SET_OUTER:
+          environment.assignAt(readShort(code, ip), readShort(code, ip + 2), stack[sp - 1]);
+          ip += 4;
+          break;
+        case OP_GET_GLOBAL:
+          stack[sp++] = interpreter.globals.get((Token) constants.get(readShort(code, ip)));
+          ip += 2;
+          break;
+        case OP_SET_GLOBAL:
+          interpreter.globals.assign((Token) constants.get(readShort(code, ip)), stack[sp - 1]);
+          ip += 2;
+          break;
+        case OP_DEFINE_LOCAL:
+          environment.define(stack[--sp]);
+          break;
+        case OP_DEFINE_GLOBAL:
+          {
+            Token name = (Token) constants.get(readShort(code, ip));
+            ip += 2;
+            interpreter.globals.define(name.symbol, stack[--sp]);
+            break;
+          }
+
+        case OP_GET_PROPERTY:
+          {
+            Token name = (Token) constants.get(readShort(code, ip));
+            ip += 2;
+            stack[sp - 1] = getProperty(name, stack[sp - 1]);
+            break;
+          }
+        case OP_SET_PROPERTY:
+          {
+            Token name = (Token) constants.get(readShort(code, ip));
+            ip += 2;
+            Object value = stack[--sp];
+            setProperty(name, stack[sp - 1], value);
+            stack[sp - 1] = value;
+            break;
+          }
+        case OP_GET_SUPER:
+          stack[sp++] =
+              getSuper(
+                  environment,
+                  readShort(code, ip),
+                  readShort(code, ip + 2),
+                  (Token) constants.get(readShort(code, ip + 4)));
+          ip += 6;
+          break;
+
+        case OP_EQUAL:
+          {
+            Object right = stack[--sp];
+            stack[sp - 1] = Interpreter.isEqual(stack[sp - 1], right);
+            break;
+          }
+        case OP_GREATER:
+          {
+            double right = number(stack[--sp], chunk, start);
+            stack[sp - 1] = number(stack[sp - 1], chunk, start) > right;
+            break;
+          }
+        case OP_GREATER_EQUAL:
+          {
+            double right = number(stack[--sp], chunk, start);
+            stack[sp - 1] = number(stack[sp - 1], chunk, start) >= right;
+            break;
+          }
+        case OP_LESS:
+          {
+            double right = number(stack[--sp], chunk, start);
+            stack[sp - 1] = number(stack[sp - 1], chunk, start) < right;
+            break;
+          }
+        case OP_LESS_EQUAL:
+          {
+            double right = number(stack[--sp], chunk, start);
+            stack[sp - 1] = number(stack[sp - 1], chunk, start) <= right;
+            break;
+          }
+        case OP_ADD:
+          {
+            Object right = stack[--sp];
+            Object left = stack[sp - 1];
+            if (left instanceof Double && right instanceof Double) {
+              stack[sp - 1] = Doubles.box((double) left + (double) right);
+            } else if (LoxString.isString(left) && LoxString.isString(right)) {
+              stack[sp - 1] = LoxString.concat(left, right);
+            } else {
+              throw error(chunk, start, "Operands must be two number or two strings.");
+            }
+            break;
+          }
+        case OP_SUBTRACT:
+          {
+            double right = number(stack[--sp], chunk, start);
+            stack[sp - 1] = Doubles.box(number(stack[sp - 1], chunk, start) - right);
+            break;
+          }
+        case OP_MULTIPLY:
+          {
+            double right = number(stack[--sp], chunk, start);
+            stack[sp - 1] = Doubles.box(number(stack[sp - 1], chunk, start) * right);
+            break;
+          }
+        case OP_DIVIDE:
+          {
+            double right = number(stack[--sp], chunk, start);
+            stack[sp - 1] = Doubles.box(number(stack[sp - 1], chunk, start) / right);
+            break;
+          }
+        case OP_NOT:
+          stack[sp - 1] = !Interpreter.isTruthy(stack[sp - 1]);
+          break;
+        case OP_NEGATE:
+          {
+            Object right = stack[sp - 1];
+            if (!(right instanceof Double)) throw error(chunk, start, "Operand must be a number.");
+            stack[sp - 1] = Doubles.box(-(double) right);
+            break;
+          }
+
+        case OP_PRINT:
+          interpreter.print(stack[--sp]);
+          break;
+        case OP_JUMP:
+          ip += readShort(code, ip) + 2;
+          break;
+        case OP_JUMP_IF_FALSE:
+          if (Interpreter.isTruthy(stack[sp - 1])) {
+            ip += 2;
+          } else {
+            ip += readShort(code, ip) + 2;
+          }
+          break;
+        case OP_LOOP:
+          ip -= readShort(code, ip) - 2;
+          break;
+
+        case OP_CALL:
+          {
+            int count = readShort(code, ip);
+            ip += 2;
+            sp -= count;
+            Object[] arguments = Arrays.copyOfRange(stack, sp, sp + count);
+            Object callee = stack[sp - 1];
+
+            this.sp = sp;
+            Object result = call(chunk, start, callee, arguments);
+            stack = this.stack;
+            stack[sp - 1] = result;
+            break;
+          }
+        case OP_GET_METHOD:
+          {
+            Token name = (Token) constants.get(readShort(code, ip));
+            ip += 2;
+            Object object = stack[sp - 1];
+
+            // NOTE: メソッドなら[メソッド, レシーバ]を、それ以外は[プロパティの値, nil]を積む
+            if (object instanceof LoxInstance && !((LoxInstance) object).hasField(name.symbol)) {
+              LoxFunction method = ((LoxInstance) object).klass.findMethod(name.symbol);
+              if (method != null) {
+                stack[sp - 1] = method;
+                stack[sp++] = object;
+                break;
+              }
+            }
+
+            stack[sp - 1] = getProperty(name, object);
+            stack[sp++] = null;
+            break;
+          }
+        case OP_CALL_METHOD:
+          {
+            int count = readShort(code, ip);
+            ip += 2;
+            sp -= count;
+            Object[] arguments = Arrays.copyOfRange(stack, sp, sp + count);
+            Object receiver = stack[--sp];
+            Object callee = stack[sp - 1];
+
+            this.sp = sp;
+            Object result;
+            if (receiver == null) {
+              result = call(chunk, start, callee, arguments);
+            } else {
+              LoxFunction method = (LoxFunction) callee;
+              checkArity(chunk, start, method, arguments);
+              result = method.invoke(interpreter, (LoxInstance) receiver, arguments);
+            }
+            stack = this.stack;
+            stack[sp - 1] = result;
+            break;
+          }
+        case OP_CLOSURE:
+          {
+            VmCompiler.FunctionTemplate function =
+                (VmCompiler.FunctionTemplate) constants.get(readShort(code, ip));
+            ip += 2;
+            stack[sp++] =
+                new VmFunction(
+                    this, function.chunk, function.declaration, environment, false, null);
+            break;
+          }
+        case OP_CLASS:
+          {
+            VmCompiler.ClassTemplate template =
+                (VmCompiler.ClassTemplate) constants.get(readShort(code, ip));
+            ip += 2;
+            if (template.superclassName != null) {
+              stack[sp - 1] = defineClass(template, stack[sp - 1], environment);
+            } else {
+              stack[sp++] = defineClass(template, null, environment);
+            }
+            break;
+          }
+        case OP_RETURN:
+          this.sp = sp - 1;
+          return stack[sp - 1];
+        case OP_TAIL_CALL:
+          {
+            int count = readShort(code, ip);
+            sp -= count;
+            Object[] arguments = Arrays.copyOfRange(stack, sp, sp + count);
+            Object callee = stack[sp - 1];
+
+            this.sp = sp - 1;
+            return tailCall(chunk, start, callee, arguments);
+          }
+        case OP_TAIL_CALL_METHOD:
+          {
+            int count = readShort(code, ip);
+            sp -= count;
+            Object[] arguments = Arrays.copyOfRange(stack, sp, sp + count);
+            Object receiver = stack[--sp];
+            Object callee = stack[sp - 1];
+
+            this.sp = sp - 1;
+            if (receiver == null) return tailCall(chunk, start, callee, arguments);
+
+            LoxFunction method = (LoxFunction) callee;
+            checkArity(chunk, start, method, arguments);
+            interpreter.scheduleTailCall(method, (LoxInstance) receiver, arguments);
+            return null;
+          }
+
+        case OP_PUSH_SCOPE:
+          environment = new Environment(environment);
+          break;
+        case OP_POP_SCOPE:
+          environment = environment.enclosing;
+          break;
+      }
+    }
+  }
+
+  // NOTE: 頻繁には実行されない命令の本体はrunの外に出し、runを小さく保ってJITが扱いやすくする
+  private LoxClass defineClass(
+      VmCompiler.ClassTemplate template, Object superclassValue, Environment environment) {
+    LoxClass superclass = null;
+    if (template.superclassName != null) {
+      if (!(superclassValue instanceof LoxClass)) {
+        throw new RuntimeError(template.superclassName, "Superclass must be class.");
+      }
+      superclass = (LoxClass) superclassValue;
+
+      environment = new Environment(environment, 1);
+      environment.define(superclass);
+    }
+
+    Map<Symbol, LoxFunction> methods = new HashMap<>();
+    for (VmCompiler.FunctionTemplate method : template.methods) {
+      Symbol name = method.declaration.name.symbol;
+      methods.put(
+          name,
+          new VmFunction(
+              this, method.chunk, method.declaration, environment, name == Symbol.INIT, null));
+    }
+
+    return new LoxClass(template.name.lexeme, superclass, methods);
+  }
+
+  private LoxFunction getSuper(Environment environment, int depth, int slot, Token name) {
+    LoxClass superclass = (LoxClass) environment.getAt(depth, slot);
+    // NOTE: thisはsuperの1つ内側、メソッド本体の環境のslot 0にある
+    LoxInstance object = (LoxInstance) environment.getAt(depth - 1, 0);
+
+    LoxFunction method = superclass.findMethod(name.symbol);
+    if (method == null) {
+      throw new RuntimeError(name, "Undefined property '" + name.lexeme + "'.");
+    }
+
+    return method.bind(object);
+  }
+
+  private void setProperty(Token name, Object object, Object value) {
+    if (!(object instanceof LoxInstance)) {
+      throw new RuntimeError(name, "Only instance have fields.");
+    }
+
+    ((LoxInstance) object).set(name, value);
+  }
+
+  private Object getProperty(Token name, Object object) {
+    if (object instanceof LoxInstance) {
+      return ((LoxInstance) object).get(name);
+    }
+
+    throw new RuntimeError(name, "Only instances have properties.");
+  }
+
+  private Object call(Chunk chunk, int ip, Object callee, Object[] arguments) {
+    if (!(callee instanceof LoxCallable)) {
+      throw error(chunk, ip, "Can only call functions and classes.");
+    }
+
+    LoxCallable function = (LoxCallable) callee;
+    checkArity(chunk, ip, function, arguments);
+
+    return function.call(interpreter, arguments);
+  }
+
+  // NOTE: Loxの関数は呼ばずにInterpreterに置く。クラスやネイティブ関数はその場で呼ぶ
+  private Object tailCall(Chunk chunk, int ip, Object callee, Object[] arguments) {
+    if (!(callee instanceof LoxFunction)) return call(chunk, ip, callee, arguments);
+
+    LoxFunction function = (LoxFunction) callee;
+    checkArity(chunk, ip, function, arguments);
+    interpreter.scheduleTailCall(function, function.receiver, arguments);
+    return null;
+  }
+
+  private void checkArity(Chunk chunk, int ip, LoxCallable function, Object[] arguments) {
+    if (arguments.length != function.arity()) {
+      throw error(
+          chunk,
+          ip,
+          "Expected " + function.arity() + " arguments but got " + arguments.length + ".");
+    }
+  }
+
+  private double number(Object value, Chunk chunk, int ip) {
+    if (value instanceof Double) return (double) value;
+    throw error(chunk, ip, "Operands must be a strings.");
+  }
+
+  // NOTE: 命令はトークンを持たないので、行番号表から行番号だけのトークンを作って報告する
+  private RuntimeError error(Chunk chunk, int ip, String message) {
+    return new RuntimeError(new Token(TokenType.EOF, "", null, chunk.lines[ip]), message);
+  }
+
+  private static int readShort(byte[] code, int ip) {
+    return ((code[ip] & 0xff) << 8) | (code[ip + 1] & 0xff);
+  }
+}
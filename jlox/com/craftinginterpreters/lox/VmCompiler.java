@@ -0,0 +1,444 @@
+package com.craftinginterpreters.lox;
+
+import static com.craftinginterpreters.lox.OpCode.*;
+
+import java.util.List;
+
+// NOTE: Resolver済みのStmt/ExprをChunkの命令列に変換する。変数の扱いは木の巡回と同じで、
+// ローカル変数はEnvironmentのslotに置き、Resolverが書き込んだdepth/slotをオペランドにする。
+// ブロックはPUSH_SCOPE/POP_SCOPEで環境を作り直すので、depthは木の巡回と一致する
+class VmCompiler implements Expr.Visitor<Void>, Stmt.Visitor<Void> {
+  // NOTE: OP_CLOSUREの定数。実行時に今の環境をclosureにしてVmFunctionを作る
+  static class FunctionTemplate {
+    FunctionTemplate(Stmt.Function declaration, Chunk chunk) {
+      this.declaration = declaration;
+      this.chunk = chunk;
+    }
+
+    final Stmt.Function declaration;
+    final Chunk chunk;
+  }
+
+  // NOTE: OP_CLASSの定数。スーパークラスがあれば、その値はスタックに積んでおく
+  static class ClassTemplate {
+    ClassTemplate(Token name, Token superclassName, FunctionTemplate[] methods) {
+      this.name = name;
+      this.superclassName = superclassName;
+      this.methods = methods;
+    }
+
+    final Token name;
+    final Token superclassName;
+    final FunctionTemplate[] methods;
+  }
+
+  private Chunk chunk = new Chunk();
+  // NOTE: 0のときはトップレベル(グローバル環境)で宣言している
+  private int scopeDepth = 0;
+  // NOTE: 直前に書いた命令の行番号。トークンを持たない命令(POPなど)はこれを使う
+  private int line = 1;
+
+  // NOTE: 限界を超えたら最初の1つでCompileErrorを投げる。報告するのは呼び出し側(Lox)
+  Chunk compile(List<Stmt> statements) {
+    statements(statements);
+    emit(OP_NIL);
+    emit(OP_RETURN);
+    return chunk;
+  }
+
+  private void statements(List<Stmt> statements) {
+    for (Stmt statement : statements) {
+      statement.accept(this);
+    }
+  }
+
+  private void compile(Expr expr) {
+    expr.accept(this);
+  }
+
+  private void emit(int op) {
+    chunk.write(op, line);
+  }
+
+  private void emit(int op, Token token) {
+    line = token.line;
+    emit(op);
+  }
+
+  private void emitShort(int operand) {
+    chunk.writeShort(operand, line);
+  }
+
+  private int constant(Object value) {
+    int index = chunk.addConstant(value);
+    if (index > 0xffff) throw new CompileError(line, "Too many constants in one chunk.");
+    return index;
+  }
+
+  // NOTE: 飛び先が決まっていないジャンプを書き、オペランドの位置を返す。後でpatchJumpで埋める
+  private int emitJump(int op) {
+    emit(op);
+    emitShort(0xffff);
+    return chunk.count - 2;
+  }
+
+  private void patchJump(int offset) {
+    int jump = chunk.count - offset - 2;
+    if (jump > 0xffff) throw new CompileError(line, "Too much code to jump over.");
+
+    chunk.code[offset] = (byte) ((jump >> 8) & 0xff);
+    chunk.code[offset + 1] = (byte) (jump & 0xff);
+  }
+
+  private void emitLoop(int loopStart) {
+    emit(OP_LOOP);
+
+    int offset = chunk.count - loopStart + 2;
+    if (offset > 0xffff) throw new CompileError(line, "Loop body too large.");
+    emitShort(offset);
+  }
+
+  private void define(Token name) {
+    if (scopeDepth == 0) {
+      emit(OP_DEFINE_GLOBAL, name);
+      emitShort(constant(name));
+    } else {
+      emit(OP_DEFINE_LOCAL, name);
+    }
+  }
+
+  private void variable(Token name, int depth, int slot) {
+    if (depth == -1) {
+      emit(OP_GET_GLOBAL, name);
+      emitShort(constant(name));
+    } else if (depth == 0) {
+      emit(OP_GET_LOCAL, name);
+      emitShort(slot);
+    } else {
+      emit(OP_GET_OUTER, name);
+      emitShort(depth);
+      emitShort(slot);
+    }
+  }
+
+  FunctionTemplate function(Stmt.Function stmt) {
+    Chunk enclosing = chunk;
+    chunk = new Chunk();
+    scopeDepth++;
+
+    statements(stmt.body);
+    emit(OP_NIL, stmt.name);
+    emit(OP_RETURN);
+
+    scopeDepth--;
+    FunctionTemplate function = new FunctionTemplate(stmt, chunk);
+    chunk = enclosing;
+
+    return function;
+  }
+
+  @Override
+  public Void visitBlockStmt(Stmt.Block stmt) {
+    emit(OP_PUSH_SCOPE);
+    scopeDepth++;
+    statements(stmt.statements);
+    scopeDepth--;
+    emit(OP_POP_SCOPE);
+    return null;
+  }
+
+  @Override
+  public Void visitClassStmt(Stmt.Class stmt) {
+    Token superclassName = null;
+    if (stmt.superclass != null) {
+      compile(stmt.superclass);
+      superclassName = stmt.superclass.name;
+    }
+
+    FunctionTemplate[] methods = new FunctionTemplate[stmt.methods.size()];
+    for (int i = 0; i < methods.length; i++) {
+      methods[i] = function(stmt.methods.get(i));
+    }
+
+    emit(OP_CLASS, stmt.name);
+    emitShort(constant(new ClassTemplate(stmt.name, superclassName, methods)));
+    define(stmt.name);
+    return null;
+  }
+
+  @Override
+  public Void visitExpressionStmt(Stmt.Expression stmt) {
+    compile(stmt.expression);
+    emit(OP_POP);
+    return null;
+  }
+
+  @Override
+  public Void visitFunctionStmt(Stmt.Function stmt) {
+    FunctionTemplate function = function(stmt);
+    emit(OP_CLOSURE, stmt.name);
+    emitShort(constant(function));
+    define(stmt.name);
+    return null;
+  }
+
+  @Override
+  public Void visitIfStmt(Stmt.If stmt) {
+    compile(stmt.condition);
+    int thenJump = emitJump(OP_JUMP_IF_FALSE);
+    emit(OP_POP);
+    stmt.thenBranch.accept(this);
+
+    int elseJump = emitJump(OP_JUMP);
+    patchJump(thenJump);
+    emit(OP_POP);
+    if (stmt.elseBranch != null) stmt.elseBranch.accept(this);
+    patchJump(elseJump);
+    return null;
+  }
+
+  @Override
+  public Void visitPrintStmt(Stmt.Print stmt) {
+    compile(stmt.expression);
+    emit(OP_PRINT);
+    return null;
+  }
+
+  @Override
+  public Void visitReturnStmt(Stmt.Return stmt) {
+    if (stmt.tailCall) {
+      call((Expr.Call) stmt.value, true);
+      return null;
+    }
+
+    if (stmt.value != null) {
+      compile(stmt.value);
+    } else {
+      emit(OP_NIL, stmt.keyword);
+    }
+
+    emit(OP_RETURN, stmt.keyword);
+    return null;
+  }
+
+  @Override
+  public Void visitWhileStmt(Stmt.While stmt) {
+    int loopStart = chunk.count;
+    compile(stmt.condition);
+
+    int exitJump = emitJump(OP_JUMP_IF_FALSE);
+    emit(OP_POP);
+    stmt.body.accept(this);
+    emitLoop(loopStart);
+
+    patchJump(exitJump);
+    emit(OP_POP);
+    return null;
+  }
+
+  @Override
+  public Void visitVarStmt(Stmt.Var stmt) {
+    if (stmt.initializer != null) {
+      compile(stmt.initializer);
+    } else {
+      emit(OP_NIL, stmt.name);
+    }
+
+    define(stmt.name);
+    return null;
+  }
+
+  @Override
+  public Void visitAssignExpr(Expr.Assign expr) {
+    compile(expr.value);
+
+    if (expr.depth == -1) {
+      emit(OP_SET_GLOBAL, expr.name);
+      emitShort(constant(expr.name));
+    } else if (expr.depth == 0) {
+      emit(OP_SET_LOCAL, expr.name);
+      emitShort(expr.slot);
+    } else {
+      emit(OP_SET_OUTER, expr.name);
+      emitShort(expr.depth);
+      emitShort(expr.slot);
+    }
+
+    return null;
+  }
+
+  @Override
+  public Void visitBinaryExpr(Expr.Binary expr) {
+    compile(expr.left);
+    compile(expr.right);
+
+    switch (expr.operator.type) {
+      case BANG_EQUAL:
+        emit(OP_EQUAL, expr.operator);
+        emit(OP_NOT);
+        break;
+      case EQUAL_EQUAL:
+        emit(OP_EQUAL, expr.operator);
+        break;
+      case GREATER:
+        emit(OP_GREATER, expr.operator);
+        break;
+      case GREATER_EQUAL:
+        emit(OP_GREATER_EQUAL, expr.operator);
+        break;
+      case LESS:
+        emit(OP_LESS, expr.operator);
+        break;
+      case LESS_EQUAL:
+        emit(OP_LESS_EQUAL, expr.operator);
+        break;
+      case MINUS:
+        emit(OP_SUBTRACT, expr.operator);
+        break;
+      case PLUS:
+        emit(OP_ADD, expr.operator);
+        break;
+      case SLASH:
+        emit(OP_DIVIDE, expr.operator);
+        break;
+      case STAR:
+        emit(OP_MULTIPLY, expr.operator);
+        break;
+    }
+
+    return null;
+  }
+
+  @Override
+  public Void visitCallExpr(Expr.Call expr) {
+    call(expr, false);
+    return null;
+  }
+
+  private void call(Expr.Call expr, boolean tail) {
+    // NOTE: obj.method(...)はbindした関数を作らずに呼ぶ
+    if (expr.callee instanceof Expr.Get) {
+      Expr.Get get = (Expr.Get) expr.callee;
+      compile(get.object);
+      emit(OP_GET_METHOD, get.name);
+      emitShort(constant(get.name));
+    } else {
+      compile(expr.callee);
+    }
+
+    for (Expr argument : expr.arguments) {
+      compile(argument);
+    }
+
+    if (tail) {
+      emit(expr.callee instanceof Expr.Get ? OP_TAIL_CALL_METHOD : OP_TAIL_CALL, expr.paren);
+    } else {
+      emit(expr.callee instanceof Expr.Get ? OP_CALL_METHOD : OP_CALL, expr.paren);
+    }
+    emitShort(expr.arguments.size());
+  }
+
+  @Override
+  public Void visitGetExpr(Expr.Get expr) {
+    compile(expr.object);
+    emit(OP_GET_PROPERTY, expr.name);
+    emitShort(constant(expr.name));
+    return null;
+  }
+
+  @Override
+  public Void visitGroupingExpr(Expr.Grouping expr) {
+    compile(expr.expression);
+    return null;
+  }
+
+  // NOTE: ループ不変の式の使い回しは木の巡回とJITだけで行い、ここでは毎回評価する
+  @Override
+  public Void visitInvariantExpr(Expr.Invariant expr) {
+    compile(expr.expression);
+    return null;
+  }
+
+  @Override
+  public Void visitLiteralExpr(Expr.Literal expr) {
+    if (expr.value == null) {
+      emit(OP_NIL);
+    } else if (expr.value.equals(true)) {
+      emit(OP_TRUE);
+    } else if (expr.value.equals(false)) {
+      emit(OP_FALSE);
+    } else {
+      emit(OP_CONSTANT);
+      emitShort(constant(expr.value));
+    }
+
+    return null;
+  }
+
+  @Override
+  public Void visitLogicalExpr(Expr.Logical expr) {
+    compile(expr.left);
+
+    if (expr.operator.type == TokenType.OR) {
+      int elseJump = emitJump(OP_JUMP_IF_FALSE);
+      int endJump = emitJump(OP_JUMP);
+      patchJump(elseJump);
+      emit(OP_POP);
+      compile(expr.right);
+      patchJump(endJump);
+    } else {
+      int endJump = emitJump(OP_JUMP_IF_FALSE);
+      emit(OP_POP);
+      compile(expr.right);
+      patchJump(endJump);
+    }
+
+    return null;
+  }
+
+  @Override
+  public Void visitSetExpr(Expr.Set expr) {
+    compile(expr.object);
+    compile(expr.value);
+    emit(OP_SET_PROPERTY, expr.name);
+    emitShort(constant(expr.name));
+    return null;
+  }
+
+  @Override
+  public Void visitSuperExpr(Expr.Super expr) {
+    emit(OP_GET_SUPER, expr.method);
+    emitShort(expr.depth);
+    emitShort(expr.slot);
+    emitShort(constant(expr.method));
+    return null;
+  }
+
+  @Override
+  public Void visitThisExpr(Expr.This expr) {
+    variable(expr.keyword, expr.depth, expr.slot);
+    return null;
+  }
+
+  @Override
+  public Void visitUnaryExpr(Expr.Unary expr) {
+    compile(expr.right);
+
+    switch (expr.operator.type) {
+      case BANG:
+        emit(OP_NOT, expr.operator);
+        break;
+      case MINUS:
+        emit(OP_NEGATE, expr.operator);
+        break;
+    }
+
+    return null;
+  }
+
+  @Override
+  public Void visitVariableExpr(Expr.Variable expr) {
+    variable(expr.name, expr.depth, expr.slot);
+    return null;
+  }
+}
@@ -0,0 +1,40 @@
+package com.craftinginterpreters.lox;
+
+// NOTE: VmCompilerでChunkに変換済みの本体を持つ関数。宣言や環境の扱いはLoxFunctionと同じ
+class VmFunction extends LoxFunction {
+  private final VirtualMachine vm;
+  private final Chunk chunk;
+
+  VmFunction(
+      VirtualMachine vm,
+      Chunk chunk,
+      Stmt.Function declaration,
+      Environment closure,
+      boolean isInitializer,
+      LoxInstance receiver) {
+    super(declaration, closure, isInitializer, receiver);
+    this.vm = vm;
+    this.chunk = chunk;
+  }
+
+  @Override
+  LoxFunction bind(LoxInstance instance) {
+    return new VmFunction(vm, chunk, declaration, closure, isInitializer, instance);
+  }
+
+  // NOTE: CompiledFunction.invokeと同じく、activateを直接呼べるように上書きする
+  @Override
+  Object invoke(Interpreter interpreter, LoxInstance receiver, Object[] arguments) {
+    Object value = activate(interpreter, receiver, arguments);
+    if (interpreter.tailFunction == null) return value;
+    return trampoline(interpreter, value);
+  }
+
+  @Override
+  Object activate(Interpreter interpreter, LoxInstance receiver, Object[] arguments) {
+    Object value = vm.run(chunk, activation(receiver, arguments));
+
+    if (isInitializer) return receiver;
+    return value;
+  }
+}
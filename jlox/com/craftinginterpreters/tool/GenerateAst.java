@@ -18,34 +18,58 @@ public class GenerateAst {
         outputDir,
         "Expr",
         Arrays.asList(
-            "Assign    : Token name, Expr value",
+            // NOTE: "|" 以降はResolverやInterpreterが書き込む注釈用のフィールド(コンストラクタ引数にならない)
+            // depthが-1のときはグローバル変数として名前で引く。Get/Setのcached*はインラインキャッシュ
+            // depth/slotはスコープごとにEnvironmentを作る実行方式(closure, vm, register)が使う。
+            // frameSlot/heapDepth/heapSlotは木の巡回とJIT用で、クロージャに捕捉されない変数は
+            // 呼び出しごとのフレーム(frameSlot)に、捕捉される変数だけEnvironment(heap*)に置く
+            "Assign    : Token name, Expr value"
+                + " | int depth = -1, int slot, int frameSlot = -1, int heapDepth, int heapSlot",
             "Binary    : Expr left, Token operator, Expr right",
             "Call      : Expr callee, Token paren, List<Expr> arguments",
-            "Get       : Expr object, Token name",
+            "Get       : Expr object, Token name"
+                + " | Shape cachedShape, int cachedIndex, LoxClass cachedClass, LoxFunction cachedMethod",
             "Grouping  : Expr expression",
+            // NOTE: Optimizerがループ不変の式を包む。ループに入るたびにframeSlotを未評価に戻し、
+            // 最初に評価した値をframeSlotに置いて、以降の繰り返しではそれを使う
+            "Invariant : Expr expression | int frameSlot",
             "Literal   : Object value",
             "Logical   : Expr left, Token operator, Expr right",
-            "Set       : Expr object, Token name, Expr value",
-            "Super     : Token keyword, Token method",
-            "This      : Token keyword",
+            "Set       : Expr object, Token name, Expr value"
+                + " | Shape cachedShape, Shape cachedNextShape, int cachedIndex",
+            "Super     : Token keyword, Token method"
+                + " | int depth = -1, int slot, int heapDepth, int heapSlot, Expr.This receiver",
+            "This      : Token keyword"
+                + " | int depth = -1, int slot, int frameSlot = -1, int heapDepth, int heapSlot",
             "Unary     : Token operator, Expr right",
-            "Variable  : Token name"));
+            "Variable  : Token name"
+                + " | int depth = -1, int slot, int frameSlot = -1, int heapDepth, int heapSlot"));
 
     defineAst(
         outputDir,
         "Stmt",
         Arrays.asList(
-            "Block      : List<Stmt> statements",
-            "Class      : Token name, Expr.Variable superclass, List<Stmt.Function> methods",
+            // NOTE: heapSizeはスコープの変数のうちクロージャに捕捉されるものの数。0ならEnvironmentを作らない。
+            // 宣言のframeSlot/heapSlotは宣言した変数の置き場所で、どちらも-1ならグローバル変数
+            "Block      : List<Stmt> statements | int heapSize",
+            "Class      : Token name, Expr.Variable superclass, List<Stmt.Function> methods"
+                + " | int frameSlot = -1, int heapSlot = -1",
             // NOTE: 13.1. で置換
             // "Class      : Token name, List<Stmt.Function> methods",
             "Expression : Expr expression",
-            "Function   : Token name, List<Token> params, List<Stmt> body",
+            // NOTE: callsとcompiledはLoxFunctionが数える呼び出し回数と、JitCompilerが生成した本体。
+            // frameSizeは呼び出しごとのフレームの大きさ。heapParams[heapSlot]はその捕捉される変数が
+            // 仮引数(またはthis)ならフレームでの位置、本体で宣言した変数なら-1
+            "Function   : Token name, List<Token> params, List<Stmt> body"
+                + " | int calls, JitCompiler.Body compiled, int frameSlot = -1, int heapSlot = -1,"
+                + " int frameSize, int heapSize, int[] heapParams",
             "If         : Expr condition, Stmt thenBranch, Stmt elseBranch",
             "Print      : Expr expression",
-            "Return     : Token keyword, Expr value",
-            "While      : Expr condition, Stmt body",
-            "Var        : Token name, Expr initializer"));
+            // NOTE: tailCallはvalueが末尾位置の呼び出し(return f(x);)であることをResolverが書き込む
+            "Return     : Token keyword, Expr value | boolean tailCall",
+            // NOTE: invariantsはループに入るたびに未評価に戻すInvariantのframeSlot
+            "While      : Expr condition, Stmt body | int[] invariants",
+            "Var        : Token name, Expr initializer | int frameSlot = -1, int heapSlot = -1"));
     // NOTE:
     // forは糖衣構文であるため、既存のAST(While, Block)を使って実装される
   }
@@ -66,8 +90,9 @@ public class GenerateAst {
     // ASTクラス群
     for (String type : types) {
       String className = type.split(":")[0].trim();
-      String fields = type.split(":")[1].trim();
-      defineType(writer, baseName, className, fields);
+      String[] fields = type.split(":")[1].split("\\|");
+      String annotations = fields.length > 1 ? fields[1].trim() : null;
+      defineType(writer, baseName, className, fields[0].trim(), annotations);
     }
 
     writer.println();
@@ -98,7 +123,11 @@ public class GenerateAst {
   }
 
   private static void defineType(
-      PrintWriter writer, String baseName, String className, String fieldList) {
+      PrintWriter writer,
+      String baseName,
+      String className,
+      String fieldList,
+      String annotationList) {
     writer.println("  static class " + className + " extends " + baseName + " {");
 
     // コストラクタ
@@ -126,6 +155,14 @@ public class GenerateAst {
       writer.println("    final " + field + ";");
     }
 
+    // 注釈用フィールド群(後から書き換えるためfinalにしない)
+    if (annotationList != null) {
+      writer.println();
+      for (String annotation : annotationList.split(", ")) {
+        writer.println("    " + annotation + ";");
+      }
+    }
+
     writer.println("  }");
   }
 }